@@ -0,0 +1,76 @@
+package org.app.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/** Runs the benchmarks with the usual JMH command line plus the GC profiler, and prints bytes allocated per row. */
+public final class BenchmarkRunner {
+    private static final String ALLOCATION_PER_OPERATION = "gc.alloc.rate.norm";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()) {
+            // the plain JMH entry point knows how to print these
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        printAllocationPerRow(results);
+    }
+
+    /** Benchmarks with a {@code rows} parameter process that many rows per operation. */
+    private static void printAllocationPerRow(Collection<RunResult> results) {
+        System.out.println();
+        System.out.println("Allocation per row or CSV line:");
+        for (RunResult result : results) {
+            Result allocation = findAllocation(result.getSecondaryResults());
+            if (allocation == null) {
+                continue;
+            }
+            String rows = result.getParams().getParam("rows");
+            double perRow = allocation.getScore() / (rows != null ? Integer.parseInt(rows) : 1);
+            System.out.printf("  %-60s %-45s %12.1f B%n",
+                    result.getParams().getBenchmark(),
+                    describeParams(result),
+                    perRow);
+        }
+    }
+
+    private static Result findAllocation(Map<String, Result> secondaryResults) {
+        for (Map.Entry<String, Result> entry : secondaryResults.entrySet()) {
+            if (entry.getKey().endsWith(ALLOCATION_PER_OPERATION)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String describeParams(RunResult result) {
+        StringBuilder text = new StringBuilder();
+        for (String key : result.getParams().getParamsKeys()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(key).append('=').append(result.getParams().getParam(key));
+        }
+        return text.toString();
+    }
+}
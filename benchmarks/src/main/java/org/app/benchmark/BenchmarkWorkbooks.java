@@ -0,0 +1,100 @@
+package org.app.benchmark;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.app.log.LogLevel;
+import org.app.log.LogSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Source workbooks for the benchmarks, generated once per size and kept in the temp directory between runs. */
+final class BenchmarkWorkbooks {
+    /** Data rows that fit into a .xls sheet next to the header row. */
+    static final int MAX_XLS_ROWS = SpreadsheetVersion.EXCEL97.getMaxRows() - 1;
+
+    /** Swallows the progress messages so formatting them does not show up in the results. */
+    static final LogSink QUIET = LogSink.of(message -> {
+    }, LogLevel.WARN);
+
+    private static final Path DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "facturare-benchmarks");
+
+    private BenchmarkWorkbooks() {
+    }
+
+    static File xlsx(int rows) throws IOException {
+        return workbook("rows-" + rows + ".xlsx", rows, () -> new SXSSFWorkbook(1000));
+    }
+
+    static File xls(int rows) throws IOException {
+        if (rows > MAX_XLS_ROWS) {
+            throw new IllegalArgumentException("A .xls sheet holds at most " + MAX_XLS_ROWS + " data rows: " + rows);
+        }
+        return workbook("rows-" + rows + ".xls", rows, HSSFWorkbook::new);
+    }
+
+    static Path newDirectory(String prefix) throws IOException {
+        Files.createDirectories(DIRECTORY);
+        return Files.createTempDirectory(DIRECTORY, prefix);
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.walk(directory)) {
+            for (Path entry : (Iterable<Path>) entries.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    private static File workbook(String name, int rows, WorkbookFactory factory) throws IOException {
+        Path target = DIRECTORY.resolve(name);
+        if (Files.exists(target)) {
+            return target.toFile();
+        }
+        Files.createDirectories(DIRECTORY);
+        Path partial = DIRECTORY.resolve(name + ".partial");
+        try (Workbook workbook = factory.create(); OutputStream out = Files.newOutputStream(partial)) {
+            fill(workbook.createSheet("Declaratii"), rows);
+            workbook.write(out);
+            if (workbook instanceof SXSSFWorkbook) {
+                ((SXSSFWorkbook) workbook).dispose();
+            }
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        return target.toFile();
+    }
+
+    /** MRN in column C, 'linii' in H and the 180 customs marker in L on every seventh row. */
+    private static void fill(Sheet sheet, int rows) {
+        Random random = new Random(42);
+        Row header = sheet.createRow(0);
+        header.createCell(2).setCellValue("MRN");
+        header.createCell(7).setCellValue("linii");
+        header.createCell(11).setCellValue("vama");
+        for (int i = 1; i <= rows; i++) {
+            Row row = sheet.createRow(i);
+            row.createCell(0).setCellValue(i);
+            row.createCell(2).setCellValue(String.format("25RO%012dM%d", 4_000_000L + i, i % 10));
+            row.createCell(7).setCellValue(1 + random.nextInt(500));
+            if (i % 7 == 0) {
+                row.createCell(11).setCellValue(180);
+            }
+        }
+    }
+
+    private interface WorkbookFactory {
+        Workbook create() throws IOException;
+    }
+}
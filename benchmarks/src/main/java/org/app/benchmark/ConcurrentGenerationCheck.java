@@ -0,0 +1,284 @@
+package org.app.benchmark;
+
+import org.app.model.BusinessMode;
+import org.app.service.ExcelReadOptions;
+import org.app.service.GenerationOptions;
+import org.app.service.InvoiceGenerationService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Checks that threads sharing one {@link InvoiceGenerationService} write the CSVs sequential runs write. */
+public final class ConcurrentGenerationCheck {
+    private static final long FIRST_SEED = 11L;
+    private static final String HEADER_END = "\r\n";
+    // what the processes of the last phase run: --append WORKBOOK MODE CSV
+    private static final String APPEND_COMMAND = "--append";
+
+    private int threads = 8;
+    private int rounds = 3;
+    private int rows = 5000;
+    private int workbookCount = 4;
+    private Path workDirectory;
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+    private ConcurrentGenerationCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals(APPEND_COMMAND)) {
+            new InvoiceGenerationService().generate(new File(args[1]), BusinessMode.valueOf(args[2]),
+                    Paths.get(args[3]), BenchmarkWorkbooks.QUIET);
+            return;
+        }
+        ConcurrentGenerationCheck check = new ConcurrentGenerationCheck();
+        for (String arg : args) {
+            check.parseOption(arg);
+        }
+        boolean temporary = check.workDirectory == null;
+        if (temporary) {
+            check.workDirectory = BenchmarkWorkbooks.newDirectory("concurrency");
+        }
+        try {
+            check.run();
+        } finally {
+            if (temporary) {
+                BenchmarkWorkbooks.deleteRecursively(check.workDirectory);
+            }
+        }
+        if (!check.failures.isEmpty()) {
+            System.out.println();
+            System.out.println("FAILED:");
+            check.failures.forEach(failure -> System.out.println("  " + failure));
+            System.exit(1);
+        }
+        System.out.println();
+        System.out.println("All checks passed.");
+    }
+
+    private void parseOption(String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (arg.startsWith("--threads=")) {
+            threads = Integer.parseInt(value);
+        } else if (arg.startsWith("--rounds=")) {
+            rounds = Integer.parseInt(value);
+        } else if (arg.startsWith("--rows=")) {
+            rows = Integer.parseInt(value);
+        } else if (arg.startsWith("--workbooks=")) {
+            workbookCount = Integer.parseInt(value);
+        } else if (arg.startsWith("--work-dir=")) {
+            workDirectory = Paths.get(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException, ExecutionException {
+        Files.createDirectories(workDirectory);
+        List<File> workbooks = new ArrayList<>();
+        for (int i = 0; i < workbookCount; i++) {
+            Path target = workDirectory.resolve("customs-" + i + ".xlsx");
+            workbooks.add(new CustomsWorkbookGenerator(FIRST_SEED + i).write(target, rows).toFile());
+        }
+        workbooks.add(BenchmarkWorkbooks.xls(Math.min(rows, BenchmarkWorkbooks.MAX_XLS_ROWS)));
+
+        GenerationOptions streaming = GenerationOptions.defaults();
+        GenerationOptions loading = GenerationOptions.defaults()
+                .withReadOptions(ExcelReadOptions.defaults().withParallelDecoding(2));
+        List<Job> jobs = check("streaming readers", new InvoiceGenerationService(streaming), workbooks);
+        check("full-workbook readers", new InvoiceGenerationService(loading), workbooks);
+        checkProcesses(jobs);
+    }
+
+    private List<Job> check(String name, InvoiceGenerationService service, List<File> workbooks)
+            throws IOException, InterruptedException, ExecutionException {
+        Path directory = Files.createDirectories(workDirectory.resolve(name.replace(' ', '-')));
+        List<Job> jobs = new ArrayList<>();
+        long started = System.nanoTime();
+        for (File workbook : workbooks) {
+            for (BusinessMode mode : BusinessMode.values()) {
+                jobs.add(record(service, workbook, mode, directory));
+            }
+        }
+        long sequentialMillis = (System.nanoTime() - started) / 1_000_000;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            started = System.nanoTime();
+            List<Future<?>> runs = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < jobs.size(); i++) {
+                    Job job = jobs.get(i);
+                    boolean toStream = (round + i) % 2 == 1;
+                    Path csv = directory.resolve("round-" + round + "-" + job.name + ".csv");
+                    runs.add(pool.submit(() -> {
+                        generateAndCompare(service, job, toStream ? null : csv);
+                        return null;
+                    }));
+                }
+                for (BusinessMode mode : BusinessMode.values()) {
+                    Path shared = directory.resolve("round-" + round + "-shared-" + key(mode) + ".csv");
+                    for (Job job : jobs) {
+                        if (isShared(job, mode)) {
+                            runs.add(pool.submit(() -> {
+                                service.generate(job.workbook, mode, shared, BenchmarkWorkbooks.QUIET);
+                                return null;
+                            }));
+                        }
+                    }
+                }
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+            long concurrentMillis = (System.nanoTime() - started) / 1_000_000;
+            for (int round = 0; round < rounds; round++) {
+                for (BusinessMode mode : BusinessMode.values()) {
+                    compareShared(directory.resolve("round-" + round + "-shared-" + key(mode) + ".csv"), jobs,
+                            mode);
+                }
+            }
+            System.out.printf("%-24s %3d runs one after the other %8d ms, %4d runs on %d threads %8d ms%n",
+                    name, jobs.size(), sequentialMillis, runs.size(), threads, concurrentMillis);
+        } finally {
+            pool.shutdownNow();
+        }
+        return jobs;
+    }
+
+    /** Appends every workbook to its mode's CSV from processes of their own, started together. */
+    private void checkProcesses(List<Job> jobs) throws IOException, InterruptedException {
+        Path directory = Files.createDirectories(workDirectory.resolve("processes"));
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        long started = System.nanoTime();
+        for (BusinessMode mode : BusinessMode.values()) {
+            Path shared = directory.resolve("shared-" + key(mode) + ".csv");
+            for (Job job : jobs) {
+                if (isShared(job, mode)) {
+                    processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                            ConcurrentGenerationCheck.class.getName(), APPEND_COMMAND,
+                            job.workbook.getPath(), mode.name(), shared.toString())
+                            .redirectErrorStream(true)
+                            .redirectOutput(directory.resolve("process-" + processes.size() + ".log").toFile())
+                            .start());
+                }
+            }
+        }
+        for (int i = 0; i < processes.size(); i++) {
+            int exitCode = processes.get(i).waitFor();
+            if (exitCode != 0) {
+                failures.add("process " + i + " exited with " + exitCode + ", see process-" + i + ".log");
+            }
+        }
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        for (BusinessMode mode : BusinessMode.values()) {
+            compareShared(directory.resolve("shared-" + key(mode) + ".csv"), jobs, mode);
+        }
+        System.out.printf("%-24s %4d processes appending to %d CSVs %8d ms%n",
+                "separate processes", processes.size(), BusinessMode.values().length, millis);
+    }
+
+    /** Generates the workbook alone, into a new CSV and after a header-only one. */
+    private static Job record(InvoiceGenerationService service, File workbook, BusinessMode mode, Path directory)
+            throws IOException {
+        String name = workbook.getName() + "-" + key(mode);
+        Path csv = directory.resolve("expected-" + name + ".csv");
+        service.generate(workbook, mode, csv, BenchmarkWorkbooks.QUIET);
+        byte[] expected = Files.readAllBytes(csv);
+
+        Path appended = directory.resolve("expected-appended-" + name + ".csv");
+        String text = new String(expected, StandardCharsets.ISO_8859_1);
+        String header = text.substring(0, text.indexOf(HEADER_END) + HEADER_END.length());
+        Files.write(appended, header.getBytes(StandardCharsets.ISO_8859_1));
+        service.generate(workbook, mode, appended, BenchmarkWorkbooks.QUIET);
+        String appendedBody = new String(Files.readAllBytes(appended), StandardCharsets.ISO_8859_1)
+                .substring(header.length());
+        return new Job(name, workbook, mode, expected, appendedBody);
+    }
+
+    private void generateAndCompare(InvoiceGenerationService service, Job job, Path csv) throws IOException {
+        byte[] actual;
+        if (csv == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(job.expected.length);
+            service.generate(job.workbook, job.mode, out, BenchmarkWorkbooks.QUIET);
+            actual = out.toByteArray();
+        } else {
+            service.generate(job.workbook, job.mode, csv, BenchmarkWorkbooks.QUIET);
+            actual = Files.readAllBytes(csv);
+        }
+        if (!Arrays.equals(job.expected, actual)) {
+            failures.add(String.format("%s written to %s differs from its sequential run (%d bytes, expected %d)",
+                    job.name, csv == null ? "a stream" : csv.getFileName(), actual.length, job.expected.length));
+        }
+    }
+
+    /** The shared CSV must be one run's new CSV followed by the other runs' appended lines, in any order. */
+    private void compareShared(Path csv, List<Job> jobs, BusinessMode mode) throws IOException {
+        String actual = new String(Files.readAllBytes(csv), StandardCharsets.ISO_8859_1);
+        int expectedLength = 0;
+        Job first = null;
+        for (Job job : jobs) {
+            if (!isShared(job, mode)) {
+                continue;
+            }
+            expectedLength += job.appendedBody.length();
+            if (first == null && actual.startsWith(new String(job.expected, StandardCharsets.ISO_8859_1))) {
+                first = job;
+            }
+        }
+        if (first == null) {
+            failures.add(csv.getFileName() + " does not start with the CSV of any of its runs");
+            return;
+        }
+        // the first run also wrote the header and the customer fields
+        expectedLength += first.expected.length - first.appendedBody.length();
+        if (actual.length() != expectedLength) {
+            failures.add(String.format("%s has %d bytes, its runs wrote %d", csv.getFileName(), actual.length(),
+                    expectedLength));
+        }
+        for (Job job : jobs) {
+            if (isShared(job, mode) && job != first && !actual.contains(job.appendedBody)) {
+                failures.add(csv.getFileName() + " does not hold the lines of " + job.name + " in one piece");
+            }
+        }
+    }
+
+    private static boolean isShared(Job job, BusinessMode mode) {
+        return job.mode == mode && job.workbook.getName().endsWith(".xlsx");
+    }
+
+    private static String key(BusinessMode mode) {
+        return mode.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Job {
+        private final String name;
+        private final File workbook;
+        private final BusinessMode mode;
+        private final byte[] expected;
+        private final String appendedBody;
+
+        Job(String name, File workbook, BusinessMode mode, byte[] expected, String appendedBody) {
+            this.name = name;
+            this.workbook = workbook;
+            this.mode = mode;
+            this.expected = expected;
+            this.appendedBody = appendedBody;
+        }
+    }
+}
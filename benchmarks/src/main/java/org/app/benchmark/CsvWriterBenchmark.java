@@ -0,0 +1,89 @@
+package org.app.benchmark;
+
+import org.app.csv.CsvWriterMode;
+import org.app.csv.InvoiceCsvWriter;
+import org.app.model.InvoiceLine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Writes FAN-shaped invoice lines with {@link InvoiceCsvWriter#write}, to a new and to an existing file. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvWriterBenchmark {
+    private static final int LINES = 20_000;
+    private static final BigDecimal VAT_RATE = BigDecimal.valueOf(21);
+    private static final BigDecimal PRICE_TIR = BigDecimal.valueOf(15);
+
+    @Param({"STANDARD", "BYTE_LEVEL"})
+    public CsvWriterMode writerMode;
+
+    private InvoiceCsvWriter writer;
+    private List<InvoiceLine> lines;
+    private Path createdCsv;
+    private Path appendedCsv;
+    private long appendedHeaderSize;
+
+    @Setup
+    public void setUp() throws IOException {
+        writer = new InvoiceCsvWriter(writerMode);
+        lines = new ArrayList<>(LINES);
+        for (int i = 0; i < LINES / 2; i++) {
+            String mrn = String.format("25RO%012dM%d", 4_000_000L + i, i % 10);
+            lines.add(new InvoiceLine(1, "RO45827190", "FAN", "RON", "Prestatii H7",
+                    BigDecimal.valueOf(1 + i % 500), BigDecimal.ZERO, VAT_RATE, mrn));
+            lines.add(new InvoiceLine(1, "RO45827190", "FAN", "RON", "inregistrare carnet TIR",
+                    BigDecimal.ONE, PRICE_TIR, VAT_RATE, mrn));
+        }
+        Path directory = BenchmarkWorkbooks.newDirectory("csv-writer");
+        createdCsv = directory.resolve("created.csv");
+        appendedCsv = directory.resolve("appended.csv");
+        writer.write(appendedCsv, Collections.singletonList(lines.get(0)));
+        appendedHeaderSize = Files.size(appendedCsv);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetFiles() throws IOException {
+        Files.deleteIfExists(createdCsv);
+        try (FileChannel channel = FileChannel.open(appendedCsv, StandardOpenOption.WRITE)) {
+            channel.truncate(appendedHeaderSize);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public Path create() throws IOException {
+        return writer.write(createdCsv, lines);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public Path append() throws IOException {
+        return writer.write(appendedCsv, lines);
+    }
+}
@@ -0,0 +1,154 @@
+package org.app.benchmark;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Random;
+
+/** Writes customs workbooks like the ones users export, at any size, through SXSSF. */
+public final class CustomsWorkbookGenerator {
+    private static final int ROW_WINDOW = 1000;
+    private static final int MRN_COLUMN = 2;
+    private static final int LINES_COLUMN = 7;
+    private static final int CUSTOMS_COLUMN = 11;
+    private static final String[] SENDERS = {
+            "TRENDYOL EUROPE B.V.", "DSM GRUP DANISMANLIK", "Horoz Lojistik Kargo", "MNG Kargo Yurtici",
+            "Aras Kargo, Ankara", "\"Ekol\" Lojistik"
+    };
+    private static final String[] ROUTES = {"TR-RO", "TR-BG-RO", "TR-HU", "TR-RO-MD"};
+
+    private final long seed;
+
+    public CustomsWorkbookGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /** Writes a workbook with a header row and {@code rows} rows below it. */
+    public Path write(Path target, int rows) throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+        try (OutputStream out = Files.newOutputStream(target)) {
+            CellStyle dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("dd.mm.yyyy"));
+            fill(workbook.createSheet("Declaratii"), rows, dateStyle);
+            workbook.write(out);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+        return target;
+    }
+
+    private void fill(Sheet sheet, int rows, CellStyle dateStyle) {
+        Random random = new Random(seed);
+        Row header = sheet.createRow(0);
+        String[] titles = {"Nr", "Data", "MRN", "Expeditor", "Ruta", "Colete", "Colete retur", "linii",
+                "Greutate", "Valoare", "Moneda", "vama"};
+        for (int column = 0; column < titles.length; column++) {
+            header.createCell(column).setCellValue(titles[column]);
+        }
+
+        long firstDay = 1_735_689_600_000L; // 1 January 2025
+        for (int rowIndex = 1; rowIndex <= rows; rowIndex++) {
+            int kind = random.nextInt(100);
+            if (kind < 2) {
+                // the row was never touched in Excel, so it is missing from the file
+                continue;
+            }
+            Row row = sheet.createRow(rowIndex);
+            row.createCell(0).setCellValue(rowIndex);
+            if (kind < 4) {
+                // spacer row: numbered, but nothing the reader looks at
+                continue;
+            }
+
+            Cell date = row.createCell(1);
+            date.setCellValue(new Date(firstDay + random.nextInt(365) * 86_400_000L));
+            date.setCellStyle(dateStyle);
+            row.createCell(3).setCellValue(SENDERS[random.nextInt(SENDERS.length)]);
+            row.createCell(4).setCellValue(ROUTES[random.nextInt(ROUTES.length)]);
+            row.createCell(8).setCellValue(Math.round(random.nextDouble() * 2_400_000) / 100.0);
+            row.createCell(9).setCellValue(Math.round(random.nextDouble() * 9_000_000) / 100.0);
+            row.createCell(10).setCellValue("EUR");
+
+            if (kind >= 6) {
+                String mrn = String.format("25RO%08d%04dM%d", rowIndex, random.nextInt(10_000), rowIndex % 10);
+                row.createCell(MRN_COLUMN).setCellValue(kind < 9 ? "  " + mrn + " " : mrn);
+            } else if (kind == 5) {
+                row.createCell(MRN_COLUMN).setCellValue(" ");
+            }
+            writeLines(row, rowIndex, kind, random);
+            writeCustoms(row, random);
+        }
+    }
+
+    private static void writeLines(Row row, int rowIndex, int kind, Random random) {
+        int lines = 1 + random.nextInt(500);
+        Cell cell = row.createCell(LINES_COLUMN);
+        if (kind < 60) {
+            cell.setCellValue(lines);
+        } else if (kind < 68) {
+            cell.setCellValue(random.nextBoolean() ? Integer.toString(lines) : " " + lines + " ");
+        } else if (kind < 74) {
+            // typed with a decimal comma, as a Romanian locale does
+            cell.setCellValue(lines + "," + random.nextInt(100));
+        } else if (kind < 80) {
+            int returned = random.nextInt(lines);
+            row.createCell(5).setCellValue(lines - returned);
+            row.createCell(6).setCellValue(returned);
+            cell.setCellFormula("F" + (rowIndex + 1) + "+G" + (rowIndex + 1));
+            cell.setCellValue(lines);
+        } else if (kind < 84) {
+            cell.setCellValue(lines + random.nextInt(100) / 100.0);
+        } else if (kind < 88) {
+            cell.setCellValue(random.nextBoolean() ? "n/a" : "de verificat");
+        } else if (kind < 90) {
+            cell.setCellErrorValue(FormulaError.NA.getCode());
+        } else if (kind < 92) {
+            cell.setBlank();
+        } else {
+            cell.setCellValue(lines);
+        }
+    }
+
+    private static void writeCustoms(Row row, Random random) {
+        int kind = random.nextInt(56);
+        if (kind >= 12) {
+            return;
+        }
+        Cell cell = row.createCell(CUSTOMS_COLUMN);
+        if (kind < 5) {
+            cell.setCellValue(180);
+        } else if (kind < 7) {
+            cell.setCellValue(kind == 5 ? "180" : " 180");
+        } else if (kind < 8) {
+            cell.setCellFormula("90*2");
+            cell.setCellValue(180);
+        } else if (kind < 9) {
+            cell.setCellValue("180,0");
+        } else {
+            // other fees in the same column never add a customs line
+            cell.setCellValue(kind == 9 ? 95 : kind == 10 ? 0 : 179.4);
+        }
+    }
+
+    /** {@code CustomsWorkbookGenerator <output.xlsx> <rows> [seed]} */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: CustomsWorkbookGenerator <output.xlsx> <rows> [seed]");
+            System.exit(1);
+        }
+        long seed = args.length >= 3 ? Long.parseLong(args[2]) : 42L;
+        Path target = new CustomsWorkbookGenerator(seed).write(Paths.get(args[0]), Integer.parseInt(args[1]));
+        System.out.println("Workbook written: " + target.toAbsolutePath());
+    }
+}
@@ -0,0 +1,201 @@
+package org.app.benchmark;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.app.model.BusinessMode;
+import org.app.service.ExcelReadOptions;
+import org.app.service.InvoiceGenerationService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Checks that a CSV is appended to past an unterminated last line and refused with a malformed one. */
+public final class DamagedInputCheck {
+    private static final long SEED = 23L;
+    private static final String LEDGER_SUFFIX = ".mrn-index";
+    private static final int LINES_COLUMN = 7;
+    // more than two of the workbook reader's decoding chunks, so the chunks are read concurrently
+    private static final int CHUNKED_ROWS = 10_000;
+    private static final int DECODE_THREADS = 4;
+
+    private int rows = 200;
+    private Path workDirectory;
+    private final List<String> failures = new ArrayList<>();
+
+    private DamagedInputCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        DamagedInputCheck check = new DamagedInputCheck();
+        for (String arg : args) {
+            check.parseOption(arg);
+        }
+        boolean temporary = check.workDirectory == null;
+        if (temporary) {
+            check.workDirectory = BenchmarkWorkbooks.newDirectory("damaged");
+        }
+        try {
+            check.run();
+        } finally {
+            if (temporary) {
+                BenchmarkWorkbooks.deleteRecursively(check.workDirectory);
+            }
+        }
+        if (!check.failures.isEmpty()) {
+            System.out.println();
+            System.out.println("FAILED:");
+            check.failures.forEach(failure -> System.out.println("  " + failure));
+            System.exit(1);
+        }
+        System.out.println();
+        System.out.println("All checks passed.");
+    }
+
+    private void parseOption(String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (arg.startsWith("--rows=")) {
+            rows = Integer.parseInt(value);
+        } else if (arg.startsWith("--work-dir=")) {
+            workDirectory = Paths.get(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    private void run() throws IOException {
+        Files.createDirectories(workDirectory);
+        File workbook = new CustomsWorkbookGenerator(SEED).write(workDirectory.resolve("customs.xlsx"), rows)
+                .toFile();
+        checkUnterminatedLastLine(workbook);
+        checkMalformedLine(workbook);
+        checkUncachedFormulas(workbook);
+        checkFormulasInParallelChunks();
+    }
+
+    private void checkUnterminatedLastLine(File workbook) throws IOException {
+        Path csv = generate(workbook, "unterminated");
+        Files.write(csv, "1,\"RO45827190,FAN".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        byte[] before = Files.readAllBytes(csv);
+        Files.delete(ledger(csv));
+        try {
+            generate(workbook, csv);
+            report("unterminated last line", Arrays.equals(before, Files.readAllBytes(csv)),
+                    "the workbook's MRNs were appended again");
+        } catch (IOException e) {
+            report("unterminated last line", false, "the run failed: " + e.getMessage());
+        }
+    }
+
+    private void checkMalformedLine(File workbook) throws IOException {
+        Path csv = generate(workbook, "malformed");
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        int middle = lines.size() / 2;
+        // junk after a quoted field
+        lines.set(middle, "\"1\"x" + lines.get(middle).substring(lines.get(middle).indexOf(',')));
+        Files.write(csv, lines, StandardCharsets.UTF_8);
+        byte[] before = Files.readAllBytes(csv);
+        Files.delete(ledger(csv));
+        try {
+            generate(workbook, csv);
+            report("malformed line in the middle", false, "the run succeeded and "
+                    + (Arrays.equals(before, Files.readAllBytes(csv)) ? "appended nothing" : "appended lines"));
+        } catch (IOException e) {
+            report("malformed line in the middle", Arrays.equals(before, Files.readAllBytes(csv)),
+                    "the run failed but changed the CSV");
+        }
+    }
+
+    private void checkUncachedFormulas(File workbook) throws IOException {
+        File formulas = withLineFormulas(workbook, workDirectory.resolve("formulas.xlsx"));
+        byte[] expected = Files.readAllBytes(generate(workbook, "values"));
+        try {
+            byte[] actual = Files.readAllBytes(generate(formulas, "formulas"));
+            report("formulas without saved results", Arrays.equals(expected, actual),
+                    "the CSV differs from the one of the same workbook without formulas");
+        } catch (IOException e) {
+            report("formulas without saved results", false, "the run failed: " + e.getMessage());
+        }
+        Path lowMemoryCsv = workDirectory.resolve("formulas-low-memory.csv");
+        try {
+            new InvoiceGenerationService(ExcelReadOptions.defaults()
+                    .withLowMemory(ExcelReadOptions.DEFAULT_LOW_MEMORY_MAX_ENTRY_BYTES))
+                    .generate(formulas, BusinessMode.FAN, lowMemoryCsv, BenchmarkWorkbooks.QUIET);
+            report("same formulas in low-memory mode", false, "the run succeeded without evaluating them");
+        } catch (IOException e) {
+            report("same formulas in low-memory mode", !Files.exists(lowMemoryCsv) || Files.size(lowMemoryCsv) == 0,
+                    "the run failed but wrote lines to the CSV");
+        }
+    }
+
+    private void checkFormulasInParallelChunks() throws IOException {
+        File workbook = new CustomsWorkbookGenerator(SEED).write(workDirectory.resolve("chunked.xlsx"), CHUNKED_ROWS)
+                .toFile();
+        File formulas = withLineFormulas(workbook, workDirectory.resolve("chunked-formulas.xlsx"));
+        byte[] expected = Files.readAllBytes(generate(workbook, "chunked-values"));
+        Path csv = workDirectory.resolve("chunked-formulas.csv");
+        try {
+            new InvoiceGenerationService(ExcelReadOptions.defaults().withParallelDecoding(DECODE_THREADS))
+                    .generate(formulas, BusinessMode.FAN, csv, BenchmarkWorkbooks.QUIET);
+            report("formulas in parallel chunks", Arrays.equals(expected, Files.readAllBytes(csv)),
+                    "the CSV differs from the one of the same workbook without formulas");
+        } catch (IOException e) {
+            report("formulas in parallel chunks", false, "the run failed: " + e.getMessage());
+        }
+    }
+
+    /** A copy of the workbook with its line counts as formulas, saved without results. */
+    private static File withLineFormulas(File workbook, Path target) throws IOException {
+        try (InputStream in = Files.newInputStream(workbook.toPath());
+             XSSFWorkbook copy = new XSSFWorkbook(in)) {
+            Sheet sheet = copy.getSheetAt(0);
+            for (Row row : sheet) {
+                Cell lines = row.getCell(LINES_COLUMN);
+                if (row.getRowNum() == 0 || lines == null || lines.getCellType() != CellType.NUMERIC) {
+                    continue;
+                }
+                String value = BigDecimal.valueOf(lines.getNumericCellValue()).toPlainString();
+                row.removeCell(lines);
+                row.createCell(LINES_COLUMN).setCellFormula(value + "+0");
+            }
+            try (OutputStream out = Files.newOutputStream(target)) {
+                copy.write(out);
+            }
+        }
+        return target.toFile();
+    }
+
+    private Path generate(File workbook, String name) throws IOException {
+        Path csv = workDirectory.resolve(name + ".csv");
+        generate(workbook, csv);
+        return csv;
+    }
+
+    private static void generate(File workbook, Path csv) throws IOException {
+        new InvoiceGenerationService().generate(workbook, BusinessMode.FAN, csv, BenchmarkWorkbooks.QUIET);
+    }
+
+    private static Path ledger(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + LEDGER_SUFFIX);
+    }
+
+    private void report(String name, boolean passed, String failure) {
+        System.out.printf("%-40s %s%n", name, passed ? "ok" : "FAILED");
+        if (!passed) {
+            failures.add(name + ": " + failure);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.app.benchmark;
+
+import java.awt.AWTEvent;
+import java.awt.Toolkit;
+import java.lang.management.ManagementFactory;
+
+/** Starts the GUI and prints {@code first-paint <JVM uptime in ms>} once the window first paints. */
+public final class FirstPaintProbe {
+    private FirstPaintProbe() {
+    }
+
+    public static void main(String[] args) {
+        Toolkit.getDefaultToolkit().addAWTEventListener(event -> {
+            System.out.println(StartupCheck.FIRST_PAINT + ManagementFactory.getRuntimeMXBean().getUptime());
+            System.out.flush();
+            Runtime.getRuntime().halt(0);
+        }, AWTEvent.PAINT_EVENT_MASK);
+        org.app.Main.main(args);
+    }
+}
@@ -0,0 +1,72 @@
+package org.app.benchmark;
+
+import org.app.csv.CsvWriterMode;
+import org.app.model.BusinessMode;
+import org.app.service.GenerationOptions;
+import org.app.service.InvoiceGenerationService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Runs {@link InvoiceGenerationService#generate} from an .xlsx workbook into a new CSV. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GenerateBenchmark {
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"FAN", "ASSET"})
+    public BusinessMode mode;
+
+    @Param({"STANDARD", "BYTE_LEVEL"})
+    public CsvWriterMode writerMode;
+
+    @Param({"false", "true"})
+    public boolean mrnLedger;
+
+    private File workbook;
+    private InvoiceGenerationService service;
+    private Path outputCsv;
+    private Path ledgerFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        workbook = BenchmarkWorkbooks.xlsx(rows);
+        service = new InvoiceGenerationService(GenerationOptions.defaults()
+                .withCsvWriterMode(writerMode)
+                .withMrnLedger(mrnLedger));
+        Path directory = BenchmarkWorkbooks.newDirectory("generate");
+        outputCsv = directory.resolve("facturare.csv");
+        ledgerFile = directory.resolve("facturare.csv.mrn-index");
+    }
+
+    @Setup(Level.Invocation)
+    public void removeOutput() throws IOException {
+        Files.deleteIfExists(outputCsv);
+        Files.deleteIfExists(ledgerFile);
+    }
+
+    @Benchmark
+    public Path generate() throws IOException {
+        return service.generate(workbook, mode, outputCsv, BenchmarkWorkbooks.QUIET);
+    }
+}
@@ -0,0 +1,86 @@
+package org.app.benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.app.model.BusinessMode;
+import org.app.service.InvoiceGenerationService;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runs one generation in a JVM of its own and reports its wall time and most live heap. */
+public final class GenerationProbe {
+    private GenerationProbe() {
+    }
+
+    /** {@code GenerationProbe <FAN|ASSET> <workbook> <output.csv>} */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BusinessMode mode = BusinessMode.valueOf(args[0]);
+        File workbook = new File(args[1]);
+        LiveHeapTracker tracker = LiveHeapTracker.start();
+
+        long started = System.nanoTime();
+        new InvoiceGenerationService().generate(workbook, mode, Paths.get(args[2]), BenchmarkWorkbooks.QUIET);
+        long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+
+        System.out.println(elapsedMillis + " " + tracker.finish());
+    }
+
+    private static final class LiveHeapTracker {
+        private final Set<String> heapPools = new HashSet<>();
+        private final AtomicLong maxLive = new AtomicLong();
+        private final AtomicLong collections = new AtomicLong();
+
+        static LiveHeapTracker start() {
+            LiveHeapTracker tracker = new LiveHeapTracker();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    tracker.heapPools.add(pool.getName());
+                }
+            }
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                    if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                            .equals(notification.getType())) {
+                        tracker.onCollection(GarbageCollectionNotificationInfo
+                                .from((CompositeData) notification.getUserData()));
+                    }
+                }, null, null);
+            }
+            return tracker;
+        }
+
+        private void onCollection(GarbageCollectionNotificationInfo info) {
+            long live = 0;
+            for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                if (heapPools.contains(pool.getKey())) {
+                    live += pool.getValue().getUsed();
+                }
+            }
+            maxLive.accumulateAndGet(live, Math::max);
+            collections.incrementAndGet();
+        }
+
+        /** Collects once more so a run too short to trigger any collection still reports what it retained. */
+        long finish() throws InterruptedException {
+            long expected = collections.get() + 1;
+            System.gc();
+            // notifications are delivered on a JMX thread
+            for (int wait = 0; wait < 50 && collections.get() < expected; wait++) {
+                Thread.sleep(10);
+            }
+            return maxLive.get();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.app.benchmark;
+
+import org.app.model.BusinessMode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/** Checks large generated workbooks against the golden CSV and their wall-time and live-heap budgets. */
+public final class LargeFileRegressionCheck {
+    private static final long SEED = 7L;
+    private static final int GOLDEN_ROWS = 1000;
+    private static final String GOLDEN_DIGESTS = "/golden/customs-digests.properties";
+
+    private int largeRows = 1_000_000;
+    private String maxHeap = "256m";
+    private long maxSeconds = 120;
+    private long maxLiveHeapMegabytes = 64;
+    private Path workDirectory;
+    private final List<String> failures = new ArrayList<>();
+
+    private LargeFileRegressionCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LargeFileRegressionCheck check = new LargeFileRegressionCheck();
+        for (String arg : args) {
+            check.parseOption(arg);
+        }
+        boolean temporary = check.workDirectory == null;
+        if (temporary) {
+            check.workDirectory = BenchmarkWorkbooks.newDirectory("regression");
+        }
+        try {
+            check.run();
+        } finally {
+            if (temporary) {
+                // a million-row workbook and its CSV are not worth keeping between runs
+                BenchmarkWorkbooks.deleteRecursively(check.workDirectory);
+            }
+        }
+        if (!check.failures.isEmpty()) {
+            System.out.println();
+            System.out.println("FAILED:");
+            check.failures.forEach(failure -> System.out.println("  " + failure));
+            System.exit(1);
+        }
+        System.out.println();
+        System.out.println("All checks passed.");
+    }
+
+    private void parseOption(String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (arg.startsWith("--rows=")) {
+            largeRows = Integer.parseInt(value);
+        } else if (arg.startsWith("--xmx=")) {
+            maxHeap = value;
+        } else if (arg.startsWith("--max-seconds=")) {
+            maxSeconds = Long.parseLong(value);
+        } else if (arg.startsWith("--max-live-heap-mb=")) {
+            maxLiveHeapMegabytes = Long.parseLong(value);
+        } else if (arg.startsWith("--work-dir=")) {
+            workDirectory = Paths.get(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException, NoSuchAlgorithmException {
+        Files.createDirectories(workDirectory);
+        CustomsWorkbookGenerator generator = new CustomsWorkbookGenerator(SEED);
+
+        Path small = generator.write(workDirectory.resolve("customs-" + GOLDEN_ROWS + ".xlsx"), GOLDEN_ROWS);
+        for (BusinessMode mode : BusinessMode.values()) {
+            Path csv = generate(small, mode);
+            if (csv != null) {
+                compareWithGolden(csv, "/golden/customs-" + GOLDEN_ROWS + "-" + key(mode) + ".csv");
+            }
+        }
+
+        System.out.printf("Writing a %,d row workbook...%n", largeRows);
+        Path large = generator.write(workDirectory.resolve("customs-" + largeRows + ".xlsx"), largeRows);
+        Path csv = generate(large, BusinessMode.FAN);
+        if (csv != null) {
+            compareWithDigest(csv, "customs-" + largeRows + "-" + key(BusinessMode.FAN));
+        }
+    }
+
+    /** Runs the probe on a fresh output file and checks its budgets; returns {@code null} when it did not finish. */
+    private Path generate(Path workbook, BusinessMode mode) throws IOException, InterruptedException {
+        Path csv = workDirectory.resolve(workbook.getFileName() + "-" + key(mode) + ".csv");
+        Files.deleteIfExists(csv);
+        Files.deleteIfExists(csv.resolveSibling(csv.getFileName() + ".mrn-index"));
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java, "-Xmx" + maxHeap, "-cp", System.getProperty("java.class.path"),
+                GenerationProbe.class.getName(), mode.name(), workbook.toString(), csv.toString());
+        Process probe = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String report;
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(probe.getInputStream(), StandardCharsets.UTF_8))) {
+            report = output.readLine();
+        }
+        int exitCode = probe.waitFor();
+        String run = workbook.getFileName() + " as " + mode;
+        if (exitCode != 0 || report == null) {
+            failures.add(run + ": generation failed with -Xmx" + maxHeap + " (exit code " + exitCode + ")");
+            return null;
+        }
+
+        String[] values = report.trim().split(" ");
+        long elapsedMillis = Long.parseLong(values[0]);
+        long liveHeapMegabytes = Long.parseLong(values[1]) >> 20;
+        System.out.printf("%-40s %8d ms  %5d MiB live heap  (-Xmx%s)%n", run, elapsedMillis, liveHeapMegabytes,
+                maxHeap);
+        if (elapsedMillis > maxSeconds * 1000) {
+            failures.add(String.format("%s: took %d ms, the budget is %d s", run, elapsedMillis, maxSeconds));
+        }
+        if (liveHeapMegabytes > maxLiveHeapMegabytes) {
+            failures.add(String.format("%s: kept %d MiB live, the budget is %d MiB", run, liveHeapMegabytes,
+                    maxLiveHeapMegabytes));
+        }
+        return csv;
+    }
+
+    private void compareWithGolden(Path csv, String goldenResource) throws IOException {
+        List<String> expected;
+        try (InputStream golden = LargeFileRegressionCheck.class.getResourceAsStream(goldenResource)) {
+            if (golden == null) {
+                failures.add("Golden CSV missing from the classpath: " + goldenResource);
+                return;
+            }
+            expected = readLines(new InputStreamReader(golden, StandardCharsets.UTF_8));
+        }
+        List<String> actual = readLines(Files.newBufferedReader(csv, StandardCharsets.UTF_8));
+        int lines = Math.max(expected.size(), actual.size());
+        for (int i = 0; i < lines; i++) {
+            String expectedLine = i < expected.size() ? expected.get(i) : "<end of file>";
+            String actualLine = i < actual.size() ? actual.get(i) : "<end of file>";
+            if (!expectedLine.equals(actualLine)) {
+                failures.add(String.format("%s differs from %s at line %d:%n    expected: %s%n    actual:   %s",
+                        csv.getFileName(), goldenResource, i + 1, expectedLine, actualLine));
+                return;
+            }
+        }
+    }
+
+    private void compareWithDigest(Path csv, String key) throws IOException, NoSuchAlgorithmException {
+        String actual = sha256(csv);
+        Properties digests = new Properties();
+        try (InputStream in = LargeFileRegressionCheck.class.getResourceAsStream(GOLDEN_DIGESTS)) {
+            if (in != null) {
+                digests.load(in);
+            }
+        }
+        String expected = digests.getProperty(key);
+        if (expected == null) {
+            // only the default size is recorded; other sizes are still checked for their budgets
+            System.out.println("No recorded digest for " + key + ", output not compared (sha256 " + actual + ")");
+        } else if (!expected.equals(actual)) {
+            failures.add(String.format("%s does not match the recorded digest of %s: %s", csv.getFileName(), key,
+                    actual));
+        }
+    }
+
+    /** Splits on CRLF only, so line breaks inside quoted fields stay part of their line. */
+    private static List<String> readLines(Reader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(reader)) {
+            StringBuilder line = new StringBuilder();
+            int ch;
+            while ((ch = in.read()) >= 0) {
+                line.append((char) ch);
+                int length = line.length();
+                if (length >= 2 && line.charAt(length - 2) == '\r' && ch == '\n') {
+                    lines.add(line.substring(0, length - 2));
+                    line.setLength(0);
+                }
+            }
+            if (line.length() > 0) {
+                lines.add(line.toString());
+            }
+        }
+        return lines;
+    }
+
+    private static String sha256(Path file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte value : digest.digest()) {
+            hex.append(String.format("%02x", value));
+        }
+        return hex.toString();
+    }
+
+    private static String key(BusinessMode mode) {
+        return mode.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,95 @@
+package org.app.benchmark;
+
+import org.app.csv.CsvWriterMode;
+import org.app.csv.InvoiceCsvWriter;
+import org.app.model.InvoiceLine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Appends small runs of FAN-shaped lines to one CSV from 1, 4 and 16 threads, each committed on its own. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedCsvAppendBenchmark {
+    private static final BigDecimal VAT_RATE = BigDecimal.valueOf(21);
+    private static final BigDecimal PRICE_TIR = BigDecimal.valueOf(15);
+    private static final int LINES = 200;
+
+    @Param({"BYTE_LEVEL"})
+    public CsvWriterMode writerMode;
+
+    private InvoiceCsvWriter writer;
+    private List<InvoiceLine> lines;
+    private Path directory;
+    private Path csv;
+
+    @Setup
+    public void setUp() throws IOException {
+        writer = new InvoiceCsvWriter(writerMode);
+        lines = new ArrayList<>(LINES);
+        for (int i = 0; i < LINES / 2; i++) {
+            String mrn = String.format("25RO%012dM%d", 4_000_000L + i, i % 10);
+            lines.add(new InvoiceLine(1, "RO45827190", "FAN", "RON", "Prestatii H7",
+                    BigDecimal.valueOf(1 + i % 500), BigDecimal.ZERO, VAT_RATE, mrn));
+            lines.add(new InvoiceLine(1, "RO45827190", "FAN", "RON", "inregistrare carnet TIR",
+                    BigDecimal.ONE, PRICE_TIR, VAT_RATE, mrn));
+        }
+        directory = BenchmarkWorkbooks.newDirectory("shared-csv");
+        csv = directory.resolve("shared.csv");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetFile() throws IOException {
+        Files.deleteIfExists(csv);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkWorkbooks.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(LINES)
+    public Path oneProducer() throws IOException {
+        return writer.write(csv, lines);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(LINES)
+    public Path fourProducers() throws IOException {
+        return writer.write(csv, lines);
+    }
+
+    @Benchmark
+    @Threads(16)
+    @OperationsPerInvocation(LINES)
+    public Path sixteenProducers() throws IOException {
+        return writer.write(csv, lines);
+    }
+}
@@ -0,0 +1,128 @@
+package org.app.benchmark;
+
+import org.app.model.BusinessMode;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Measures cold starts of the jar with and without its AppCDS archive, to first paint and to a CSV. */
+public final class StartupCheck {
+    static final String FIRST_PAINT = "first-paint ";
+
+    private Path appJar;
+    private Path archive;
+    private int runs = 7;
+
+    private StartupCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        StartupCheck check = new StartupCheck();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--app-jar=")) {
+                check.appJar = Paths.get(value).toAbsolutePath();
+            } else if (arg.startsWith("--archive=")) {
+                check.archive = Paths.get(value).toAbsolutePath();
+            } else if (arg.startsWith("--runs=")) {
+                check.runs = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (check.appJar == null) {
+            System.out.println("Usage: StartupCheck --app-jar=target/facturare-csv-trendyol-1.1.jar "
+                    + "[--archive=PATH] [--runs=N]");
+            System.exit(1);
+        }
+        if (check.archive == null) {
+            String jarName = check.appJar.getFileName().toString();
+            check.archive = check.appJar.resolveSibling(jarName.replaceAll("\\.jar$", "") + ".jsa");
+        }
+        check.run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        Path directory = BenchmarkWorkbooks.newDirectory("startup");
+        Path workbook = new CustomsWorkbookGenerator(42L).write(directory.resolve("startup.xlsx"), 200);
+        List<List<String>> variants = new ArrayList<>();
+        variants.add(Collections.<String>emptyList());
+        if (Files.exists(archive)) {
+            variants.add(Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Xlog:cds=off"));
+        } else {
+            System.out.println("No AppCDS archive at " + archive + ", measuring without it only");
+        }
+
+        boolean headless = GraphicsEnvironment.isHeadless();
+        for (List<String> jvmOptions : variants) {
+            String label = jvmOptions.isEmpty() ? "without AppCDS" : "with AppCDS";
+            List<Long> firstCsv = new ArrayList<>();
+            List<Long> firstPaint = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                Path csv = directory.resolve("facturare-" + i + ".csv");
+                Files.deleteIfExists(csv);
+                Files.deleteIfExists(csv.resolveSibling(csv.getFileName() + ".mrn-index"));
+                long started = System.nanoTime();
+                launch(jvmOptions, appJar.toString(), "org.app.cli.ConsoleGenerator",
+                        BusinessMode.FAN.name(), workbook.toString(), csv.toString());
+                firstCsv.add((System.nanoTime() - started) / 1_000_000);
+                if (!headless) {
+                    String classPath = appJar + File.pathSeparator + System.getProperty("java.class.path");
+                    String report = launch(jvmOptions, classPath, FirstPaintProbe.class.getName());
+                    firstPaint.add(Long.parseLong(report.substring(FIRST_PAINT.length()).trim()));
+                }
+            }
+            System.out.printf("%-16s first CSV %6d ms   first paint %s%n", label, median(firstCsv),
+                    headless ? "skipped (headless)" : String.format("%6d ms", median(firstPaint)));
+        }
+        BenchmarkWorkbooks.deleteRecursively(directory);
+    }
+
+    /** Runs a class in a new JVM and returns its first {@link #FIRST_PAINT} output line, or an empty string. */
+    private static String launch(List<String> jvmOptions, String classPath, String mainClass, String... args)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String report = "";
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader lines = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            // read to the end so the child never blocks on a full pipe
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (report.isEmpty() && line.startsWith(FIRST_PAINT)) {
+                    report = line;
+                }
+                output.append(line).append(System.lineSeparator());
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IOException(mainClass + " exited with " + exitCode + ":" + System.lineSeparator() + output);
+        }
+        return report;
+    }
+
+    private static long median(List<Long> samples) {
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
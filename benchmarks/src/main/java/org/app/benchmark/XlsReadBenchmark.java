@@ -0,0 +1,47 @@
+package org.app.benchmark;
+
+import org.app.service.ExcelReadResult;
+import org.app.service.ExcelSourceReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Streams the first sheet of a legacy .xls workbook through {@link ExcelSourceReader}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class XlsReadBenchmark {
+    // a .xls sheet ends at 65,536 rows, so the largest size is a full sheet
+    @Param({"1000", "65535"})
+    public int rows;
+
+    private File workbook;
+    private ExcelSourceReader reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        workbook = BenchmarkWorkbooks.xls(rows);
+        reader = new ExcelSourceReader();
+    }
+
+    @Benchmark
+    public ExcelReadResult read(Blackhole blackhole) throws IOException {
+        return reader.read(workbook, BenchmarkWorkbooks.QUIET, blackhole::consume);
+    }
+}
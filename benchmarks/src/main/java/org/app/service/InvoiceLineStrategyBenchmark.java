@@ -0,0 +1,64 @@
+package org.app.service;
+
+import org.app.model.BusinessMode;
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+import org.app.model.SourceRow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Turns one source row into its invoice lines, as full {@link InvoiceLine}s and as shared templates. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvoiceLineStrategyBenchmark {
+    private static final int ROWS = 1024;
+
+    @Param({"FAN", "ASSET"})
+    public BusinessMode mode;
+
+    private InvoiceLineStrategy strategy;
+    private SourceRow[] rows;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        strategy = mode == BusinessMode.FAN ? new FanInvoiceLineStrategy() : new AssetInvoiceLineStrategy();
+        rows = new SourceRow[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new SourceRow(i + 2, String.format("25RO%012dM%d", 4_000_000L + i, i % 10),
+                    1 + i % 500, i % 7 == 0);
+        }
+    }
+
+    @Benchmark
+    public List<InvoiceLine> buildLines() {
+        return strategy.buildLines(nextRow());
+    }
+
+    @Benchmark
+    public List<InvoiceLineTemplate> linesFor() {
+        return strategy.linesFor(nextRow());
+    }
+
+    private SourceRow nextRow() {
+        SourceRow row = rows[next];
+        next = (next + 1) & (ROWS - 1);
+        return row;
+    }
+}
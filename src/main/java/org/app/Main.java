@@ -15,6 +15,7 @@ public class Main {
             }
             InvoiceGeneratorFrame frame = new InvoiceGeneratorFrame();
             frame.setVisible(true);
+            frame.warmUpInBackground();
         });
     }
 }
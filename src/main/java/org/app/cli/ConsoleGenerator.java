@@ -1,19 +1,165 @@
 package org.app.cli;
 
+import org.app.csv.CsvShardLimits;
+import org.app.csv.CsvWriterMode;
+import org.app.log.AsyncLogSink;
+import org.app.log.LogLevel;
+import org.app.log.LogSink;
 import org.app.model.BusinessMode;
+import org.app.service.ExcelReadOptions;
+import org.app.service.GenerationMetrics;
+import org.app.service.GenerationOptions;
+import org.app.service.GenerationSummary;
+import org.app.service.InboxWatcher;
 import org.app.service.InvoiceGenerationService;
+import org.app.service.InvoiceHttpServer;
+import org.app.service.SheetSelection;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class ConsoleGenerator {
+    private static final String GLOB_CHARACTERS = "*?[{";
+    private static final String DECODE_THREADS_OPTION = "--decode-threads=";
+    private static final String VERBOSE_OPTION = "--verbose";
+    private static final String ALLOW_DUPLICATES_OPTION = "--allow-duplicates";
+    private static final String SKIP_REPEATED_MRNS_OPTION = "--skip-repeated-mrns";
+    private static final String FAST_CSV_OPTION = "--fast-csv";
+    private static final String CACHED_FORMULAS_OPTION = "--cached-formulas";
+    private static final String WATCH_OPTION = "--watch";
+    private static final String CONSOLIDATE_OPTION = "--consolidate";
+    private static final String ROW_CACHE_OPTION = "--row-cache";
+    private static final String LOW_MEMORY_OPTION = "--low-memory";
+    private static final String ALL_SHEETS_OPTION = "--all-sheets";
+    private static final String SHEETS_OPTION = "--sheets=";
+    private static final String METRICS_JSON_OPTION = "--metrics-json";
+    private static final String SHARD_LINES_OPTION = "--shard-lines=";
+    private static final String SHARD_BYTES_OPTION = "--shard-bytes=";
+    private static final String SERVE_OPTION = "--serve";
+    private static final String SERVE_THREADS_OPTION = "--serve-threads=";
+    private static final String SERVE_QUEUE_OPTION = "--serve-queue=";
+    private static final long SHUTDOWN_WAIT_MILLIS = 30_000;
+    private static final int LOG_BUFFER_SIZE = 8192;
+
     private ConsoleGenerator() {
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] rawArgs) {
+        List<String> positional = new ArrayList<>();
+        GenerationOptions options = GenerationOptions.defaults();
+        LogLevel logLevel = LogLevel.WARN;
+        boolean watch = false;
+        int shardLines = 0;
+        long shardBytes = 0;
+        InetSocketAddress serveAddress = null;
+        int serveThreads = Runtime.getRuntime().availableProcessors();
+        int serveQueue = -1;
+        Consumer<GenerationMetrics> metricsReporter = metrics -> {
+        };
+        // where the log goes; stderr when stdout carries the metrics, so every stdout line stays one JSON object
+        PrintStream logOutput = System.out;
+        for (String arg : rawArgs) {
+            if (WATCH_OPTION.equals(arg)) {
+                watch = true;
+            } else if (VERBOSE_OPTION.equals(arg)) {
+                logLevel = LogLevel.DEBUG;
+            } else if (CACHED_FORMULAS_OPTION.equals(arg)) {
+                options = options.withReadOptions(options.getReadOptions().withCachedFormulaResults(true));
+            } else if (FAST_CSV_OPTION.equals(arg)) {
+                options = options.withCsvWriterMode(CsvWriterMode.BYTE_LEVEL);
+            } else if (ROW_CACHE_OPTION.equals(arg) || arg.startsWith(ROW_CACHE_OPTION + "=")) {
+                Path directory = arg.length() > ROW_CACHE_OPTION.length()
+                        ? Paths.get(arg.substring(ROW_CACHE_OPTION.length() + 1))
+                        : ExcelReadOptions.defaultRowCacheDirectory();
+                options = options.withReadOptions(options.getReadOptions()
+                        .withRowCache(directory, ExcelReadOptions.DEFAULT_ROW_CACHE_MAX_BYTES));
+            } else if (LOW_MEMORY_OPTION.equals(arg)) {
+                options = options.withReadOptions(options.getReadOptions()
+                        .withLowMemory(ExcelReadOptions.DEFAULT_LOW_MEMORY_MAX_ENTRY_BYTES));
+            } else if (arg.startsWith(LOW_MEMORY_OPTION + "=")) {
+                long maxEntryMegabytes = parseCount(arg, LOW_MEMORY_OPTION + "=");
+                options = options.withReadOptions(options.getReadOptions().withLowMemory(maxEntryMegabytes << 20));
+            } else if (METRICS_JSON_OPTION.equals(arg)) {
+                metricsReporter = metrics -> System.out.println(metrics.toJson());
+                logOutput = System.err;
+            } else if (arg.startsWith(METRICS_JSON_OPTION + "=")) {
+                Path metricsFile = Paths.get(arg.substring(METRICS_JSON_OPTION.length() + 1));
+                metricsReporter = metrics -> appendMetrics(metricsFile, metrics);
+                logOutput = System.out;
+            } else if (arg.startsWith(SHARD_LINES_OPTION)) {
+                shardLines = parseCount(arg, SHARD_LINES_OPTION);
+            } else if (arg.startsWith(SHARD_BYTES_OPTION)) {
+                shardBytes = parseCount(arg, SHARD_BYTES_OPTION);
+            } else if (SERVE_OPTION.equals(arg)) {
+                serveAddress = new InetSocketAddress(InvoiceHttpServer.DEFAULT_PORT);
+            } else if (arg.startsWith(SERVE_OPTION + "=")) {
+                serveAddress = parseServeAddress(arg);
+            } else if (arg.startsWith(SERVE_THREADS_OPTION)) {
+                serveThreads = parseCount(arg, SERVE_THREADS_OPTION);
+            } else if (arg.startsWith(SERVE_QUEUE_OPTION)) {
+                serveQueue = parseCount(arg, SERVE_QUEUE_OPTION);
+            } else if (CONSOLIDATE_OPTION.equals(arg)) {
+                options = options.withConsolidatedLines(true);
+            } else if (ALLOW_DUPLICATES_OPTION.equals(arg)) {
+                options = options.withMrnLedger(false);
+            } else if (SKIP_REPEATED_MRNS_OPTION.equals(arg)) {
+                options = options.withRepeatedMrnsSkipped(true);
+            } else if (ALL_SHEETS_OPTION.equals(arg)) {
+                options = options.withReadOptions(options.getReadOptions().withSheets(SheetSelection.allSheets()));
+            } else if (arg.startsWith(SHEETS_OPTION)) {
+                options = options.withReadOptions(options.getReadOptions().withSheets(parseSheets(arg)));
+            } else if (arg.startsWith(DECODE_THREADS_OPTION)) {
+                options = options.withReadOptions(
+                        options.getReadOptions().withParallelDecoding(parseCount(arg, DECODE_THREADS_OPTION)));
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (shardLines > 0 || shardBytes > 0) {
+            options = options.withCsvShards(CsvShardLimits.of(shardLines, shardBytes));
+        }
+        PrintStream console = logOutput;
+        Consumer<List<String>> printer = messages -> printBatch(console, messages);
+        if (serveAddress != null) {
+            int exitCode;
+            try (AsyncLogSink logger = new AsyncLogSink(printer, logLevel, LOG_BUFFER_SIZE)) {
+                exitCode = runServer(serveAddress, serveThreads, serveQueue >= 0 ? serveQueue : serveThreads * 4,
+                        options, metricsReporter, logger);
+            }
+            if (exitCode != 0) {
+                System.exit(exitCode);
+            }
+            return;
+        }
+        String[] args = positional.toArray(new String[0]);
         if (args.length < 2) {
-            System.out.println("Usage: ConsoleGenerator <FAN|ASSET> <excel-file> [output-csv]");
+            System.out.println("Usage: ConsoleGenerator [--verbose] [--decode-threads=N] [--cached-formulas] "
+                    + "[--all-sheets|--sheets=NAME,...] [--row-cache[=DIR]] [--low-memory[=MAX_PART_MB]] "
+                    + "[--shard-lines=N] [--shard-bytes=N] [--consolidate] [--allow-duplicates|--skip-repeated-mrns] "
+                    + "[--fast-csv] [--metrics-json[=FILE]] <FAN|ASSET> <excel-file|directory|glob> [output-csv]");
+            System.out.println("       ConsoleGenerator --watch [options] <FAN|ASSET> <inbox-directory> [output-csv]");
+            System.out.println("       ConsoleGenerator --serve[=[HOST:]PORT] [--serve-threads=N] [--serve-queue=N] "
+                    + "[options]");
+            System.out.println("Rows whose MRN the output CSV already holds are skipped, using an index kept in "
+                    + "<output-csv>.mrn-index;");
+            System.out.println("--allow-duplicates writes them anyway, --skip-repeated-mrns also skips an MRN "
+                    + "repeated within the run.");
             System.exit(1);
         }
 
@@ -26,20 +172,246 @@ public final class ConsoleGenerator {
             return;
         }
 
-        File excelFile = new File(args[1]);
-        Path outputCsv = args.length >= 3
-                ? Paths.get(args[2])
-                : defaultOutputPath(excelFile);
-        InvoiceGenerationService service = new InvoiceGenerationService();
+        String source = args[1];
+        int exitCode;
+        // console output is written by a background thread so row messages never stall the reader
+        try (AsyncLogSink logger = new AsyncLogSink(printer, logLevel, LOG_BUFFER_SIZE)) {
+            if (watch) {
+                exitCode = runWatch(mode, Paths.get(source), args.length >= 3 ? Paths.get(args[2]) : null,
+                        options, metricsReporter, logger);
+            } else if (isBatchSource(source)) {
+                exitCode = runBatch(mode, source, args.length >= 3 ? Paths.get(args[2]) : null, options,
+                        metricsReporter, logger);
+            } else {
+                exitCode = runSingle(mode, new File(source), args.length >= 3 ? Paths.get(args[2]) : null,
+                        options, metricsReporter, logger);
+            }
+        }
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    private static int runSingle(BusinessMode mode,
+                                 File excelFile,
+                                 Path outputOverride,
+                                 GenerationOptions options,
+                                 Consumer<GenerationMetrics> metricsReporter,
+                                 LogSink logger) {
+        Path outputCsv = outputOverride != null ? outputOverride : defaultOutputPath(excelFile);
+        InvoiceGenerationService service = new InvoiceGenerationService(options);
+        service.setMetricsListener(metricsReporter);
         try {
-            service.generate(excelFile, mode, outputCsv, System.out::println);
+            service.generate(excelFile, mode, outputCsv, logger);
+            return 0;
         } catch (Exception e) {
             System.err.println("Processing failed: " + e.getMessage());
             e.printStackTrace(System.err);
-            System.exit(3);
+            return 3;
+        }
+    }
+
+    private static int runBatch(BusinessMode mode,
+                                String source,
+                                Path outputOverride,
+                                GenerationOptions options,
+                                Consumer<GenerationMetrics> metricsReporter,
+                                LogSink logger) {
+        Path baseDir = batchBaseDirectory(source);
+        Path outputCsv = outputOverride != null ? outputOverride : baseDir.resolve("facturare.csv");
+        InvoiceGenerationService service = new InvoiceGenerationService(options);
+        service.setMetricsListener(metricsReporter);
+        try {
+            List<File> excelFiles = listWorkbooks(source, baseDir);
+            if (excelFiles.isEmpty()) {
+                System.err.println("No .xls or .xlsx files found in: " + source);
+                return 1;
+            }
+            int parallelism = Math.min(excelFiles.size(), Runtime.getRuntime().availableProcessors());
+            List<GenerationSummary> summaries =
+                    service.generateBatch(excelFiles, mode, outputCsv, parallelism, logger);
+            return summaries.stream().anyMatch(GenerationSummary::isFailed) ? 3 : 0;
+        } catch (Exception e) {
+            System.err.println("Processing failed: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return 3;
+        }
+    }
+
+    /** Runs until the JVM is asked to stop (Ctrl+C, SIGTERM); the workbook in progress is still finished. */
+    private static int runWatch(BusinessMode mode,
+                                Path inbox,
+                                Path outputOverride,
+                                GenerationOptions options,
+                                Consumer<GenerationMetrics> metricsReporter,
+                                LogSink logger) {
+        Path outputCsv = outputOverride != null ? outputOverride : inbox.resolve("facturare.csv");
+        // one service for the whole session, warmed up before watching so even the first workbook is fast
+        InvoiceGenerationService service = new InvoiceGenerationService(options);
+        service.setMetricsListener(metricsReporter);
+        InboxWatcher watcher = new InboxWatcher(service, mode, inbox, outputCsv, logger,
+                InboxWatcher.DEFAULT_SETTLE_MILLIS);
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                watcher.close();
+                mainThread.join(SHUTDOWN_WAIT_MILLIS);
+            } catch (IOException | InterruptedException ignored) {
+                // the JVM is going down either way
+            }
+        }, "inbox-shutdown"));
+        try {
+            service.warmUp();
+            watcher.run();
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (Exception e) {
+            System.err.println("Watching failed: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return 3;
         }
     }
 
+    /** Serves {@code POST /invoices} until the JVM is asked to stop. */
+    private static int runServer(InetSocketAddress address,
+                                 int threads,
+                                 int queue,
+                                 GenerationOptions options,
+                                 Consumer<GenerationMetrics> metricsReporter,
+                                 LogSink logger) {
+        InvoiceGenerationService service = new InvoiceGenerationService(options);
+        service.setMetricsListener(metricsReporter);
+        InvoiceHttpServer server = new InvoiceHttpServer(service, address, threads, queue,
+                InvoiceHttpServer.DEFAULT_MAX_UPLOAD_BYTES, logger);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            stopped.countDown();
+        }, "server-shutdown"));
+        try {
+            service.warmUp();
+            server.start();
+            stopped.await();
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (Exception e) {
+            System.err.println("Serving failed: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return 3;
+        }
+    }
+
+    /** Adds the run as one JSON line to the file, so a file collects the runs of a watch session or of a script. */
+    private static void appendMetrics(Path metricsFile, GenerationMetrics metrics) {
+        try {
+            Files.write(metricsFile, Collections.singletonList(metrics.toJson()),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Metrics could not be written to " + metricsFile + ": " + e.getMessage());
+        }
+    }
+
+    private static void printBatch(PrintStream console, List<String> messages) {
+        StringBuilder text = new StringBuilder(messages.size() * 64);
+        for (String message : messages) {
+            text.append(message).append(System.lineSeparator());
+        }
+        console.print(text);
+        console.flush();
+    }
+
+    private static int parseCount(String arg, String option) {
+        try {
+            return Integer.parseInt(arg.substring(option.length()).trim());
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid number in option: " + arg);
+            System.exit(2);
+            return 0;
+        }
+    }
+
+    private static InetSocketAddress parseServeAddress(String arg) {
+        String value = arg.substring(SERVE_OPTION.length() + 1).trim();
+        int colon = value.lastIndexOf(':');
+        try {
+            int port = Integer.parseInt(value.substring(colon + 1));
+            return colon < 0 ? new InetSocketAddress(port) : new InetSocketAddress(value.substring(0, colon), port);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid address in option: " + arg);
+            System.exit(2);
+            return null;
+        }
+    }
+
+    private static SheetSelection parseSheets(String arg) {
+        try {
+            return SheetSelection.named(Arrays.asList(arg.substring(SHEETS_OPTION.length()).split(",")));
+        } catch (IllegalArgumentException ex) {
+            System.err.println("No sheet names in option: " + arg);
+            System.exit(2);
+            return null;
+        }
+    }
+
+    private static boolean isBatchSource(String source) {
+        return Files.isDirectory(Paths.get(source)) || globStart(source) >= 0;
+    }
+
+    private static int globStart(String source) {
+        for (int i = 0; i < source.length(); i++) {
+            if (GLOB_CHARACTERS.indexOf(source.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** The directory itself, or for a glob the deepest directory that precedes the first wildcard. */
+    private static Path batchBaseDirectory(String source) {
+        int globStart = globStart(source);
+        if (globStart < 0) {
+            return Paths.get(source).toAbsolutePath().normalize();
+        }
+        String prefix = source.substring(0, globStart);
+        int lastSeparator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+        String directory = lastSeparator >= 0 ? prefix.substring(0, lastSeparator + 1) : "";
+        return Paths.get(directory.isEmpty() ? System.getProperty("user.dir") : directory).toAbsolutePath().normalize();
+    }
+
+    private static List<File> listWorkbooks(String source, Path baseDir) throws IOException {
+        int globStart = globStart(source);
+        if (globStart < 0) {
+            try (Stream<Path> entries = Files.list(baseDir)) {
+                return entries.filter(ConsoleGenerator::isWorkbook)
+                        .map(Path::toFile)
+                        .collect(Collectors.toList());
+            }
+        }
+
+        String prefix = source.substring(0, globStart);
+        int lastSeparator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+        String pattern = source.substring(lastSeparator + 1);
+        PathMatcher matcher = baseDir.getFileSystem().getPathMatcher("glob:" + pattern);
+        try (Stream<Path> entries = Files.walk(baseDir)) {
+            return entries.filter(ConsoleGenerator::isWorkbook)
+                    .filter(path -> matcher.matches(baseDir.relativize(path)))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isWorkbook(Path path) {
+        String lowerName = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        // "~$" files are the lock files Excel keeps next to open workbooks
+        return Files.isRegularFile(path)
+                && !lowerName.startsWith("~$")
+                && (lowerName.endsWith(".xls") || lowerName.endsWith(".xlsx"));
+    }
+
     private static Path defaultOutputPath(File excelFile) {
         Path excelPath = excelFile.toPath().toAbsolutePath().normalize();
         Path parent = excelPath.getParent();
@@ -0,0 +1,21 @@
+package org.app.cli;
+
+import org.app.csv.CsvWriterMode;
+import org.app.service.GenerationOptions;
+import org.app.service.InvoiceGenerationService;
+
+import java.io.IOException;
+
+/** The training run behind the AppCDS archive: touches the classes a real session loads. */
+public final class StartupTraining {
+    private StartupTraining() {
+    }
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        new InvoiceGenerationService().warmUp();
+        new InvoiceGenerationService(GenerationOptions.defaults().withCsvWriterMode(CsvWriterMode.BYTE_LEVEL))
+                .warmUp();
+        Class.forName("org.app.ui.InvoiceGeneratorFrame");
+        Class.forName("org.app.Main");
+    }
+}
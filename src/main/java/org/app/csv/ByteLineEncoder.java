@@ -0,0 +1,256 @@
+package org.app.csv;
+
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** Encodes records straight to UTF-8 in a direct buffer that is written to the channel whenever it fills up. */
+final class ByteLineEncoder implements CsvLineEncoder {
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int MAX_CACHED_FRAGMENTS = 1024;
+    private static final byte COMMA = ',';
+    private static final byte QUOTE = '"';
+    private static final byte[] EMPTY_FIRST_FIELD = {QUOTE, QUOTE};
+    private static final byte[] EMPTY_SERIAL_FIELD = ",,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUC = ",BUC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_END = ",,\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RECORD_SEPARATOR = {'\r', '\n'};
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+    private final Map<Object, byte[]> fragments = new IdentityHashMap<>();
+    private final Map<InvoiceLineTemplate, TemplateFragments> templates = new IdentityHashMap<>();
+
+    ByteLineEncoder(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                put(COMMA);
+            }
+            putField(columns[i], i == 0);
+        }
+        put(RECORD_SEPARATOR);
+    }
+
+    @Override
+    public void writeLine(InvoiceLine line, boolean includeCustomerFields) throws IOException {
+        putField(line.getNrCrt().toString(), true);
+        put(COMMA);
+        if (includeCustomerFields) {
+            putConstant(line.getCustomerTaxCode());
+            put(COMMA);
+            putConstant(line.getCustomerName());
+        } else {
+            put(COMMA);
+        }
+        put(COMMA);
+        putConstant(line.getDeviz());
+        put(COMMA);
+        putConstant(line.getProductDescription());
+        put(EMPTY_SERIAL_FIELD);
+        putNumber(line.getQuantity());
+        put(BUC);
+        put(COMMA);
+        putConstant(line.getPriceWithoutVat());
+        put(COMMA);
+        putConstant(line.getVatRate());
+        put(COMMA);
+        putField(line.getProductNote(), false);
+        put(LINE_END);
+    }
+
+    @Override
+    public void writeLine(InvoiceLineTemplate template,
+                          int quantity,
+                          String productNote,
+                          boolean includeCustomerFields) throws IOException {
+        if (includeCustomerFields) {
+            // only the first line of a new file carries the customer, not worth caching
+            writeLine(template.toInvoiceLine(quantity, productNote), true);
+            return;
+        }
+        TemplateFragments encoded = templates.get(template);
+        if (encoded == null) {
+            encoded = new TemplateFragments(template);
+            templates.put(template, encoded);
+        }
+        put(encoded.beforeQuantity);
+        putLong(quantity);
+        put(encoded.beforeNote);
+        putField(productNote, false);
+        put(LINE_END);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Copies the cached encoding of a field value that is not the first of its record. */
+    private void putConstant(Object value) throws IOException {
+        byte[] encoded = fragments.get(value);
+        if (encoded == null) {
+            if (fragments.size() >= MAX_CACHED_FRAGMENTS) {
+                // the values are not constants after all; keep the cache from growing with the file
+                fragments.clear();
+            }
+            String text = value instanceof BigDecimal ? formatNumber((BigDecimal) value) : String.valueOf(value);
+            encoded = encode(text, false);
+            fragments.put(value, encoded);
+        }
+        put(encoded);
+    }
+
+    private void putNumber(BigDecimal number) throws IOException {
+        if (number.scale() == 0 && number.precision() <= 18) {
+            // whole numbers print as their digits, which stripTrailingZeros().toPlainString() also yields
+            putLong(number.longValue());
+        } else {
+            putField(formatNumber(number), false);
+        }
+    }
+
+    private void putLong(long value) throws IOException {
+        ensureRemaining(20);
+        if (value < 0) {
+            buffer.put((byte) '-');
+        } else {
+            value = -value;
+        }
+        // digits are produced on the negative side so Long.MIN_VALUE needs no special case
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' - (value % 10)));
+            value /= 10;
+        } while (value != 0);
+        for (int left = start, right = buffer.position() - 1; left < right; left++, right--) {
+            byte digit = buffer.get(left);
+            buffer.put(left, buffer.get(right));
+            buffer.put(right, digit);
+        }
+    }
+
+    private void putField(String value, boolean firstInRecord) throws IOException {
+        int length = value.length();
+        if (length > 0 && length <= BUFFER_BYTES && isPlainAscii(value)) {
+            ensureRemaining(length);
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+            return;
+        }
+        put(encode(value, firstInRecord));
+    }
+
+    /** Whether the value is ASCII and needs no quotes; the rules are those of {@code QuoteMode.MINIMAL}. */
+    private static boolean isPlainAscii(String value) {
+        if (value.charAt(0) <= '#' || value.charAt(value.length() - 1) <= ' ') {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch >= 0x80 || ch == ',' || ch == '"' || ch == '\r' || ch == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] encode(String value, boolean firstInRecord) throws IOException {
+        if (value.isEmpty()) {
+            // an empty first field is quoted, otherwise an empty record would read as no record at all
+            return firstInRecord ? EMPTY_FIRST_FIELD : new byte[0];
+        }
+        String text = needsQuotes(value) ? '"' + value.replace("\"", "\"\"") + '"' : value;
+        ByteBuffer encoded = utf8.encode(CharBuffer.wrap(text));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return bytes;
+    }
+
+    private static boolean needsQuotes(String value) {
+        if (value.charAt(0) <= '#' || value.charAt(value.length() - 1) <= ' ') {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == ',' || ch == '"' || ch == '\r' || ch == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void put(byte value) throws IOException {
+        ensureRemaining(1);
+        buffer.put(value);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > BUFFER_BYTES) {
+            flush();
+            ByteBuffer large = ByteBuffer.wrap(bytes);
+            while (large.hasRemaining()) {
+                channel.write(large);
+            }
+            return;
+        }
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private static String formatNumber(BigDecimal number) {
+        return number.stripTrailingZeros().toPlainString();
+    }
+
+    /** A template's line without customer fields, split around the two values that change from row to row. */
+    private final class TemplateFragments {
+        private final byte[] beforeQuantity;
+        private final byte[] beforeNote;
+
+        TemplateFragments(InvoiceLineTemplate template) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            bytes.write(encode(template.getNrCrt().toString(), true));
+            bytes.write(",,,".getBytes(StandardCharsets.US_ASCII));
+            bytes.write(encode(template.getDeviz(), false));
+            bytes.write(COMMA);
+            bytes.write(encode(template.getProductDescription(), false));
+            bytes.write(EMPTY_SERIAL_FIELD);
+            beforeQuantity = bytes.toByteArray();
+
+            bytes.reset();
+            bytes.write(BUC);
+            bytes.write(COMMA);
+            bytes.write(encode(formatNumber(template.getPriceWithoutVat()), false));
+            bytes.write(COMMA);
+            bytes.write(encode(formatNumber(template.getVatRate()), false));
+            bytes.write(COMMA);
+            beforeNote = bytes.toByteArray();
+        }
+    }
+}
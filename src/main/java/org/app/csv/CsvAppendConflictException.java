@@ -0,0 +1,18 @@
+package org.app.csv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** Thrown by a commit when another run committed some of its MRNs to the same CSV first. */
+public class CsvAppendConflictException extends IOException {
+    private final Path path;
+
+    public CsvAppendConflictException(Path path) {
+        super("Another run invoiced some of these MRNs in " + path + " meanwhile");
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,340 @@
+package org.app.csv;
+
+import org.app.model.BusinessMode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/** Owns the appends to one single-file CSV in this process, and its MRN ledger. */
+final class CsvAppendCoordinator {
+    private static final Map<Path, CsvAppendCoordinator> COORDINATORS = new HashMap<>();
+
+    private final Path path;
+    // one group at a time, and the only holder of the FileLock in this process unless a run streams
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition streamEnded = commitLock.newCondition();
+    private final List<CsvBatch> waiting = new ArrayList<>();
+    private int users;
+    // guarded by commitLock: the open appenders, and the FileLock of the run that streams, if one does
+    private int appenders;
+    private FileLock streamLock;
+    private FileChannel channel;
+    private volatile MrnLedgerFile ledger;
+
+    private CsvAppendCoordinator(Path path) {
+        this.path = path;
+    }
+
+    /** The coordinator of the CSV, shared by every appender and ledger of it that is open; release it when done. */
+    static CsvAppendCoordinator acquire(Path csvPath) throws IOException {
+        Path absolute = csvPath.toAbsolutePath().normalize();
+        Path parent = absolute.getParent();
+        Path key = parent != null && Files.isDirectory(parent)
+                ? parent.toRealPath().resolve(absolute.getFileName())
+                : absolute;
+        synchronized (COORDINATORS) {
+            CsvAppendCoordinator coordinator = COORDINATORS.computeIfAbsent(key, CsvAppendCoordinator::new);
+            coordinator.users++;
+            return coordinator;
+        }
+    }
+
+    /** Closes the CSV and the ledger once no appender or ledger uses them any more. */
+    void release() throws IOException {
+        synchronized (COORDINATORS) {
+            if (--users > 0) {
+                return;
+            }
+            COORDINATORS.remove(path);
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                if (ledger != null) {
+                    ledger.close();
+                }
+            }
+        }
+    }
+
+    /** Whether the CSV has lines, which a batch committed now would be appended to. */
+    boolean hasLines() throws IOException {
+        return Files.exists(path) && Files.size(path) > 0;
+    }
+
+    /** Opens the ledger on first use, or catches it up with what other processes appended since. */
+    MrnLedgerFile openLedger(Function<String, BusinessMode> lineModes) throws IOException {
+        commitLock.lock();
+        try {
+            if (streamLock != null && ledger != null) {
+                // nobody else writes while a run streams, and its lines are not the ledger's before it commits
+                return ledger;
+            }
+            awaitStreamEnd();
+            FileLock lock = channel().lock();
+            try {
+                if (ledger == null) {
+                    ledger = MrnLedgerFile.open(path, false, lineModes);
+                } else {
+                    ledger.synchronize();
+                }
+                return ledger;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Commits MRNs recorded without lines of their own through an appender. */
+    void commitLedger(MrnLedgerFile.FingerprintSet fingerprints) throws IOException {
+        commitLock.lock();
+        try {
+            awaitStreamEnd();
+            FileLock lock = channel().lock();
+            try {
+                ledger.synchronize();
+                ledger.commit(fingerprints);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Hands the batch over and returns once a group commit wrote it, this run's or another's. */
+    void commit(CsvBatch batch) throws IOException {
+        synchronized (waiting) {
+            waiting.add(batch);
+        }
+        commitLock.lock();
+        try {
+            awaitStreamEnd();
+            if (!batch.isSettled()) {
+                List<CsvBatch> group;
+                synchronized (waiting) {
+                    group = new ArrayList<>(waiting);
+                    waiting.clear();
+                }
+                writeGroup(group);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        batch.rethrowFailure();
+    }
+
+    /** Registers an appender of the CSV. */
+    long openAppender() throws IOException {
+        commitLock.lock();
+        try {
+            if (appenders++ > 0) {
+                return -1L;
+            }
+            FileChannel csv = channel();
+            FileLock lock = csv.tryLock();
+            if (lock == null) {
+                return -1L;
+            }
+            try {
+                if (ledger != null) {
+                    // what other processes appended since the run opened the ledger
+                    ledger.synchronize();
+                }
+                long start = csv.size();
+                csv.position(start);
+                streamLock = lock;
+                return start;
+            } catch (IOException | RuntimeException e) {
+                lock.release();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            appenders--;
+            throw e;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    void closeAppender() {
+        commitLock.lock();
+        try {
+            appenders--;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** The CSV a streaming appender writes to, at the end it had when the stream started. */
+    FileChannel streamChannel() {
+        return channel;
+    }
+
+    /** Forces the streamed lines to disk, records their MRNs and lets other runs write again. */
+    String commitStream(MrnLedger runLedger) throws IOException {
+        commitLock.lock();
+        try {
+            channel.force(true);
+            String warning = null;
+            if (runLedger != null && !runLedger.getStaged().isEmpty()) {
+                warning = recordLines(runLedger.getStaged(), channel.size());
+                runLedger.getStaged().clear();
+            }
+            endStream();
+            return warning;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Cuts the CSV back to where the stream started and lets other runs write again. */
+    void abortStream(long start) throws IOException {
+        commitLock.lock();
+        try {
+            channel.truncate(start);
+        } finally {
+            try {
+                endStream();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    private void endStream() throws IOException {
+        FileLock lock = streamLock;
+        streamLock = null;
+        streamEnded.signalAll();
+        lock.release();
+    }
+
+    /** Waits, holding the commit lock, until no run streams; it has the CSV locked until then. */
+    private void awaitStreamEnd() {
+        while (streamLock != null) {
+            streamEnded.awaitUninterruptibly();
+        }
+    }
+
+    private void writeGroup(List<CsvBatch> group) {
+        List<CsvBatch> accepted = new ArrayList<>(group.size());
+        try {
+            FileChannel csv = channel();
+            FileLock lock = csv.lock();
+            try {
+                MrnLedgerFile.FingerprintSet recorded = new MrnLedgerFile.FingerprintSet();
+                boolean unrecorded = false;
+                if (ledger != null) {
+                    ledger.synchronize();
+                }
+                for (CsvBatch batch : group) {
+                    MrnLedger batchLedger = batch.getLedger();
+                    if (batchLedger == null) {
+                        unrecorded = true;
+                    } else if (conflicts(batchLedger.getStaged(), recorded)) {
+                        batch.fail(new CsvAppendConflictException(path));
+                        continue;
+                    } else {
+                        recorded.addAll(batchLedger.getStaged());
+                    }
+                    accepted.add(batch);
+                }
+                long start = csv.size();
+                writeBatches(csv, accepted, start);
+                for (CsvBatch batch : accepted) {
+                    if (batch.getLedger() != null) {
+                        batch.getLedger().getStaged().clear();
+                    }
+                }
+                if (ledger != null && !recorded.isEmpty()) {
+                    // lines of runs without a ledger are read back by the next synchronization
+                    String warning = recordLines(recorded, unrecorded ? start : csv.size());
+                    for (CsvBatch batch : accepted) {
+                        batch.setLedgerWarning(warning);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            // batches settled before this are on disk and stand
+            IOException failure = e instanceof IOException ? (IOException) e
+                    : new IOException("Could not append to " + path + ": " + e.getMessage(), e);
+            for (CsvBatch batch : group) {
+                if (!batch.isSettled()) {
+                    batch.fail(failure);
+                }
+            }
+        }
+    }
+
+    /** Records the MRNs of lines already on disk. */
+    private String recordLines(MrnLedgerFile.FingerprintSet recorded, long knownLength) {
+        try {
+            ledger.commit(recorded, knownLength);
+            return null;
+        } catch (RuntimeException | InternalError e) {
+            // a mapped ledger on a full disk fails with an InternalError on the first write to a new page
+            return String.format("The lines are in %s, but its MRN index could not be updated (%s); "
+                            + "the next run reads their MRNs back from the CSV",
+                    path, e.getMessage() == null ? e : e.getMessage());
+        }
+    }
+
+    /** Writes the batches at the end of the CSV and forces them; on failure cuts the CSV back. */
+    private void writeBatches(FileChannel csv, List<CsvBatch> batches, long start) throws IOException {
+        try {
+            csv.position(start);
+            List<ByteBuffer> pending = new ArrayList<>();
+            boolean newFile = start == 0;
+            for (CsvBatch batch : batches) {
+                batch.writeTo(csv, pending, newFile);
+                newFile = false;
+            }
+            CsvBatch.writePending(csv, pending);
+            csv.force(true);
+        } catch (IOException | RuntimeException e) {
+            csv.truncate(start);
+            throw e;
+        }
+        boolean newFile = start == 0;
+        for (CsvBatch batch : batches) {
+            batch.settle(!newFile);
+            newFile = false;
+        }
+    }
+
+    private boolean conflicts(MrnLedgerFile.FingerprintSet staged, MrnLedgerFile.FingerprintSet recorded) {
+        boolean[] conflict = new boolean[1];
+        staged.forEach(fingerprint -> {
+            if (!conflict[0] && (recorded.contains(fingerprint) || ledger.contains(fingerprint))) {
+                conflict[0] = true;
+            }
+        });
+        return conflict[0];
+    }
+
+    /** The CSV, opened on first use; created empty if missing, as locking needs it writable. */
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+}
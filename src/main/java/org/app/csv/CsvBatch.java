@@ -0,0 +1,175 @@
+package org.app.csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/** The encoded lines of one run until their group is written, on the heap or in a temporary file. */
+final class CsvBatch implements WritableByteChannel {
+    static final int SPILL_BYTES = 8 << 20;
+    private static final int INITIAL_BYTES = 1 << 13;
+
+    private final MrnLedger ledger;
+    private byte[] bytes = new byte[INITIAL_BYTES];
+    private int length;
+    private Path spillPath;
+    private FileChannel spill;
+    private long spilledLength;
+    private long newFileEnd = -1L;
+    private long restStart = -1L;
+    private boolean open = true;
+    // settled by the group commit that takes the batch, under the coordinator's lock
+    private boolean settled;
+    private boolean appended;
+    private IOException failure;
+    private String ledgerWarning;
+
+    CsvBatch(MrnLedger ledger) {
+        this.ledger = ledger;
+    }
+
+    /** The ledger whose recorded MRNs are committed with the lines, or {@code null}. */
+    MrnLedger getLedger() {
+        return ledger;
+    }
+
+    /** Marks the end of the header and first line; up to {@link #markRestStart()} only an existing CSV gets. */
+    void markNewFileEnd() {
+        newFileEnd = size();
+    }
+
+    void markRestStart() {
+        restStart = size();
+    }
+
+    long size() {
+        return spill != null ? spilledLength : length;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int count = source.remaining();
+        if (spill == null && length + (long) count > SPILL_BYTES) {
+            startSpilling();
+        }
+        if (spill != null) {
+            while (source.hasRemaining()) {
+                spill.write(source);
+            }
+            spilledLength += count;
+            return count;
+        }
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + count, Math.min(bytes.length * 2, SPILL_BYTES)));
+        }
+        source.get(bytes, length, count);
+        length += count;
+        return count;
+    }
+
+    /** Adds the batch to its group's write: heap bytes to {@code pending}, spilled bytes after them. */
+    void writeTo(FileChannel csv, List<ByteBuffer> pending, boolean newFile) throws IOException {
+        long firstStart = newFile ? 0L : newFileEnd;
+        long firstEnd = newFile ? newFileEnd : restStart;
+        long end = size();
+        if (spill == null) {
+            pending.add(ByteBuffer.wrap(bytes, (int) firstStart, (int) (firstEnd - firstStart)));
+            pending.add(ByteBuffer.wrap(bytes, (int) restStart, (int) (end - restStart)));
+            return;
+        }
+        writePending(csv, pending);
+        transfer(csv, firstStart, firstEnd);
+        transfer(csv, restStart, end);
+    }
+
+    /** Writes the pending buffers at the channel's position in as few calls as the system allows. */
+    static void writePending(FileChannel csv, List<ByteBuffer> pending) throws IOException {
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= csv.write(buffers);
+        }
+        pending.clear();
+    }
+
+    void settle(boolean appendedToExisting) {
+        settled = true;
+        appended = appendedToExisting;
+    }
+
+    void fail(IOException cause) {
+        settled = true;
+        failure = cause;
+    }
+
+    /** Notes that the batch is on disk but the ledger did not record its MRNs. */
+    void setLedgerWarning(String warning) {
+        ledgerWarning = warning;
+    }
+
+    String getLedgerWarning() {
+        return ledgerWarning;
+    }
+
+    boolean isSettled() {
+        return settled;
+    }
+
+    boolean wasAppended() {
+        return appended;
+    }
+
+    /** Throws what kept the batch out of the CSV, if anything did. */
+    void rethrowFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /** Drops the lines and the temporary file, if there is one. */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        bytes = null;
+        if (spill != null) {
+            try {
+                spill.close();
+            } finally {
+                Files.deleteIfExists(spillPath);
+            }
+        }
+    }
+
+    private void startSpilling() throws IOException {
+        spillPath = Files.createTempFile("facturare-batch", ".csv");
+        spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer held = ByteBuffer.wrap(bytes, 0, length);
+        while (held.hasRemaining()) {
+            spill.write(held);
+        }
+        spilledLength = length;
+        bytes = null;
+        length = 0;
+    }
+
+    private void transfer(FileChannel csv, long start, long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            position += spill.transferTo(position, end - position, csv);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.app.csv;
+
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/** Writes CSV records to a channel, the file of an appender or a buffer. */
+interface CsvLineEncoder {
+    static CsvLineEncoder create(CsvWriterMode mode, WritableByteChannel channel) throws IOException {
+        return mode == CsvWriterMode.BYTE_LEVEL ? new ByteLineEncoder(channel) : new PrinterLineEncoder(channel);
+    }
+
+    void writeHeader(String[] columns) throws IOException;
+
+    void writeLine(InvoiceLine line, boolean includeCustomerFields) throws IOException;
+
+    void writeLine(InvoiceLineTemplate template, int quantity, String productNote, boolean includeCustomerFields)
+            throws IOException;
+
+    /** Hands everything written so far to the channel. */
+    void flush() throws IOException;
+}
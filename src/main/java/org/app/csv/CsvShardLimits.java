@@ -0,0 +1,42 @@
+package org.app.csv;
+
+/** When {@link InvoiceCsvWriter} rolls over to the next CSV shard: after lines, bytes or both. */
+public final class CsvShardLimits {
+    private final int maxLines;
+    private final long maxBytes;
+
+    private CsvShardLimits(int maxLines, long maxBytes) {
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Limits of {@code maxLines} invoice lines and {@code maxBytes} bytes per shard, {@code 0} for none. */
+    public static CsvShardLimits of(int maxLines, long maxBytes) {
+        if (maxLines < 0 || maxBytes < 0 || (maxLines == 0 && maxBytes == 0)) {
+            throw new IllegalArgumentException("A shard needs a positive line or byte limit: "
+                    + maxLines + " lines, " + maxBytes + " bytes");
+        }
+        return new CsvShardLimits(maxLines, maxBytes);
+    }
+
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Whether a shard of {@code lines} lines and {@code bytes} bytes takes a line of {@code lineBytes}. */
+    boolean fits(int lines, long bytes, int lineBytes) {
+        if (lines == 0) {
+            return true;
+        }
+        return (maxLines == 0 || lines < maxLines) && (maxBytes == 0 || bytes + lineBytes <= maxBytes);
+    }
+
+    @Override
+    public String toString() {
+        return maxLines + " lines, " + maxBytes + " bytes";
+    }
+}
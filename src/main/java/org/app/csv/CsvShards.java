@@ -0,0 +1,31 @@
+package org.app.csv;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** Names the shards of a CSV: {@code facturare.csv} is written as {@code facturare-0001.csv} and so on. */
+final class CsvShards {
+    private CsvShards() {
+    }
+
+    static Path shardPath(Path csvPath, int number) {
+        String name = csvPath.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        String stem = extension > 0 ? name.substring(0, extension) : name;
+        String suffix = extension > 0 ? name.substring(extension) : "";
+        return csvPath.resolveSibling(String.format(Locale.ROOT, "%s-%04d%s", stem, number, suffix));
+    }
+
+    /** The shards written so far, in order. */
+    static List<Path> existing(Path csvPath) {
+        List<Path> shards = new ArrayList<>();
+        Path shard;
+        while (Files.exists(shard = shardPath(csvPath, shards.size() + 1))) {
+            shards.add(shard);
+        }
+        return shards;
+    }
+}
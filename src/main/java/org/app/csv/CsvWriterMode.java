@@ -0,0 +1,9 @@
+package org.app.csv;
+
+/** How {@link InvoiceCsvAppender} turns invoice lines into CSV text. */
+public enum CsvWriterMode {
+    /** Every field goes through Commons CSV's printer. */
+    STANDARD,
+    /** Fields encoded straight to UTF-8, with the strategies' constant fields encoded once. */
+    BYTE_LEVEL
+}
@@ -0,0 +1,46 @@
+package org.app.csv;
+
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+import org.app.model.SourceRow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/** Writes invoice lines to the output CSV as they are produced. */
+public interface InvoiceCsvAppender extends Closeable {
+    void append(InvoiceLine line) throws IOException;
+
+    /** Appends the line {@code template} describes for {@code row} without building an {@link InvoiceLine}. */
+    void append(InvoiceLineTemplate template, SourceRow row) throws IOException;
+
+    /** Flushes and closes the output, keeping every appended line. */
+    void commit() throws IOException;
+
+    /** Closes the output; without a prior {@link #commit()} the lines written so far are discarded. */
+    @Override
+    void close() throws IOException;
+
+    /** The CSV the appender was opened for; with shards, the name they are numbered after. */
+    Path getPath();
+
+    /** Whether the lines go after lines an earlier run wrote. */
+    boolean isAppending();
+
+    int getLineCount();
+
+    /** Whether {@link #commit()} can fail with a {@link CsvAppendConflictException}. */
+    default boolean mayConflict() {
+        return false;
+    }
+
+    /** After {@link #commit()}, a problem that cost no line, for the run to report, or {@code null}. */
+    default String getCommitWarning() {
+        return null;
+    }
+
+    /** The files the lines go to, in order: the CSV itself, or the shards this appender wrote to. */
+    List<Path> getFiles();
+}
@@ -1,78 +1,81 @@
 package org.app.csv;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.app.model.InvoiceLine;
 
 import java.io.IOException;
-import java.io.Writer;
-import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.Objects;
 
 public class InvoiceCsvWriter {
-    private static final CSVFormat CSV_FORMAT = CSVFormat.DEFAULT.builder()
-            .setHeader(
-                    "nr.crt",
-                    "CIF/CNP",
-                    "den. client",
-                    "deviz",
-                    "Produs",
-                    "Serie produs",
-                    "Cant",
-                    "UM",
-                    "Pret FTVA",
-                    "cota TVA",
-                    "nota produs",
-                    "scutit TVA (0/1)",
-                    "motiv scutire TVA"
-            ).build();
+    private static final String[] HEADER = {
+            "nr.crt",
+            "CIF/CNP",
+            "den. client",
+            "deviz",
+            "Produs",
+            "Serie produs",
+            "Cant",
+            "UM",
+            "Pret FTVA",
+            "cota TVA",
+            "nota produs",
+            "scutit TVA (0/1)",
+            "motiv scutire TVA"
+    };
+
+    private final CsvWriterMode mode;
+    private final CsvShardLimits shardLimits;
+
+    public InvoiceCsvWriter() {
+        this(CsvWriterMode.STANDARD);
+    }
+
+    public InvoiceCsvWriter(CsvWriterMode mode) {
+        this(mode, null);
+    }
+
+    /** With {@code shardLimits}, lines go to numbered shards next to the output path; {@code null} writes one CSV. */
+    public InvoiceCsvWriter(CsvWriterMode mode, CsvShardLimits shardLimits) {
+        this.mode = Objects.requireNonNull(mode, "mode");
+        this.shardLimits = shardLimits;
+    }
 
     public Path write(Path outputPath, List<InvoiceLine> lines) throws IOException {
-        Path absolute = outputPath.toAbsolutePath();
+        try (InvoiceCsvAppender appender = open(outputPath)) {
+            for (InvoiceLine line : lines) {
+                appender.append(line);
+            }
+            appender.commit();
+            return appender.getPath();
+        }
+    }
+
+    /** Opens the CSV for streaming: a new or empty file gets the header, an existing one is appended to. */
+    public InvoiceCsvAppender open(Path outputPath) throws IOException {
+        return open(outputPath, null);
+    }
+
+    /** Opens the CSV for streaming and commits {@code ledger}'s recorded MRNs with the lines. */
+    public InvoiceCsvAppender open(Path outputPath, MrnLedger ledger) throws IOException {
+        Path absolute = outputPath.toAbsolutePath().normalize();
         Path parent = absolute.getParent();
         if (parent != null && !Files.exists(parent)) {
             Files.createDirectories(parent);
         }
+        return shardLimits == null
+                ? new SingleFileCsvAppender(absolute, HEADER, mode, ledger)
+                : new ShardedCsvAppender(absolute, HEADER, mode, shardLimits, ledger);
+    }
 
-        boolean append = Files.exists(absolute) && Files.size(absolute) > 0;
-        CSVFormat format = append ? CSVFormat.DEFAULT : CSV_FORMAT;
-        StandardOpenOption[] options = append
-                ? new StandardOpenOption[]{StandardOpenOption.APPEND}
-                : new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING};
-
-        try (Writer writer = Files.newBufferedWriter(absolute, StandardCharsets.UTF_8, options);
-             CSVPrinter printer = new CSVPrinter(writer, format)) {
-            int rowIndex = 0;
-            for (InvoiceLine line : lines) {
-                boolean includeCustomerFields = !append && rowIndex == 0;
-                String customerTaxCode = includeCustomerFields ? line.getCustomerTaxCode() : "";
-                String customerName = includeCustomerFields ? line.getCustomerName() : "";
-                rowIndex++;
-                printer.printRecord(
-                        line.getNrCrt(),
-                        customerTaxCode == null ? "" : customerTaxCode,
-                        customerName == null ? "" : customerName,
-                        line.getDeviz(),
-                        line.getProductDescription(),
-                        "",
-                        formatNumber(line.getQuantity()),
-                        "BUC",
-                        formatNumber(line.getPriceWithoutVat()),
-                        formatNumber(line.getVatRate()),
-                        line.getProductNote(),
-                        "",
-                        ""
-                );
-            }
-        }
-        return absolute;
+    /** Opens a new CSV written to {@code out} as the lines come, header first. */
+    public InvoiceCsvAppender open(OutputStream out) throws IOException {
+        return new StreamCsvAppender(Objects.requireNonNull(out, "out"), HEADER, mode);
     }
 
-    private String formatNumber(BigDecimal number) {
-        return number.stripTrailingZeros().toPlainString();
+    public boolean isSharded() {
+        return shardLimits != null;
     }
 }
@@ -0,0 +1,83 @@
+package org.app.csv;
+
+import org.app.model.BusinessMode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+/** Remembers which MRNs the output CSV already invoices, per {@link BusinessMode}. */
+public final class MrnLedger implements Closeable {
+    private final MrnLedgerFile file;
+    private final CsvAppendCoordinator coordinator;
+    private final MrnLedgerFile.FingerprintSet staged = new MrnLedgerFile.FingerprintSet();
+
+    private MrnLedger(MrnLedgerFile file, CsvAppendCoordinator coordinator) {
+        this.file = file;
+        this.coordinator = coordinator;
+    }
+
+    /** Opens (or creates) the ledger of {@code csvPath} and brings it in line with the CSV's current content. */
+    public static MrnLedger open(Path csvPath, Function<String, BusinessMode> lineModes) throws IOException {
+        CsvAppendCoordinator coordinator = CsvAppendCoordinator.acquire(csvPath);
+        try {
+            return new MrnLedger(coordinator.openLedger(lineModes), coordinator);
+        } catch (IOException | RuntimeException e) {
+            coordinator.release();
+            throw e;
+        }
+    }
+
+    /** Opens the ledger of a CSV that is written as shards ({@code facturare-0001.csv}, ...). */
+    public static MrnLedger openSharded(Path csvPath, Function<String, BusinessMode> lineModes) throws IOException {
+        return new MrnLedger(MrnLedgerFile.open(csvPath, true, lineModes), null);
+    }
+
+    /** Whether the CSV already holds the MRN for this mode, counting MRNs recorded since the last commit. */
+    public boolean contains(BusinessMode mode, String mrn) {
+        long fingerprint = MrnLedgerFile.fingerprint(mode, mrn);
+        return staged.contains(fingerprint) || file.contains(fingerprint);
+    }
+
+    /** Whether the CSV held the MRN for this mode before the run, leaving out MRNs recorded since the last commit. */
+    public boolean isCommitted(BusinessMode mode, String mrn) {
+        return file.contains(MrnLedgerFile.fingerprint(mode, mrn));
+    }
+
+    /** Notes an MRN whose lines were appended to the CSV; it becomes permanent with {@link #commit()}. */
+    public void record(BusinessMode mode, String mrn) {
+        staged.add(MrnLedgerFile.fingerprint(mode, mrn));
+    }
+
+    /** Makes the recorded MRNs permanent. */
+    public void commit() throws IOException {
+        if (coordinator == null) {
+            file.commit(staged);
+        } else {
+            coordinator.commitLedger(staged);
+        }
+        staged.clear();
+    }
+
+    /** Closes the ledger; MRNs recorded since the last {@link #commit()} are forgotten. */
+    @Override
+    public void close() throws IOException {
+        staged.clear();
+        if (coordinator == null) {
+            file.close();
+        } else {
+            coordinator.release();
+        }
+    }
+
+    /** The coordinator of the CSV whose table the ledger shares, {@code null} for sharded CSVs. */
+    CsvAppendCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    /** The MRNs recorded since the last commit; a group commit takes them over. */
+    MrnLedgerFile.FingerprintSet getStaged() {
+        return staged;
+    }
+}
@@ -0,0 +1,465 @@
+package org.app.csv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.app.model.BusinessMode;
+import org.app.model.InvoiceLineTemplate;
+
+import java.io.Closeable;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/** The {@code .mrn-index} file of a CSV: a memory-mapped open-addressing table of MRN fingerprints. */
+final class MrnLedgerFile implements Closeable {
+    private static final String FILE_SUFFIX = ".mrn-index";
+    private static final long MAGIC = 0x4D524E4C45444731L; // "MRNLEDG1"
+    private static final int HEADER_BYTES = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int CSV_LENGTH_OFFSET = 16;
+    private static final int DIRTY_OFFSET = 24;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int PRODUCT_COLUMN = 4;
+    private static final int NOTE_COLUMN = 10;
+
+    private final Path csvPath;
+    private final boolean sharded;
+    private final Function<String, BusinessMode> lineModes;
+    private final FileChannel channel;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedByteBuffer table;
+    private int capacity;
+    private int size;
+
+    private MrnLedgerFile(Path csvPath, boolean sharded, Function<String, BusinessMode> lineModes,
+                          FileChannel channel) {
+        this.csvPath = csvPath;
+        this.sharded = sharded;
+        this.lineModes = lineModes;
+        this.channel = channel;
+    }
+
+    /** Opens (or creates) the ledger of {@code csvPath} and brings it in line with the CSV's current content. */
+    static MrnLedgerFile open(Path csvPath, boolean sharded, Function<String, BusinessMode> lineModes)
+            throws IOException {
+        Path absolute = csvPath.toAbsolutePath();
+        Path ledgerPath = absolute.resolveSibling(absolute.getFileName() + FILE_SUFFIX);
+        FileChannel channel = FileChannel.open(ledgerPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MrnLedgerFile file = new MrnLedgerFile(absolute, sharded, lineModes, channel);
+        try {
+            file.synchronize();
+            return file;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Whether the table holds the fingerprint. */
+    boolean contains(long fingerprint) {
+        lock.readLock().lock();
+        try {
+            return find(fingerprint) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Catches up on lines the CSV gained since, or rebuilds the ledger when it cannot be trusted. */
+    void synchronize() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long csvLength = csvLength();
+            boolean usable = channel.size() >= HEADER_BYTES && mapExisting();
+            if (!usable || table.getInt(DIRTY_OFFSET) != 0 || table.getLong(CSV_LENGTH_OFFSET) > csvLength) {
+                reset();
+                if (csvLength > 0) {
+                    indexCsv(0);
+                }
+                return;
+            }
+            long knownLength = table.getLong(CSV_LENGTH_OFFSET);
+            if (knownLength < csvLength) {
+                indexCsv(knownLength);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Adds the fingerprints and records that the ledger now describes the CSV as it is on disk. */
+    void commit(FingerprintSet fingerprints) throws IOException {
+        commit(fingerprints, csvLength());
+    }
+
+    /** Adds the fingerprints; the ledger then describes the first {@code knownLength} bytes of the CSV. */
+    void commit(FingerprintSet fingerprints, long knownLength) {
+        lock.writeLock().lock();
+        try {
+            markDirty(true);
+            fingerprints.forEach(this::insert);
+            table.putInt(SIZE_OFFSET, size);
+            table.putLong(CSV_LENGTH_OFFSET, knownLength);
+            markDirty(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean mapExisting() throws IOException {
+        MappedByteBuffer header = map(HEADER_BYTES);
+        int storedCapacity = header.getInt(CAPACITY_OFFSET);
+        if (header.getLong(MAGIC_OFFSET) != MAGIC
+                || storedCapacity < INITIAL_CAPACITY
+                || Integer.bitCount(storedCapacity) != 1
+                || channel.size() < HEADER_BYTES + (long) storedCapacity * Long.BYTES) {
+            return false;
+        }
+        if (table == null || capacity != storedCapacity) {
+            capacity = storedCapacity;
+            table = map(HEADER_BYTES + (long) capacity * Long.BYTES);
+        }
+        size = table.getInt(SIZE_OFFSET);
+        return true;
+    }
+
+    private void reset() throws IOException {
+        capacity = INITIAL_CAPACITY;
+        size = 0;
+        table = map(HEADER_BYTES + (long) capacity * Long.BYTES);
+        clearSlots();
+        table.putLong(MAGIC_OFFSET, MAGIC);
+        table.putInt(CAPACITY_OFFSET, capacity);
+        table.putInt(SIZE_OFFSET, 0);
+        table.putLong(CSV_LENGTH_OFFSET, 0L);
+        table.putInt(DIRTY_OFFSET, 0);
+        table.force();
+    }
+
+    /** Records the MRN of every line from {@code offset}, which starts a record. */
+    private void indexCsv(long offset) throws IOException {
+        FingerprintSet found = new FingerprintSet();
+        // characters from the offset to the start of the last record parsed
+        long lastRecordStart = 0;
+        try (Reader reader = csvReader(offset); CSVParser parser = CSVFormat.DEFAULT.parse(reader)) {
+            Iterator<CSVRecord> lines = parser.iterator();
+            while (lines.hasNext()) {
+                CSVRecord line = lines.next();
+                lastRecordStart = line.getCharacterPosition();
+                if (line.size() <= NOTE_COLUMN) {
+                    continue;
+                }
+                BusinessMode mode = lineModes.apply(line.get(PRODUCT_COLUMN));
+                if (mode != null) {
+                    addNote(found, mode, line.get(NOTE_COLUMN));
+                }
+            }
+        } catch (IllegalStateException | UncheckedIOException e) {
+            // a run that was killed mid-write can leave an unterminated last line; everything before it counts.
+            // A malformed line further up would hide every MRN after it, which would then be invoiced again
+            if (!failsAtEnd(offset, lastRecordStart)) {
+                throw new IOException("Cannot tell which MRNs " + csvPath + " already invoices, it has a "
+                        + "malformed line: " + e.getMessage() + ". Correct the line or move the CSV away.", e);
+            }
+        }
+        commit(found);
+    }
+
+    /** Whether the record after the one at {@code recordStart} fails only because the CSV ends. */
+    private boolean failsAtEnd(long offset, long recordStart) throws IOException {
+        boolean[] ended = new boolean[1];
+        try (Reader reader = csvReader(offset)) {
+            for (long skipped = 0; skipped < recordStart; ) {
+                long count = reader.skip(recordStart - skipped);
+                if (count <= 0) {
+                    return true;
+                }
+                skipped += count;
+            }
+            Reader unbuffered = new FilterReader(reader) {
+                @Override
+                public int read() throws IOException {
+                    int c = super.read();
+                    ended[0] |= c < 0;
+                    return c;
+                }
+
+                @Override
+                public int read(char[] buffer, int start, int length) throws IOException {
+                    int count = super.read(buffer, start, Math.min(length, 1));
+                    ended[0] |= count < 0;
+                    return count;
+                }
+            };
+            try (CSVParser parser = CSVFormat.DEFAULT.parse(unbuffered)) {
+                Iterator<CSVRecord> lines = parser.iterator();
+                while (lines.hasNext()) {
+                    lines.next();
+                }
+            } catch (IllegalStateException | UncheckedIOException e) {
+                return ended[0];
+            }
+        }
+        return true;
+    }
+
+    /** The CSV from {@code offset}, through the shards in order when it is sharded. */
+    private Reader csvReader(long offset) throws IOException {
+        List<InputStream> files = new ArrayList<>();
+        try {
+            long skip = offset;
+            for (Path file : csvFiles()) {
+                long length = Files.size(file);
+                if (skip >= length) {
+                    skip -= length;
+                    continue;
+                }
+                FileChannel csv = FileChannel.open(file, StandardOpenOption.READ);
+                files.add(Channels.newInputStream(csv));
+                csv.position(skip);
+                skip = 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (InputStream file : files) {
+                file.close();
+            }
+            throw e;
+        }
+        // closing the sequence closes every file in it
+        return new InputStreamReader(new SequenceInputStream(Collections.enumeration(files)), StandardCharsets.UTF_8);
+    }
+
+    /** A line's note holds its MRN, or every MRN of a consolidated line. */
+    private static void addNote(FingerprintSet found, BusinessMode mode, String note) {
+        int start = 0;
+        int separator;
+        while ((separator = note.indexOf(InvoiceLineTemplate.NOTE_SEPARATOR, start)) >= 0) {
+            addMrn(found, mode, note.substring(start, separator));
+            start = separator + InvoiceLineTemplate.NOTE_SEPARATOR.length();
+        }
+        addMrn(found, mode, start == 0 ? note : note.substring(start));
+    }
+
+    private static void addMrn(FingerprintSet found, BusinessMode mode, String mrn) {
+        if (!mrn.isEmpty()) {
+            found.add(fingerprint(mode, mrn));
+        }
+    }
+
+    private void markDirty(boolean dirty) {
+        table.putInt(DIRTY_OFFSET, dirty ? 1 : 0);
+        table.force();
+    }
+
+    private void insert(long fingerprint) {
+        if (find(fingerprint) >= 0) {
+            return;
+        }
+        if ((size + 1) * 2L > capacity) {
+            grow();
+        }
+        int mask = capacity - 1;
+        int slot = spread(fingerprint) & mask;
+        while (slotValue(slot) != 0L) {
+            slot = (slot + 1) & mask;
+        }
+        table.putLong(slotOffset(slot), fingerprint);
+        size++;
+    }
+
+    private int find(long fingerprint) {
+        int mask = capacity - 1;
+        int slot = spread(fingerprint) & mask;
+        long value;
+        while ((value = slotValue(slot)) != 0L) {
+            if (value == fingerprint) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Doubles the table in place. */
+    private void grow() {
+        long[] entries = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long value = slotValue(slot);
+            if (value != 0L) {
+                entries[count++] = value;
+            }
+        }
+        capacity <<= 1;
+        try {
+            table = map(HEADER_BYTES + (long) capacity * Long.BYTES);
+        } catch (IOException e) {
+            throw new IllegalStateException("The MRN ledger could not be enlarged: " + e.getMessage(), e);
+        }
+        clearSlots();
+        table.putInt(CAPACITY_OFFSET, capacity);
+        size = 0;
+        for (int i = 0; i < count; i++) {
+            insert(entries[i]);
+        }
+    }
+
+    private void clearSlots() {
+        for (int slot = 0; slot < capacity; slot++) {
+            table.putLong(slotOffset(slot), 0L);
+        }
+    }
+
+    private long slotValue(int slot) {
+        return table.getLong(slotOffset(slot));
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_BYTES + slot * Long.BYTES;
+    }
+
+    private MappedByteBuffer map(long length) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private long csvLength() throws IOException {
+        long length = 0;
+        for (Path file : csvFiles()) {
+            length += Files.size(file);
+        }
+        return length;
+    }
+
+    /** The files the ledger describes, in the order their lines were written. */
+    private List<Path> csvFiles() {
+        List<Path> files = new ArrayList<>();
+        if (Files.exists(csvPath)) {
+            files.add(csvPath);
+        }
+        if (sharded) {
+            files.addAll(CsvShards.existing(csvPath));
+        }
+        return files;
+    }
+
+    /** 64-bit FNV-1a over the mode name and the trimmed MRN; zero marks an empty slot, so it is never returned. */
+    static long fingerprint(BusinessMode mode, String mrn) {
+        long hash = hashChars(0xcbf29ce484222325L, mode.name());
+        hash = (hash ^ '|') * 0x100000001b3L;
+        hash = hashChars(hash, mrn.trim());
+        return hash == 0L ? 1L : hash;
+    }
+
+    private static long hashChars(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            hash = (hash ^ (ch & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (ch >>> 8)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int spread(long fingerprint) {
+        long mixed = (fingerprint ^ (fingerprint >>> 33)) * 0xff51afd7ed558ccdL;
+        return (int) (mixed ^ (mixed >>> 33));
+    }
+
+    /** Fingerprints held on the heap: those a run recorded until they are committed, or those a commit adds. */
+    static final class FingerprintSet {
+        private long[] slots = new long[256];
+        private int size;
+
+        boolean contains(long fingerprint) {
+            int mask = slots.length - 1;
+            int slot = spread(fingerprint) & mask;
+            long value;
+            while ((value = slots[slot]) != 0L) {
+                if (value == fingerprint) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        void add(long fingerprint) {
+            if (contains(fingerprint)) {
+                return;
+            }
+            if ((size + 1) * 2 > slots.length) {
+                long[] previous = slots;
+                slots = new long[previous.length << 1];
+                size = 0;
+                for (long value : previous) {
+                    if (value != 0L) {
+                        put(value);
+                    }
+                }
+            }
+            put(fingerprint);
+        }
+
+        private void put(long fingerprint) {
+            int mask = slots.length - 1;
+            int slot = spread(fingerprint) & mask;
+            while (slots[slot] != 0L) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = fingerprint;
+            size++;
+        }
+
+        void addAll(FingerprintSet other) {
+            other.forEach(this::add);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void forEach(LongConsumer action) {
+            for (long value : slots) {
+                if (value != 0L) {
+                    action.accept(value);
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(slots, 0L);
+            size = 0;
+        }
+    }
+}
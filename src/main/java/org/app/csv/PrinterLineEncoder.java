@@ -0,0 +1,81 @@
+package org.app.csv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/** Formats every record with Commons CSV. */
+final class PrinterLineEncoder implements CsvLineEncoder {
+    private final CSVPrinter printer;
+
+    PrinterLineEncoder(WritableByteChannel channel) throws IOException {
+        this.printer = new CSVPrinter(
+                new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1)),
+                CSVFormat.DEFAULT);
+    }
+
+    @Override
+    public void writeHeader(String[] columns) throws IOException {
+        printer.printRecord((Object[]) columns);
+    }
+
+    @Override
+    public void writeLine(InvoiceLine line, boolean includeCustomerFields) throws IOException {
+        String customerTaxCode = includeCustomerFields ? line.getCustomerTaxCode() : "";
+        String customerName = includeCustomerFields ? line.getCustomerName() : "";
+        printer.printRecord(
+                line.getNrCrt(),
+                customerTaxCode == null ? "" : customerTaxCode,
+                customerName == null ? "" : customerName,
+                line.getDeviz(),
+                line.getProductDescription(),
+                "",
+                formatNumber(line.getQuantity()),
+                "BUC",
+                formatNumber(line.getPriceWithoutVat()),
+                formatNumber(line.getVatRate()),
+                line.getProductNote(),
+                "",
+                ""
+        );
+    }
+
+    @Override
+    public void writeLine(InvoiceLineTemplate template,
+                          int quantity,
+                          String productNote,
+                          boolean includeCustomerFields) throws IOException {
+        printer.printRecord(
+                template.getNrCrt(),
+                includeCustomerFields ? template.getCustomerTaxCode() : "",
+                includeCustomerFields ? template.getCustomerName() : "",
+                template.getDeviz(),
+                template.getProductDescription(),
+                "",
+                Integer.toString(quantity),
+                "BUC",
+                formatNumber(template.getPriceWithoutVat()),
+                formatNumber(template.getVatRate()),
+                productNote,
+                "",
+                ""
+        );
+    }
+
+    @Override
+    public void flush() throws IOException {
+        printer.flush();
+    }
+
+    private String formatNumber(BigDecimal number) {
+        return number.stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,409 @@
+package org.app.csv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+import org.app.model.SourceRow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Writes invoice lines to numbered CSV shards, rolling over at the {@link CsvShardLimits}. */
+final class ShardedCsvAppender implements InvoiceCsvAppender {
+    private static final int BATCH_LINES = 4096;
+    private static final int MAX_WRITER_THREADS = 4;
+
+    private final Path path;
+    private final String[] header;
+    private final CsvWriterMode mode;
+    private final CsvShardLimits limits;
+    private final MrnLedger ledger;
+    private final boolean append;
+    private final ExecutorService pool;
+    private final int maxBatchesInFlight;
+    // encoders keep per-template state, so every writer thread has its own
+    private final ThreadLocal<LineEncoding> encodings = ThreadLocal.withInitial(LineEncoding::new);
+    // the calling thread's, for headers and first lines
+    private final LineEncoding placing;
+    private final Deque<Future<EncodedBatch>> inFlight = new ArrayDeque<>();
+    private final List<Shard> shards = new ArrayList<>();
+    private List<PendingLine> batch = new ArrayList<>(BATCH_LINES);
+    private int nextShardNumber;
+    private int lineCount;
+    private boolean committed;
+    private boolean closed;
+
+    ShardedCsvAppender(Path absolutePath, String[] header, CsvWriterMode mode, CsvShardLimits limits,
+                       MrnLedger ledger) throws IOException {
+        this.path = absolutePath;
+        this.ledger = ledger;
+        this.header = header;
+        this.mode = mode;
+        this.limits = limits;
+        this.placing = new LineEncoding();
+
+        List<Path> existing = CsvShards.existing(absolutePath);
+        Path last = existing.isEmpty() ? null : existing.get(existing.size() - 1);
+        this.append = last != null && Files.size(last) > 0;
+        if (append) {
+            shards.add(Shard.continuing(last));
+            nextShardNumber = existing.size() + 1;
+        } else {
+            // an empty last shard is taken over, header and all
+            nextShardNumber = Math.max(existing.size(), 1);
+        }
+        int threads = Math.max(1, Math.min(MAX_WRITER_THREADS, Runtime.getRuntime().availableProcessors()));
+        this.pool = Executors.newFixedThreadPool(threads, new WriterThreadFactory());
+        this.maxBatchesInFlight = threads * 2;
+    }
+
+    @Override
+    public void append(InvoiceLine line) throws IOException {
+        add(new PendingLine(line, null, 0, null));
+    }
+
+    @Override
+    public void append(InvoiceLineTemplate template, SourceRow row) throws IOException {
+        add(new PendingLine(null, template, template.quantityFor(row), row.buildProductNote()));
+    }
+
+    /** Writes the pending lines, forces and closes every shard, then commits the ledger. */
+    @Override
+    public void commit() throws IOException {
+        closed = true;
+        try {
+            if (!batch.isEmpty()) {
+                submitBatch();
+            }
+            while (!inFlight.isEmpty()) {
+                place(await(inFlight.poll()));
+            }
+            if (shards.isEmpty()) {
+                openNextShard();
+            }
+            List<Future<?>> forcing = new ArrayList<>(shards.size());
+            for (Shard shard : shards) {
+                forcing.add(pool.submit(() -> {
+                    shard.channel.force(true);
+                    return null;
+                }));
+            }
+            for (Future<?> force : forcing) {
+                await(force);
+            }
+            closeShards();
+            committed = true;
+            if (ledger != null) {
+                ledger.commit();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        pool.shutdownNow();
+        try {
+            closeShards();
+        } finally {
+            rollback();
+        }
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public boolean isAppending() {
+        return append;
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    @Override
+    public List<Path> getFiles() {
+        List<Path> files = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            files.add(shard.path);
+        }
+        return Collections.unmodifiableList(files);
+    }
+
+    private void add(PendingLine line) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The CSV shards are already closed");
+        }
+        lineCount++;
+        batch.add(line);
+        if (batch.size() == BATCH_LINES) {
+            submitBatch();
+            // place whatever is done, and wait when the writers fall behind
+            while (!inFlight.isEmpty() && (inFlight.size() > maxBatchesInFlight || inFlight.peek().isDone())) {
+                place(await(inFlight.poll()));
+            }
+        }
+    }
+
+    private void submitBatch() {
+        List<PendingLine> lines = batch;
+        batch = new ArrayList<>(BATCH_LINES);
+        inFlight.add(pool.submit(() -> encodings.get().encode(lines)));
+    }
+
+    /** Writes the encoded lines to the shards, rolling over wherever the next line does not fit. */
+    private void place(EncodedBatch encoded) throws IOException {
+        int pendingFrom = 0;
+        Shard shard = shards.isEmpty() ? null : shards.get(shards.size() - 1);
+        for (int i = 0; i < encoded.lines.size(); i++) {
+            int lineStart = i == 0 ? 0 : encoded.ends[i - 1];
+            int lineBytes = encoded.ends[i] - lineStart;
+            if (shard != null && shard.lines > 0 && limits.fits(shard.lines, shard.bytes, lineBytes)) {
+                shard.lines++;
+                shard.bytes += lineBytes;
+                continue;
+            }
+            if (shard != null) {
+                shard.write(encoded.bytes, pendingFrom, lineStart);
+            }
+            if (shard == null || shard.lines > 0) {
+                shard = openNextShard();
+            }
+            byte[] first = placing.encodeFirst(encoded.lines.get(i));
+            shard.write(first, 0, first.length);
+            shard.lines++;
+            shard.bytes += first.length;
+            pendingFrom = encoded.ends[i];
+        }
+        if (shard != null) {
+            shard.write(encoded.bytes, pendingFrom, encoded.bytes.length);
+        }
+    }
+
+    private Shard openNextShard() throws IOException {
+        Shard shard = Shard.create(CsvShards.shardPath(path, nextShardNumber++), placing.encodeHeader());
+        shards.add(shard);
+        return shard;
+    }
+
+    private void closeShards() throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards) {
+            try {
+                shard.channel.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void rollback() throws IOException {
+        for (Shard shard : shards) {
+            if (!shard.existed) {
+                Files.deleteIfExists(shard.path);
+            } else {
+                try (FileChannel truncating = FileChannel.open(shard.path, StandardOpenOption.WRITE)) {
+                    truncating.truncate(shard.originalSize);
+                }
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Writing the CSV shards was interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("The CSV shards could not be written: " + cause.getMessage(), cause);
+        }
+    }
+
+    /** A line waiting to be encoded: an {@link InvoiceLine}, or a template with the values of its row. */
+    private static final class PendingLine {
+        private final InvoiceLine line;
+        private final InvoiceLineTemplate template;
+        private final int quantity;
+        private final String productNote;
+
+        PendingLine(InvoiceLine line, InvoiceLineTemplate template, int quantity, String productNote) {
+            this.line = line;
+            this.template = template;
+            this.quantity = quantity;
+            this.productNote = productNote;
+        }
+
+        void writeTo(CsvLineEncoder encoder, boolean includeCustomerFields) throws IOException {
+            if (line != null) {
+                encoder.writeLine(line, includeCustomerFields);
+            } else {
+                encoder.writeLine(template, quantity, productNote, includeCustomerFields);
+            }
+        }
+    }
+
+    private static final class EncodedBatch {
+        private final List<PendingLine> lines;
+        private final byte[] bytes;
+        private final int[] ends;
+
+        EncodedBatch(List<PendingLine> lines, byte[] bytes, int[] ends) {
+            this.lines = lines;
+            this.bytes = bytes;
+            this.ends = ends;
+        }
+    }
+
+    /** One thread's encoder, writing into memory. */
+    private final class LineEncoding {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        private final CsvLineEncoder encoder;
+
+        LineEncoding() {
+            try {
+                encoder = CsvLineEncoder.create(mode, Channels.newChannel(out));
+            } catch (IOException e) {
+                throw new IllegalStateException("The CSV encoder could not be created", e);
+            }
+        }
+
+        EncodedBatch encode(List<PendingLine> lines) throws IOException {
+            out.reset();
+            int[] ends = new int[lines.size()];
+            for (int i = 0; i < lines.size(); i++) {
+                lines.get(i).writeTo(encoder, false);
+                // flushed line by line, so the end of every line is known
+                encoder.flush();
+                ends[i] = out.size();
+            }
+            return new EncodedBatch(lines, out.toByteArray(), ends);
+        }
+
+        byte[] encodeFirst(PendingLine line) throws IOException {
+            out.reset();
+            line.writeTo(encoder, true);
+            encoder.flush();
+            return out.toByteArray();
+        }
+
+        byte[] encodeHeader() throws IOException {
+            out.reset();
+            encoder.writeHeader(header);
+            encoder.flush();
+            return out.toByteArray();
+        }
+    }
+
+    private static final class Shard {
+        private final Path path;
+        private final FileChannel channel;
+        private final boolean existed;
+        private final long originalSize;
+        private int lines;
+        private long bytes;
+
+        private Shard(Path path, FileChannel channel, boolean existed, long originalSize) {
+            this.path = path;
+            this.channel = channel;
+            this.existed = existed;
+            this.originalSize = originalSize;
+        }
+
+        static Shard continuing(Path path) throws IOException {
+            long size = Files.size(path);
+            Shard shard = new Shard(path, FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND),
+                    true, size);
+            shard.lines = countLines(path);
+            shard.bytes = size;
+            return shard;
+        }
+
+        static Shard create(Path path, byte[] header) throws IOException {
+            boolean existed = Files.exists(path);
+            long originalSize = existed ? Files.size(path) : 0L;
+            Shard shard = new Shard(path, FileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), existed, originalSize);
+            try {
+                shard.write(header, 0, header.length);
+            } catch (IOException e) {
+                shard.channel.close();
+                throw e;
+            }
+            shard.bytes = header.length;
+            return shard;
+        }
+
+        void write(byte[] source, int from, int to) throws IOException {
+            ByteBuffer range = ByteBuffer.wrap(source, from, to - from);
+            while (range.hasRemaining()) {
+                channel.write(range);
+            }
+        }
+
+        /** The invoice lines of a shard an earlier run wrote, without its header. */
+        private static int countLines(Path path) throws IOException {
+            int records = 0;
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+                 CSVParser parser = CSVFormat.DEFAULT.parse(reader)) {
+                Iterator<?> lines = parser.iterator();
+                while (lines.hasNext()) {
+                    lines.next();
+                    records++;
+                }
+            }
+            return Math.max(records - 1, 0);
+        }
+    }
+
+    private static final class WriterThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "csv-shard-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.app.csv;
+
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+import org.app.model.SourceRow;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/** Writes invoice lines to one output CSV, through the {@link CsvAppendCoordinator} of the path. */
+final class SingleFileCsvAppender implements InvoiceCsvAppender {
+    private final Path path;
+    private final CsvAppendCoordinator coordinator;
+    private final MrnLedger ledger;
+    // where the streamed lines start, or -1 when they are batched
+    private final long streamStart;
+    private final CsvBatch batch;
+    private final CsvLineEncoder encoder;
+    private boolean append;
+    private String commitWarning;
+    private int lineCount;
+    private boolean closed;
+
+    SingleFileCsvAppender(Path absolutePath, String[] header, CsvWriterMode mode, MrnLedger ledger)
+            throws IOException {
+        this.path = absolutePath;
+        this.ledger = ledger;
+        this.coordinator = CsvAppendCoordinator.acquire(absolutePath);
+        if (ledger != null && ledger.getCoordinator() != coordinator) {
+            coordinator.release();
+            throw new IllegalArgumentException("The MRN ledger does not belong to " + absolutePath);
+        }
+        try {
+            this.streamStart = coordinator.openAppender();
+        } catch (IOException | RuntimeException e) {
+            coordinator.release();
+            throw e;
+        }
+        this.batch = streamStart < 0 ? new CsvBatch(ledger) : null;
+        try {
+            if (batch == null) {
+                this.append = streamStart > 0;
+                this.encoder = CsvLineEncoder.create(mode, coordinator.streamChannel());
+                if (!append) {
+                    encoder.writeHeader(header);
+                }
+            } else {
+                this.append = coordinator.hasLines();
+                this.encoder = CsvLineEncoder.create(mode, batch);
+                encoder.writeHeader(header);
+            }
+        } catch (IOException | RuntimeException e) {
+            closed = true;
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void append(InvoiceLine line) throws IOException {
+        if (batch == null) {
+            boolean first = lineCount++ == 0;
+            encoder.writeLine(line, first && !append);
+        } else if (lineCount++ == 0) {
+            encoder.writeLine(line, true);
+            markNewFileEnd();
+            encoder.writeLine(line, false);
+            markRestStart();
+        } else {
+            encoder.writeLine(line, false);
+        }
+    }
+
+    @Override
+    public void append(InvoiceLineTemplate template, SourceRow row) throws IOException {
+        int quantity = template.quantityFor(row);
+        String productNote = row.buildProductNote();
+        if (batch == null) {
+            boolean first = lineCount++ == 0;
+            encoder.writeLine(template, quantity, productNote, first && !append);
+        } else if (lineCount++ == 0) {
+            encoder.writeLine(template, quantity, productNote, true);
+            markNewFileEnd();
+            encoder.writeLine(template, quantity, productNote, false);
+            markRestStart();
+        } else {
+            encoder.writeLine(template, quantity, productNote, false);
+        }
+    }
+
+    /** Returns once the lines are on disk, with the ledger's MRNs committed after them. */
+    @Override
+    public void commit() throws IOException {
+        if (batch == null) {
+            commitStream();
+            return;
+        }
+        if (lineCount == 0) {
+            markNewFileEnd();
+            markRestStart();
+        }
+        encoder.flush();
+        closed = true;
+        try {
+            coordinator.commit(batch);
+            append = batch.wasAppended();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            release();
+        }
+    }
+
+    private void commitStream() throws IOException {
+        closed = true;
+        boolean committed = false;
+        try {
+            encoder.flush();
+            commitWarning = coordinator.commitStream(ledger);
+            committed = true;
+        } finally {
+            if (!committed) {
+                release();
+            } else {
+                coordinator.closeAppender();
+                coordinator.release();
+            }
+        }
+    }
+
+    /** Before the commit, whether the CSV had lines; after it, whether other runs' lines preceded these. */
+    @Override
+    public boolean isAppending() {
+        return append;
+    }
+
+    /** Only a batch can conflict: a streaming appender holds the CSV until it commits. */
+    @Override
+    public boolean mayConflict() {
+        return batch != null && ledger != null;
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /** The lines are on disk, but the ledger may not have recorded their MRNs; it reads them back from the CSV then. */
+    @Override
+    public String getCommitWarning() {
+        return batch == null ? commitWarning : batch.getLedgerWarning();
+    }
+
+    @Override
+    public List<Path> getFiles() {
+        return Collections.singletonList(path);
+    }
+
+    private void markNewFileEnd() throws IOException {
+        encoder.flush();
+        batch.markNewFileEnd();
+    }
+
+    private void markRestStart() throws IOException {
+        encoder.flush();
+        batch.markRestStart();
+    }
+
+    /** Drops the lines that are not committed, the stream cut back or the batch, and lets go of the coordinator. */
+    private void release() throws IOException {
+        try {
+            if (batch == null) {
+                coordinator.abortStream(streamStart);
+            } else {
+                batch.close();
+            }
+        } finally {
+            try {
+                coordinator.closeAppender();
+            } finally {
+                coordinator.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.app.csv;
+
+import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
+import org.app.model.SourceRow;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/** Writes a new CSV to a stream, a connection for instance, as the lines are produced. */
+final class StreamCsvAppender implements InvoiceCsvAppender {
+    private final OutputStream out;
+    private final CsvLineEncoder encoder;
+    private int lineCount;
+
+    StreamCsvAppender(OutputStream out, String[] header, CsvWriterMode mode) throws IOException {
+        this.out = out;
+        this.encoder = CsvLineEncoder.create(mode, Channels.newChannel(out));
+        encoder.writeHeader(header);
+    }
+
+    @Override
+    public void append(InvoiceLine line) throws IOException {
+        boolean includeCustomerFields = lineCount == 0;
+        lineCount++;
+        encoder.writeLine(line, includeCustomerFields);
+    }
+
+    @Override
+    public void append(InvoiceLineTemplate template, SourceRow row) throws IOException {
+        boolean includeCustomerFields = lineCount == 0;
+        lineCount++;
+        encoder.writeLine(template, template.quantityFor(row), row.buildProductNote(), includeCustomerFields);
+    }
+
+    /** Hands the last lines to the stream and flushes it; the stream stays open. */
+    @Override
+    public void commit() throws IOException {
+        encoder.flush();
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        // the stream belongs to the caller, and what it was given is gone either way
+    }
+
+    /** Always {@code null}, the lines go to no file. */
+    @Override
+    public Path getPath() {
+        return null;
+    }
+
+    @Override
+    public boolean isAppending() {
+        return false;
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    @Override
+    public List<Path> getFiles() {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,109 @@
+package org.app.log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/** Hands messages to a background thread through a bounded ring buffer. */
+public final class AsyncLogSink implements LogSink, Closeable {
+    private static final LogEvent STOP = new LogEvent(LogLevel.SUMMARY, "");
+
+    private final Consumer<List<String>> batchConsumer;
+    private final LogLevel threshold;
+    private final BlockingQueue<LogEvent> buffer;
+    private final AtomicLong droppedDebugMessages = new AtomicLong();
+    private final Thread deliveryThread;
+    private volatile boolean closed;
+
+    public AsyncLogSink(Consumer<List<String>> batchConsumer, LogLevel threshold, int capacity) {
+        this.batchConsumer = Objects.requireNonNull(batchConsumer, "batchConsumer");
+        this.threshold = Objects.requireNonNull(threshold, "threshold");
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.deliveryThread = new Thread(this::deliverLoop, "log-delivery");
+        this.deliveryThread.setDaemon(true);
+        this.deliveryThread.start();
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level) {
+        return threshold.includes(level);
+    }
+
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+        LogEvent event = new LogEvent(level, pattern, args);
+        if (level == LogLevel.DEBUG) {
+            if (!buffer.offer(event)) {
+                droppedDebugMessages.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            buffer.put(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Delivers everything still buffered and stops the background thread. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            buffer.put(STOP);
+            deliveryThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliverLoop() {
+        List<LogEvent> pending = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                LogEvent first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                pending.add(first);
+                buffer.drainTo(pending);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            List<String> batch = new ArrayList<>(pending.size() + 1);
+            for (LogEvent event : pending) {
+                if (event == STOP) {
+                    running = false;
+                } else {
+                    batch.add(event.format());
+                }
+            }
+            pending.clear();
+            long dropped = droppedDebugMessages.getAndSet(0);
+            if (dropped > 0) {
+                batch.add(String.format("(%d row messages not shown, the log could not keep up)", dropped));
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    batchConsumer.accept(batch);
+                } catch (RuntimeException e) {
+                    // a failing consumer must not stop delivery, producers would block on a full buffer
+                }
+            }
+        }
+    }
+}
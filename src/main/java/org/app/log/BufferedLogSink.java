@@ -0,0 +1,34 @@
+package org.app.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/** Keeps the messages of a background task so they can be replayed later, in order, to the real sink. */
+public final class BufferedLogSink implements LogSink {
+    private final LogSink target;
+    private final List<LogEvent> events = new ArrayList<>();
+
+    public BufferedLogSink(LogSink target) {
+        this.target = Objects.requireNonNull(target, "target");
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level) {
+        return target.isEnabled(level);
+    }
+
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (target.isEnabled(level)) {
+            events.add(new LogEvent(level, pattern, args));
+        }
+    }
+
+    public void replay() {
+        for (LogEvent event : events) {
+            target.log(event.getLevel(), event.getPattern(), event.getArgs());
+        }
+        events.clear();
+    }
+}
@@ -0,0 +1,26 @@
+package org.app.log;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+final class ConsumerLogSink implements LogSink {
+    private final Consumer<String> consumer;
+    private final LogLevel threshold;
+
+    ConsumerLogSink(Consumer<String> consumer, LogLevel threshold) {
+        this.consumer = Objects.requireNonNull(consumer, "consumer");
+        this.threshold = Objects.requireNonNull(threshold, "threshold");
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level) {
+        return threshold.includes(level);
+    }
+
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (isEnabled(level)) {
+            consumer.accept(new LogEvent(level, pattern, args).format());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.app.log;
+
+import java.util.Objects;
+
+/** One log message whose text is only built when it is actually delivered. */
+public final class LogEvent {
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final LogLevel level;
+    private final String pattern;
+    private final Object[] args;
+
+    public LogEvent(LogLevel level, String pattern, Object... args) {
+        this.level = Objects.requireNonNull(level, "level");
+        this.pattern = Objects.requireNonNull(pattern, "pattern");
+        this.args = args == null ? NO_ARGS : args;
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    /** Formats the message; a pattern without arguments is returned verbatim so it may contain '%'. */
+    public String format() {
+        return args.length == 0 ? pattern : String.format(pattern, args);
+    }
+}
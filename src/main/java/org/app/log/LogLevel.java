@@ -0,0 +1,12 @@
+package org.app.log;
+
+/** Verbosity of a log message, from the run summary down to one message per Excel row. */
+public enum LogLevel {
+    SUMMARY,
+    WARN,
+    DEBUG;
+
+    public boolean includes(LogLevel level) {
+        return level.ordinal() <= ordinal();
+    }
+}
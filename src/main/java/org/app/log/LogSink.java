@@ -0,0 +1,37 @@
+package org.app.log;
+
+import java.util.function.Consumer;
+
+/** Destination for progress and validation messages. */
+public interface LogSink {
+    boolean isEnabled(LogLevel level);
+
+    void log(LogLevel level, String pattern, Object... args);
+
+    default void summary(String pattern, Object... args) {
+        log(LogLevel.SUMMARY, pattern, args);
+    }
+
+    default void warn(String pattern, Object... args) {
+        log(LogLevel.WARN, pattern, args);
+    }
+
+    default void debug(String pattern, Object... args) {
+        log(LogLevel.DEBUG, pattern, args);
+    }
+
+    /** Starts every message with {@code prefix}. */
+    default LogSink withPrefix(String prefix) {
+        return new PrefixedLogSink(this, prefix);
+    }
+
+    /** Delivers every level synchronously to {@code consumer}. */
+    static LogSink of(Consumer<String> consumer) {
+        return of(consumer, LogLevel.DEBUG);
+    }
+
+    /** Delivers messages up to {@code threshold} synchronously to {@code consumer}. */
+    static LogSink of(Consumer<String> consumer, LogLevel threshold) {
+        return new ConsumerLogSink(consumer, threshold);
+    }
+}
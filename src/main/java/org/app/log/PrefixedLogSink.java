@@ -0,0 +1,30 @@
+package org.app.log;
+
+import java.util.Objects;
+
+final class PrefixedLogSink implements LogSink {
+    private final LogSink target;
+    private final String prefix;
+    // the prefix as part of a format pattern, where '%' has to be doubled
+    private final String patternPrefix;
+
+    PrefixedLogSink(LogSink target, String prefix) {
+        this.target = Objects.requireNonNull(target, "target");
+        this.prefix = Objects.requireNonNull(prefix, "prefix");
+        this.patternPrefix = prefix.replace("%", "%%");
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level) {
+        return target.isEnabled(level);
+    }
+
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (target.isEnabled(level)) {
+            // patterns without arguments are delivered verbatim, see LogEvent#format()
+            boolean formatted = args != null && args.length > 0;
+            target.log(level, (formatted ? patternPrefix : prefix) + pattern, args);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.app.model;
+
+import java.math.BigDecimal;
+import java.util.Objects;
+
+/** The fields an invoice line shares with every other line of its kind. */
+public final class InvoiceLineTemplate {
+    /** Separates the MRNs in the product note of a consolidated line, which stands for many rows. */
+    public static final String NOTE_SEPARATOR = ", ";
+
+    private final Integer nrCrt;
+    private final String customerTaxCode;
+    private final String customerName;
+    private final String deviz;
+    private final String productDescription;
+    private final Integer fixedQuantity;
+    private final BigDecimal priceWithoutVat;
+    private final BigDecimal vatRate;
+
+    /** A template; a {@code null} {@code fixedQuantity} bills the row's 'linii' count. */
+    public InvoiceLineTemplate(Integer nrCrt,
+                               String customerTaxCode,
+                               String customerName,
+                               String deviz,
+                               String productDescription,
+                               Integer fixedQuantity,
+                               BigDecimal priceWithoutVat,
+                               BigDecimal vatRate) {
+        this.nrCrt = Objects.requireNonNull(nrCrt, "nr.crt");
+        this.customerTaxCode = Objects.requireNonNull(customerTaxCode, "CIF/CNP");
+        this.customerName = Objects.requireNonNull(customerName, "den. client");
+        this.deviz = Objects.requireNonNull(deviz, "deviz");
+        this.productDescription = Objects.requireNonNull(productDescription, "produs");
+        this.fixedQuantity = fixedQuantity;
+        this.priceWithoutVat = Objects.requireNonNull(priceWithoutVat, "pret FTVA");
+        this.vatRate = Objects.requireNonNull(vatRate, "cota TVA");
+    }
+
+    public Integer getNrCrt() {
+        return nrCrt;
+    }
+
+    public String getCustomerTaxCode() {
+        return customerTaxCode;
+    }
+
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    public String getDeviz() {
+        return deviz;
+    }
+
+    public String getProductDescription() {
+        return productDescription;
+    }
+
+    public BigDecimal getPriceWithoutVat() {
+        return priceWithoutVat;
+    }
+
+    public BigDecimal getVatRate() {
+        return vatRate;
+    }
+
+    public int quantityFor(SourceRow row) {
+        return fixedQuantity != null ? fixedQuantity : row.getLinesCount();
+    }
+
+    public InvoiceLine toInvoiceLine(SourceRow row) {
+        return toInvoiceLine(quantityFor(row), row.buildProductNote());
+    }
+
+    public InvoiceLine toInvoiceLine(long quantity, String productNote) {
+        return new InvoiceLine(
+                nrCrt,
+                customerTaxCode,
+                customerName,
+                deviz,
+                productDescription,
+                BigDecimal.valueOf(quantity),
+                priceWithoutVat,
+                vatRate,
+                productNote
+        );
+    }
+}
@@ -1,10 +1,11 @@
 package org.app.service;
 
-import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
 import org.app.model.SourceRow;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 class AssetInvoiceLineStrategy implements InvoiceLineStrategy {
@@ -18,41 +19,22 @@ class AssetInvoiceLineStrategy implements InvoiceLineStrategy {
     private static final BigDecimal PRICE_ZERO = BigDecimal.valueOf(0.4);
     private static final BigDecimal PRICE_CUSTOMS = BigDecimal.valueOf(180);
 
-    @Override
-    public List<InvoiceLine> buildLines(SourceRow row) {
-        List<InvoiceLine> result = new ArrayList<>(2);
-        result.add(buildBaseLine(row));
-        if (row.hasCustomsOutsideWorkingHours()) {
-            result.add(buildCustomsLine(row));
-        }
-        return result;
-    }
+    private static final InvoiceLineTemplate BASE_LINE = new InvoiceLineTemplate(
+            NR_CRT, CUSTOMER_TAX_CODE, CUSTOMER_NAME, DEVIZ, DESC_BASE, null, PRICE_ZERO, VAT_RATE);
+    private static final InvoiceLineTemplate CUSTOMS_LINE = new InvoiceLineTemplate(
+            NR_CRT, "", CUSTOMER_NAME, DEVIZ, DESC_CUSTOMS, 1, PRICE_CUSTOMS, VAT_RATE);
+
+    private static final List<InvoiceLineTemplate> REGULAR_ROW = Collections.singletonList(BASE_LINE);
+    private static final List<InvoiceLineTemplate> CUSTOMS_ROW =
+            Collections.unmodifiableList(Arrays.asList(BASE_LINE, CUSTOMS_LINE));
 
-    private InvoiceLine buildBaseLine(SourceRow row) {
-        return new InvoiceLine(
-                NR_CRT,
-                CUSTOMER_TAX_CODE,
-                CUSTOMER_NAME,
-                DEVIZ,
-                DESC_BASE,
-                BigDecimal.valueOf(row.getLinesCount()),
-                PRICE_ZERO,
-                VAT_RATE,
-                row.buildProductNote()
-        );
+    @Override
+    public List<InvoiceLineTemplate> linesFor(SourceRow row) {
+        return row.hasCustomsOutsideWorkingHours() ? CUSTOMS_ROW : REGULAR_ROW;
     }
 
-    private InvoiceLine buildCustomsLine(SourceRow row) {
-        return new InvoiceLine(
-                NR_CRT,
-                "",
-                CUSTOMER_NAME,
-                DEVIZ,
-                DESC_CUSTOMS,
-                BigDecimal.ONE,
-                PRICE_CUSTOMS,
-                VAT_RATE,
-                row.buildProductNote()
-        );
+    @Override
+    public List<InvoiceLineTemplate> getTemplates() {
+        return CUSTOMS_ROW;
     }
 }
@@ -0,0 +1,70 @@
+package org.app.service;
+
+import org.apache.commons.compress.utils.InputStreamStatistics;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Fails reading a workbook part once it unpacks to more than a set number of bytes. */
+final class BoundedEntryInputStream extends FilterInputStream {
+    // POI's own grace, so that small parts that pack well are not taken for bombs
+    private static final long RATIO_GRACE_BYTES = 100_000;
+
+    private final String partName;
+    private final long maxBytes;
+    private long read;
+
+    BoundedEntryInputStream(InputStream in, String partName, long maxBytes) {
+        super(in);
+        this.partName = partName;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            count(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if (count > 0) {
+            count(count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long bytes) throws IOException {
+        read += bytes;
+        if (read > maxBytes) {
+            throw new IOException(String.format("%s of the Excel file unpacks to more than the %d MB allowed "
+                    + "in low-memory mode", partName, maxBytes >> 20));
+        }
+        if (read > RATIO_GRACE_BYTES && in instanceof InputStreamStatistics) {
+            long packed = ((InputStreamStatistics) in).getCompressedCount();
+            if ((double) packed / read < ZipSecureFile.getMinInflateRatio()) {
+                throw new IOException(String.format("%s of the Excel file unpacks to more than %.0f times its "
+                        + "packed size, which only a damaged or malicious file does", partName,
+                        1 / ZipSecureFile.getMinInflateRatio()));
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.app.service;
+
+import org.apache.poi.ss.usermodel.DataFormatter;
+
+/** Reusable holder for the decoded value of one source cell. */
+final class CellSnapshot {
+    enum Kind {
+        BLANK,
+        NUMERIC,
+        TEXT,
+        BOOLEAN,
+        ERROR
+    }
+
+    // "General" switches to scientific notation for longer numbers
+    private static final double PLAIN_DIGITS_LIMIT = 1e9;
+
+    private Kind kind = Kind.BLANK;
+    private double numericValue;
+    private String text;
+    private int formatIndex;
+    private String formatString;
+    private boolean formulaResult;
+
+    void clear() {
+        kind = Kind.BLANK;
+        numericValue = 0;
+        text = null;
+        formatIndex = 0;
+        formatString = null;
+        formulaResult = false;
+    }
+
+    void setNumeric(double value, int formatIndex, String formatString) {
+        this.kind = Kind.NUMERIC;
+        this.numericValue = value;
+        this.text = null;
+        this.formatIndex = formatIndex;
+        this.formatString = formatString;
+        this.formulaResult = false;
+    }
+
+    /** Marks the numeric value as the result of a formula; those are read as displayed, not as stored. */
+    void markFormulaResult() {
+        this.formulaResult = true;
+    }
+
+    void setText(String value) {
+        this.kind = Kind.TEXT;
+        this.text = value == null ? "" : value;
+    }
+
+    void setBoolean(boolean value) {
+        this.kind = Kind.BOOLEAN;
+        this.text = value ? "TRUE" : "FALSE";
+    }
+
+    void setError(String errorText) {
+        this.kind = Kind.ERROR;
+        this.text = errorText == null ? "" : errorText;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    double getNumericValue() {
+        return numericValue;
+    }
+
+    boolean isFormulaResult() {
+        return formulaResult;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /** Whether the number is whole and its format shows it as plain digits. */
+    boolean isWholeNumberShownAsIs() {
+        return kind == Kind.NUMERIC
+                && numericValue == Math.rint(numericValue)
+                && Math.abs(numericValue) < PLAIN_DIGITS_LIMIT
+                && (formatString == null || "General".equalsIgnoreCase(formatString) || "0".equals(formatString));
+    }
+
+    /** Returns the value as Excel would display it; numeric values are formatted lazily with the cell's style. */
+    String format(DataFormatter dataFormatter) {
+        switch (kind) {
+            case BLANK:
+                return "";
+            case NUMERIC:
+                return formatString == null
+                        ? dataFormatter.formatRawCellContents(numericValue, 0, "General")
+                        : dataFormatter.formatRawCellContents(numericValue, formatIndex, formatString);
+            default:
+                return text;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.app.service;
+
+import org.app.log.LogSink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Decodes several sheets at once and hands their rows on sheet by sheet, in workbook order. */
+final class ConcurrentSheetDecoder {
+    private final List<String> sheetNames = new ArrayList<>();
+    private final List<SheetTask> tasks = new ArrayList<>();
+    private final boolean concurrent;
+
+    ConcurrentSheetDecoder() {
+        this(true);
+    }
+
+    /** With {@code concurrent} false, decodes the sheets one by one on the calling thread. */
+    ConcurrentSheetDecoder(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    /** Decodes one sheet into the sinks on a worker thread, sharing no formatter with the other sheets. */
+    @FunctionalInterface
+    interface SheetTask {
+        ExcelReadResult decode(LogSink logger, SourceRowHandler rowHandler) throws Exception;
+    }
+
+    void add(String sheetName, SheetTask task) {
+        sheetNames.add(sheetName);
+        tasks.add(task);
+    }
+
+    ExcelReadResult decode(LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        if (tasks.isEmpty()) {
+            return new ExcelReadResult(Collections.emptyList());
+        }
+        if (tasks.size() == 1 || !concurrent) {
+            return decodeOnCallingThread(logger, rowHandler);
+        }
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new SheetThreadFactory());
+        try {
+            List<Future<DecodedRows>> sheets = new ArrayList<>(tasks.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                SheetTask task = tasks.get(i);
+                DecodedRows decoded = new DecodedRows(logger.withPrefix(sheetPrefix(sheetNames.get(i))));
+                sheets.add(pool.submit(() -> {
+                    decoded.setResult(task.decode(decoded, decoded));
+                    return decoded;
+                }));
+            }
+            List<SheetReadResult> results = new ArrayList<>(tasks.size());
+            for (int i = 0; i < sheets.size(); i++) {
+                DecodedRows decoded = await(sheets.get(i), sheetNames.get(i));
+                decoded.replay(rowHandler);
+                results.add(new SheetReadResult(sheetNames.get(i),
+                        decoded.getResult().getTotalDataRows(),
+                        decoded.getResult().getSkippedRowCount()));
+            }
+            return new ExcelReadResult(results);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Streams a single sheet, or every sheet when not concurrent, straight through. */
+    private ExcelReadResult decodeOnCallingThread(LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        List<SheetReadResult> results = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            String sheetName = sheetNames.get(i);
+            ExcelReadResult result;
+            try {
+                result = tasks.get(i).decode(logger.withPrefix(sheetPrefix(sheetName)), rowHandler);
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Sheet '" + sheetName + "' could not be read: " + e.getMessage(), e);
+            }
+            results.add(new SheetReadResult(sheetName, result.getTotalDataRows(), result.getSkippedRowCount()));
+        }
+        return new ExcelReadResult(results);
+    }
+
+    static String sheetPrefix(String sheetName) {
+        return "[" + sheetName + "] ";
+    }
+
+    private static DecodedRows await(Future<DecodedRows> sheet, String sheetName) throws IOException {
+        try {
+            return sheet.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading the Excel file was interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncachedFormulaException) {
+                // the caller reads the workbook again with formulas evaluated
+                throw (UncachedFormulaException) cause;
+            }
+            throw new IOException("Sheet '" + sheetName + "' could not be read: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static final class SheetThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "sheet-decoder-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
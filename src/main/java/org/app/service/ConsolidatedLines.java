@@ -0,0 +1,111 @@
+package org.app.service;
+
+import org.app.csv.InvoiceCsvAppender;
+import org.app.log.LogSink;
+import org.app.model.InvoiceLineTemplate;
+import org.app.model.SourceRow;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/** Sums a consolidated invoice's lines per product as the rows stream past. */
+final class ConsolidatedLines {
+    private static final byte[] SEPARATOR = InvoiceLineTemplate.NOTE_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+
+    private final InvoiceLineTemplate[] templates;
+    private final long[] quantities;
+    private final int[] rowCounts;
+    private final byte[][] notes;
+    private final int[] noteLengths;
+
+    ConsolidatedLines(InvoiceLineStrategy strategy) {
+        this.templates = strategy.getTemplates().toArray(new InvoiceLineTemplate[0]);
+        this.quantities = new long[templates.length];
+        this.rowCounts = new int[templates.length];
+        this.notes = new byte[templates.length][];
+        this.noteLengths = new int[templates.length];
+        Arrays.fill(notes, new byte[0]);
+    }
+
+    void add(List<InvoiceLineTemplate> lines, SourceRow row) {
+        for (int i = 0; i < lines.size(); i++) {
+            InvoiceLineTemplate template = lines.get(i);
+            int product = productOf(template);
+            quantities[product] += template.quantityFor(row);
+            rowCounts[product]++;
+            appendNote(product, row.getMrn());
+        }
+    }
+
+    /** Appends one line per product that any row contributed to, in template order, and returns how many. */
+    int writeTo(InvoiceCsvAppender appender) throws IOException {
+        int written = 0;
+        for (int product = 0; product < templates.length; product++) {
+            if (rowCounts[product] > 0) {
+                appender.append(templates[product].toInvoiceLine(quantities[product],
+                        new String(notes[product], 0, noteLengths[product], StandardCharsets.UTF_8)));
+                written++;
+            }
+        }
+        return written;
+    }
+
+    void logTotals(LogSink logger) {
+        for (int product = 0; product < templates.length; product++) {
+            if (rowCounts[product] > 0) {
+                InvoiceLineTemplate template = templates[product];
+                BigDecimal value = template.getPriceWithoutVat().multiply(BigDecimal.valueOf(quantities[product]));
+                logger.summary("Consolidated '%s': %d rows, quantity %d, %s %s without VAT",
+                        template.getProductDescription(),
+                        rowCounts[product],
+                        quantities[product],
+                        value.stripTrailingZeros().toPlainString(),
+                        template.getDeviz());
+            }
+        }
+    }
+
+    private int productOf(InvoiceLineTemplate template) {
+        // a strategy has a handful of templates, comparing references beats hashing them
+        for (int product = 0; product < templates.length; product++) {
+            if (templates[product] == template) {
+                return product;
+            }
+        }
+        throw new IllegalArgumentException("Not a template of this strategy: " + template.getProductDescription());
+    }
+
+    private void appendNote(int product, String mrn) {
+        int length = noteLengths[product];
+        if (length > 0) {
+            length = put(product, length, SEPARATOR);
+        }
+        for (int i = 0; i < mrn.length(); i++) {
+            char ch = mrn.charAt(i);
+            if (ch >= 0x80) {
+                // MRNs are ASCII; anything else is encoded the slow way
+                noteLengths[product] = put(product, length, mrn.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            ensureCapacity(product, length + 1);
+            notes[product][length++] = (byte) ch;
+        }
+        noteLengths[product] = length;
+    }
+
+    private int put(int product, int length, byte[] bytes) {
+        ensureCapacity(product, length + bytes.length);
+        System.arraycopy(bytes, 0, notes[product], length, bytes.length);
+        return length + bytes.length;
+    }
+
+    private void ensureCapacity(int product, int required) {
+        byte[] note = notes[product];
+        if (required > note.length) {
+            notes[product] = Arrays.copyOf(note, Math.max(required, Math.max(64, note.length * 2)));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.app.service;
+
+import org.app.log.LogEvent;
+import org.app.log.LogLevel;
+import org.app.log.LogSink;
+import org.app.model.SourceRow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Records a background decoder's rows and messages in order, to be replayed in sheet order. */
+final class DecodedRows implements LogSink, SourceRowHandler {
+    private final LogSink target;
+    // log messages (LogEvent) and decoded rows (SourceRow) in the order the decoder emitted them
+    private final List<Object> events = new ArrayList<>();
+    private ExcelReadResult result;
+
+    DecodedRows(LogSink target) {
+        this.target = target;
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level) {
+        return target.isEnabled(level);
+    }
+
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (target.isEnabled(level)) {
+            events.add(new LogEvent(level, pattern, args));
+        }
+    }
+
+    @Override
+    public void onRow(SourceRow row) {
+        events.add(row);
+    }
+
+    ExcelReadResult getResult() {
+        return result;
+    }
+
+    void setResult(ExcelReadResult result) {
+        this.result = result;
+    }
+
+    void replay(SourceRowHandler rowHandler) throws IOException {
+        for (Object event : events) {
+            if (event instanceof SourceRow) {
+                rowHandler.onRow((SourceRow) event);
+            } else {
+                LogEvent logEvent = (LogEvent) event;
+                target.log(logEvent.getLevel(), logEvent.getPattern(), logEvent.getArgs());
+            }
+        }
+        events.clear();
+    }
+}
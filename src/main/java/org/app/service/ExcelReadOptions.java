@@ -0,0 +1,128 @@
+package org.app.service;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+/** Tuning switches for {@link ExcelSourceReader}. */
+public final class ExcelReadOptions {
+    public static final long DEFAULT_ROW_CACHE_MAX_BYTES = 256L << 20;
+    public static final long DEFAULT_LOW_MEMORY_MAX_ENTRY_BYTES = 16L << 30;
+
+    private static final ExcelReadOptions DEFAULTS =
+            new ExcelReadOptions(1, false, SheetSelection.firstSheet(), null, 0, 0);
+
+    private final int decodeParallelism;
+    private final boolean cachedFormulaResults;
+    private final SheetSelection sheets;
+    private final Path rowCacheDirectory;
+    private final long rowCacheMaxBytes;
+    private final long lowMemoryMaxEntryBytes;
+
+    private ExcelReadOptions(int decodeParallelism,
+                             boolean cachedFormulaResults,
+                             SheetSelection sheets,
+                             Path rowCacheDirectory,
+                             long rowCacheMaxBytes,
+                             long lowMemoryMaxEntryBytes) {
+        this.decodeParallelism = decodeParallelism;
+        this.cachedFormulaResults = cachedFormulaResults;
+        this.sheets = sheets;
+        this.rowCacheDirectory = rowCacheDirectory;
+        this.rowCacheMaxBytes = rowCacheMaxBytes;
+        this.lowMemoryMaxEntryBytes = lowMemoryMaxEntryBytes;
+    }
+
+    public static ExcelReadOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /** Loads the whole workbook and decodes its rows in chunks on {@code threads} workers. */
+    public ExcelReadOptions withParallelDecoding(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        return new ExcelReadOptions(threads, cachedFormulaResults, sheets, rowCacheDirectory, rowCacheMaxBytes,
+                lowMemoryMaxEntryBytes);
+    }
+
+    /** Takes formula values from the results Excel cached in the file instead of evaluating the formulas again. */
+    public ExcelReadOptions withCachedFormulaResults(boolean enabled) {
+        return new ExcelReadOptions(decodeParallelism, enabled, sheets, rowCacheDirectory, rowCacheMaxBytes,
+                lowMemoryMaxEntryBytes);
+    }
+
+    /** Reads several sheets instead of only the first. */
+    public ExcelReadOptions withSheets(SheetSelection selection) {
+        return new ExcelReadOptions(decodeParallelism, cachedFormulaResults,
+                Objects.requireNonNull(selection, "selection"), rowCacheDirectory, rowCacheMaxBytes,
+                lowMemoryMaxEntryBytes);
+    }
+
+    /** Keeps every read's rows and messages in {@code directory}, keyed by content, to skip POI next time. */
+    public ExcelReadOptions withRowCache(Path directory, long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        return new ExcelReadOptions(decodeParallelism, cachedFormulaResults, sheets,
+                Objects.requireNonNull(directory, "directory"), maxBytes, lowMemoryMaxEntryBytes);
+    }
+
+    public ExcelReadOptions withoutRowCache() {
+        return new ExcelReadOptions(decodeParallelism, cachedFormulaResults, sheets, null, 0,
+                lowMemoryMaxEntryBytes);
+    }
+
+    /** Reads workbooks too large for the heap: streamed, one sheet at a time, shared strings in temp files. */
+    public ExcelReadOptions withLowMemory(long maxEntryBytes) {
+        if (maxEntryBytes < 1) {
+            throw new IllegalArgumentException("maxEntryBytes must be positive: " + maxEntryBytes);
+        }
+        return new ExcelReadOptions(decodeParallelism, cachedFormulaResults, sheets, rowCacheDirectory,
+                rowCacheMaxBytes, maxEntryBytes);
+    }
+
+    public ExcelReadOptions withoutLowMemory() {
+        return new ExcelReadOptions(decodeParallelism, cachedFormulaResults, sheets, rowCacheDirectory,
+                rowCacheMaxBytes, 0);
+    }
+
+    /** {@code ~/.facturare-csv/row-cache}, where the console and the window keep their row cache. */
+    public static Path defaultRowCacheDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".facturare-csv", "row-cache");
+    }
+
+    public int getDecodeParallelism() {
+        return decodeParallelism;
+    }
+
+    public boolean isUsingCachedFormulaResults() {
+        return cachedFormulaResults;
+    }
+
+    public SheetSelection getSheetSelection() {
+        return sheets;
+    }
+
+    /** The row cache directory, or {@code null} when workbooks are always decoded. */
+    public Path getRowCacheDirectory() {
+        return rowCacheDirectory;
+    }
+
+    public long getRowCacheMaxBytes() {
+        return rowCacheMaxBytes;
+    }
+
+    public boolean isParallelDecoding() {
+        return decodeParallelism > 1;
+    }
+
+    public boolean isLowMemory() {
+        return lowMemoryMaxEntryBytes > 0;
+    }
+
+    /** The most a workbook part may unpack to in low-memory mode, or {@code 0} outside it. */
+    public long getLowMemoryMaxEntryBytes() {
+        return lowMemoryMaxEntryBytes;
+    }
+}
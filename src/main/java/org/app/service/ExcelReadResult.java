@@ -2,6 +2,7 @@ package org.app.service;
 
 import org.app.model.SourceRow;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -9,11 +10,30 @@ public class ExcelReadResult {
     private final List<SourceRow> rows;
     private final int totalDataRows;
     private final int skippedRowCount;
+    private final List<SheetReadResult> sheets;
 
     public ExcelReadResult(List<SourceRow> rows, int totalDataRows, int skippedRowCount) {
+        this(rows, totalDataRows, skippedRowCount, Collections.emptyList());
+    }
+
+    /** Counters of a streamed read; the rows themselves were handed to a {@link SourceRowHandler}. */
+    public ExcelReadResult(int totalDataRows, int skippedRowCount) {
+        this(Collections.emptyList(), totalDataRows, skippedRowCount);
+    }
+
+    /** Counters of a streamed read over several sheets; the totals are the sums of the sheets. */
+    public ExcelReadResult(List<SheetReadResult> sheets) {
+        this(Collections.emptyList(), sumDataRows(sheets), sumSkippedRows(sheets), sheets);
+    }
+
+    private ExcelReadResult(List<SourceRow> rows,
+                            int totalDataRows,
+                            int skippedRowCount,
+                            List<SheetReadResult> sheets) {
         this.rows = Collections.unmodifiableList(rows);
         this.totalDataRows = totalDataRows;
         this.skippedRowCount = skippedRowCount;
+        this.sheets = Collections.unmodifiableList(new ArrayList<>(sheets));
     }
 
     public List<SourceRow> getRows() {
@@ -27,4 +47,25 @@ public class ExcelReadResult {
     public int getSkippedRowCount() {
         return skippedRowCount;
     }
+
+    /** Counters per sheet, in workbook order, when the read was not limited to the first sheet; empty otherwise. */
+    public List<SheetReadResult> getSheets() {
+        return sheets;
+    }
+
+    private static int sumDataRows(List<SheetReadResult> sheets) {
+        int total = 0;
+        for (SheetReadResult sheet : sheets) {
+            total += sheet.getTotalDataRows();
+        }
+        return total;
+    }
+
+    private static int sumSkippedRows(List<SheetReadResult> sheets) {
+        int total = 0;
+        for (SheetReadResult sheet : sheets) {
+            total += sheet.getSkippedRowCount();
+        }
+        return total;
+    }
 }
@@ -1,14 +1,8 @@
 package org.app.service;
 
-import org.apache.poi.EncryptedDocumentException;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.poifs.filesystem.FileMagic;
 import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.app.log.LogSink;
 import org.app.model.SourceRow;
 
 import java.io.File;
@@ -16,108 +10,179 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 
+/** Reads the invoice rows of a workbook. */
 public class ExcelSourceReader {
-    private static final int MRN_COLUMN_INDEX = 2;
-    private static final int LINES_COLUMN_INDEX = 7;
-    private static final int CUSTOMS_COLUMN_INDEX = 11;
+    static final int MRN_COLUMN_INDEX = 2;
+    static final int LINES_COLUMN_INDEX = 7;
+    static final int CUSTOMS_COLUMN_INDEX = 11;
 
-    private final DataFormatter dataFormatter = new DataFormatter(Locale.US, true);
+    private final ExcelReadOptions options;
+    private final Queue<DataFormatter> formatters = new ConcurrentLinkedQueue<>();
+    private final RowSnapshotCache rowCache;
+    private volatile ExcelSourceReader evaluatingReader;
+
+    public ExcelSourceReader() {
+        this(ExcelReadOptions.defaults());
+    }
+
+    public ExcelSourceReader(ExcelReadOptions options) {
+        this.options = Objects.requireNonNull(options, "options");
+        this.rowCache = options.getRowCacheDirectory() == null
+                ? null
+                : new RowSnapshotCache(options.getRowCacheDirectory(), options.getRowCacheMaxBytes());
+    }
 
     public ExcelReadResult read(File excelFile, Consumer<String> logger) throws IOException {
         List<SourceRow> validRows = new ArrayList<>();
-        int totalDataRows = 0;
-        int skippedRows = 0;
-
-        try (Workbook workbook = WorkbookFactory.create(excelFile)) {
-            FormulaEvaluator evaluator = workbook.getCreationHelper().createFormulaEvaluator();
-            if (workbook.getNumberOfSheets() == 0) {
-                logger.accept("The Excel file does not contain any sheets.");
-                return new ExcelReadResult(validRows, 0, 0);
-            }
+        ExcelReadResult counts = read(excelFile, LogSink.of(logger), validRows::add);
+        return new ExcelReadResult(validRows, counts.getTotalDataRows(), counts.getSkippedRowCount());
+    }
 
-            Sheet sheet = workbook.getSheetAt(0);
-            int lastRowIndex = sheet.getLastRowNum();
-            for (int rowIndex = 1; rowIndex <= lastRowIndex; rowIndex++) {
-                Row row = sheet.getRow(rowIndex);
-                int excelRowNumber = rowIndex + 1; // Excel rows are 1-based
-                if (row == null || isRowEmpty(row, evaluator)) {
-                    logger.accept(String.format("WARN: Row %d skipped: empty row", excelRowNumber));
-                    continue;
-                }
-
-                totalDataRows++;
-
-                String mrn = readString(row.getCell(MRN_COLUMN_INDEX), evaluator);
-                if (mrn == null || mrn.isEmpty()) {
-                    skippedRows++;
-                    logger.accept(String.format("ERROR: Row %d ignored: missing MRN", excelRowNumber));
-                    continue;
-                }
-
-                Integer linesCount = readInteger(row.getCell(LINES_COLUMN_INDEX), evaluator);
-                if (linesCount == null) {
-                    skippedRows++;
-                    logger.accept(String.format("ERROR: Row %d ignored: invalid 'linii' value", excelRowNumber));
-                    continue;
-                }
-
-                boolean hasCustomsLine = hasCustomsFlag(row.getCell(CUSTOMS_COLUMN_INDEX), evaluator);
-                validRows.add(new SourceRow(excelRowNumber, mrn.trim(), linesCount, hasCustomsLine));
+    /** Reads the workbook and hands every valid row to {@code rowHandler} as soon as it is decoded. */
+    public ExcelReadResult read(File excelFile, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        if (rowCache == null) {
+            return decode(excelFile, logger, rowHandler);
+        }
+        String key = rowCache.keyFor(excelFile, decodeSettings());
+        ExcelReadResult cached = rowCache.replay(key, logger, rowHandler);
+        if (cached != null) {
+            return cached;
+        }
+        RowSnapshotCache.Recorder recorder;
+        try {
+            recorder = rowCache.record(key, logger, rowHandler);
+        } catch (IOException e) {
+            // an unusable cache directory only costs the speed-up
+            logger.debug("Row cache not used: %s", e.getMessage());
+            return decode(excelFile, logger, rowHandler);
+        }
+        try (RowSnapshotCache.Recorder recording = recorder) {
+            ExcelReadResult result = decode(excelFile, recording, recording);
+            if (!recording.commit(result)) {
+                logger.debug("Row cache not updated for '%s'", excelFile.getName());
             }
-        } catch (EncryptedDocumentException e) {
-            throw new IOException("The Excel file appears to be encrypted and cannot be read.", e);
+            return result;
         }
-
-        return new ExcelReadResult(validRows, totalDataRows, skippedRows);
     }
 
-    private boolean isRowEmpty(Row row, FormulaEvaluator evaluator) {
-        return isCellBlank(row.getCell(MRN_COLUMN_INDEX), evaluator)
-                && isCellBlank(row.getCell(LINES_COLUMN_INDEX), evaluator)
-                && isCellBlank(row.getCell(CUSTOMS_COLUMN_INDEX), evaluator);
+    /** The data rows the selected sheets declare, for progress; only the start of every sheet is read. */
+    public long countDeclaredRows(File excelFile) {
+        try {
+            FileMagic fileMagic = FileMagic.valueOf(excelFile);
+            if (fileMagic == FileMagic.OOXML) {
+                return XlsxSheetReader.countDeclaredRows(excelFile, options.getSheetSelection(),
+                        options.getLowMemoryMaxEntryBytes());
+            }
+            if (fileMagic == FileMagic.OLE2) {
+                return XlsSheetReader.countDeclaredRows(excelFile, options.getSheetSelection());
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // the read itself reports what is wrong with the workbook
+        }
+        return -1;
     }
 
-    private boolean isCellBlank(Cell cell, FormulaEvaluator evaluator) {
-        if (cell == null) {
-            return true;
+    /** A reader that evaluates formulas, to retry after an {@link UncachedFormulaException}, or {@code null}. */
+    ExcelSourceReader evaluatingFormulas() {
+        if (options.isLowMemory()) {
+            return null;
         }
-        if (cell.getCellType() == CellType.BLANK) {
-            return true;
+        if (isLoadingWorkbook() && !options.isUsingCachedFormulaResults()) {
+            return this;
         }
-        String formatted = dataFormatter.formatCellValue(cell, evaluator);
-        return formatted == null || formatted.trim().isEmpty();
+        ExcelSourceReader evaluating = evaluatingReader;
+        if (evaluating == null) {
+            // a benign race: two threads may each create one
+            evaluating = new ExcelSourceReader(options
+                    .withParallelDecoding(Math.max(2, options.getDecodeParallelism()))
+                    .withCachedFormulaResults(false));
+            evaluatingReader = evaluating;
+        }
+        return evaluating;
     }
 
-    private String readString(Cell cell, FormulaEvaluator evaluator) {
-        if (cell == null) {
-            return null;
+    private ExcelReadResult decode(File excelFile, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        if (!options.isLowMemory()) {
+            return readWorkbook(excelFile, logger, rowHandler);
+        }
+        try {
+            return readWorkbook(excelFile, logger, rowHandler);
+        } catch (OutOfMemoryError e) {
+            // nothing of the read is referenced any more once it has unwound, so the heap is usable again
+            throw new IOException(String.format(
+                    "'%s' does not fit in the %d MB of memory Java may use, even in low-memory mode. "
+                            + "Start Java with a larger -Xmx.",
+                    excelFile.getName(), Runtime.getRuntime().maxMemory() >> 20), e);
         }
-        return dataFormatter.formatCellValue(cell, evaluator).trim();
     }
 
-    private Integer readInteger(Cell cell, FormulaEvaluator evaluator) {
-        if (cell == null) {
-            return null;
+    private ExcelReadResult readWorkbook(File excelFile, LogSink logger, SourceRowHandler rowHandler)
+            throws IOException {
+        DataFormatter formatter = formatters.poll();
+        if (formatter == null) {
+            formatter = new DataFormatter(Locale.US, true);
         }
-        if (cell.getCellType() == CellType.NUMERIC) {
-            return (int) Math.round(cell.getNumericCellValue());
+        try {
+            SheetSelection sheets = options.getSheetSelection();
+            if (!sheets.isFirstSheetOnly()) {
+                return readSheets(excelFile, sheets, formatter, logger, rowHandler);
+            }
+            if (isLoadingWorkbook()) {
+                return workbookSheetReader(formatter).read(excelFile, logger, rowHandler);
+            }
+            // both formats are streamed so memory does not grow with the sheet size
+            FileMagic fileMagic = FileMagic.valueOf(excelFile);
+            if (fileMagic == FileMagic.OOXML) {
+                return new XlsxSheetReader(formatter, options.getLowMemoryMaxEntryBytes())
+                        .read(excelFile, logger, rowHandler);
+            }
+            if (fileMagic == FileMagic.OLE2) {
+                return new XlsSheetReader(formatter).read(excelFile, logger, rowHandler);
+            }
+            return workbookSheetReader(formatter).read(excelFile, logger, rowHandler);
+        } finally {
+            formatters.offer(formatter);
         }
-        String value = dataFormatter.formatCellValue(cell, evaluator).trim();
-        if (value.isEmpty()) {
-            return null;
+    }
+
+    /** The options that change which rows are decoded, part of the row cache key. */
+    private String decodeSettings() {
+        // only the full workbook model evaluates formulas, the streaming readers take the cached results
+        boolean evaluated = isLoadingWorkbook() && !options.isUsingCachedFormulaResults();
+        return options.getSheetSelection() + "|" + (evaluated ? "evaluated formulas" : "cached formulas");
+    }
+
+    /** Whether the full workbook model is loaded for parallel decoding; low-memory mode always streams. */
+    private boolean isLoadingWorkbook() {
+        return options.isParallelDecoding() && !options.isLowMemory();
+    }
+
+    private ExcelReadResult readSheets(File excelFile,
+                                       SheetSelection sheets,
+                                       DataFormatter formatter,
+                                       LogSink logger,
+                                       SourceRowHandler rowHandler) throws IOException {
+        if (isLoadingWorkbook()) {
+            return workbookSheetReader(formatter).read(excelFile, sheets, logger, rowHandler);
         }
-        try {
-            double parsed = Double.parseDouble(value.replace(',', '.'));
-            return (int) Math.round(parsed);
-        } catch (NumberFormatException ex) {
-            return null;
+        FileMagic fileMagic = FileMagic.valueOf(excelFile);
+        if (fileMagic == FileMagic.OOXML) {
+            return new XlsxSheetReader(formatter, options.getLowMemoryMaxEntryBytes())
+                    .read(excelFile, sheets, logger, rowHandler);
+        }
+        if (fileMagic == FileMagic.OLE2) {
+            return new XlsSheetReader(formatter).read(excelFile, sheets, logger, rowHandler);
         }
+        return workbookSheetReader(formatter).read(excelFile, sheets, logger, rowHandler);
     }
 
-    private boolean hasCustomsFlag(Cell cell, FormulaEvaluator evaluator) {
-        Integer value = readInteger(cell, evaluator);
-        return value != null && value == 180;
+    private WorkbookSheetReader workbookSheetReader(DataFormatter formatter) {
+        return new WorkbookSheetReader(formatter, options.getDecodeParallelism(),
+                options.isUsingCachedFormulaResults());
     }
 }
@@ -1,10 +1,11 @@
 package org.app.service;
 
-import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
 import org.app.model.SourceRow;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 class FanInvoiceLineStrategy implements InvoiceLineStrategy {
@@ -20,56 +21,25 @@ class FanInvoiceLineStrategy implements InvoiceLineStrategy {
     private static final BigDecimal PRICE_TIR = BigDecimal.valueOf(15);
     private static final BigDecimal PRICE_CUSTOMS = BigDecimal.valueOf(180);
 
-    @Override
-    public List<InvoiceLine> buildLines(SourceRow row) {
-        List<InvoiceLine> result = new ArrayList<>(3);
-        result.add(buildBaseLine(row));
-        result.add(buildTirLine(row));
-        if (row.hasCustomsOutsideWorkingHours()) {
-            result.add(buildCustomsLine(row));
-        }
-        return result;
-    }
+    private static final InvoiceLineTemplate BASE_LINE = new InvoiceLineTemplate(
+            NR_CRT, CUSTOMER_TAX_CODE, CUSTOMER_NAME, DEVIZ, DESC_BASE, null, PRICE_ZERO, VAT_RATE);
+    private static final InvoiceLineTemplate TIR_LINE = new InvoiceLineTemplate(
+            NR_CRT, CUSTOMER_TAX_CODE, CUSTOMER_NAME, DEVIZ, DESC_TIR, 1, PRICE_TIR, VAT_RATE);
+    private static final InvoiceLineTemplate CUSTOMS_LINE = new InvoiceLineTemplate(
+            NR_CRT, "", CUSTOMER_NAME, DEVIZ, DESC_CUSTOMS, 1, PRICE_CUSTOMS, VAT_RATE);
 
-    private InvoiceLine buildBaseLine(SourceRow row) {
-        return new InvoiceLine(
-                NR_CRT,
-                CUSTOMER_TAX_CODE,
-                CUSTOMER_NAME,
-                DEVIZ,
-                DESC_BASE,
-                BigDecimal.valueOf(row.getLinesCount()),
-                PRICE_ZERO,
-                VAT_RATE,
-                row.buildProductNote()
-        );
-    }
+    private static final List<InvoiceLineTemplate> REGULAR_ROW =
+            Collections.unmodifiableList(Arrays.asList(BASE_LINE, TIR_LINE));
+    private static final List<InvoiceLineTemplate> CUSTOMS_ROW =
+            Collections.unmodifiableList(Arrays.asList(BASE_LINE, TIR_LINE, CUSTOMS_LINE));
 
-    private InvoiceLine buildTirLine(SourceRow row) {
-        return new InvoiceLine(
-                NR_CRT,
-                CUSTOMER_TAX_CODE,
-                CUSTOMER_NAME,
-                DEVIZ,
-                DESC_TIR,
-                BigDecimal.ONE,
-                PRICE_TIR,
-                VAT_RATE,
-                row.buildProductNote()
-        );
+    @Override
+    public List<InvoiceLineTemplate> linesFor(SourceRow row) {
+        return row.hasCustomsOutsideWorkingHours() ? CUSTOMS_ROW : REGULAR_ROW;
     }
 
-    private InvoiceLine buildCustomsLine(SourceRow row) {
-        return new InvoiceLine(
-                NR_CRT,
-                "",
-                CUSTOMER_NAME,
-                DEVIZ,
-                DESC_CUSTOMS,
-                BigDecimal.ONE,
-                PRICE_CUSTOMS,
-                VAT_RATE,
-                row.buildProductNote()
-        );
+    @Override
+    public List<InvoiceLineTemplate> getTemplates() {
+        return CUSTOMS_ROW;
     }
 }
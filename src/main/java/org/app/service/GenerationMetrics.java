@@ -0,0 +1,196 @@
+package org.app.service;
+
+import org.app.model.BusinessMode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/** Where the time of one {@code generate} or {@code generateBatch} run went, stage by stage. */
+public final class GenerationMetrics {
+    /** The stages of a run, in pipeline order. */
+    public enum Stage {
+        /** Opening the output CSV and the MRN ledger, which may have to catch up on the CSV. */
+        OPEN("open"),
+        /** Opening and decoding the workbook (zip, XML or BIFF records, cell formatting, formulas). */
+        READ("read"),
+        /** Looking up and recording MRNs in the ledger. */
+        MRN_LEDGER("mrnLedger"),
+        /** Turning a row into its invoice lines, or adding it to the consolidated lines. */
+        STRATEGY("strategy"),
+        /** Encoding the lines into the CSV. */
+        CSV_WRITE("csvWrite"),
+        /** Flushing the CSV and the ledger to disk. */
+        COMMIT("commit");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+
+        /** The name of the stage in {@link #toJson()}. */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final String source;
+    private final BusinessMode mode;
+    private final int dataRows;
+    private final int skippedRows;
+    private final int alreadyInvoicedRows;
+    private final int processedRows;
+    private final int invoiceLines;
+    private final long totalNanos;
+    private final long[] stageNanos;
+    private final long allocatedBytes;
+
+    GenerationMetrics(String source,
+                      BusinessMode mode,
+                      int dataRows,
+                      int skippedRows,
+                      int alreadyInvoicedRows,
+                      int processedRows,
+                      int invoiceLines,
+                      long totalNanos,
+                      long[] stageNanos,
+                      long allocatedBytes) {
+        this.source = Objects.requireNonNull(source, "source");
+        this.mode = Objects.requireNonNull(mode, "mode");
+        this.dataRows = dataRows;
+        this.skippedRows = skippedRows;
+        this.alreadyInvoicedRows = alreadyInvoicedRows;
+        this.processedRows = processedRows;
+        this.invoiceLines = invoiceLines;
+        this.totalNanos = totalNanos;
+        this.stageNanos = Arrays.copyOf(stageNanos, STAGES.length);
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /** The workbook's file name, or "N workbooks" for a batch. */
+    public String getSource() {
+        return source;
+    }
+
+    public BusinessMode getMode() {
+        return mode;
+    }
+
+    public int getDataRows() {
+        return dataRows;
+    }
+
+    public int getSkippedRows() {
+        return skippedRows;
+    }
+
+    public int getAlreadyInvoicedRows() {
+        return alreadyInvoicedRows;
+    }
+
+    public int getProcessedRows() {
+        return processedRows;
+    }
+
+    public int getInvoiceLines() {
+        return invoiceLines;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** Excel data rows per second of the whole run. */
+    public double getRowsPerSecond() {
+        return totalNanos > 0 ? dataRows * (double) TimeUnit.SECONDS.toNanos(1) / totalNanos : 0;
+    }
+
+    /** Allocated bytes per Excel data row, or {@code -1} when unknown. */
+    public double getAllocatedBytesPerRow() {
+        if (allocatedBytes < 0) {
+            return -1;
+        }
+        return dataRows > 0 ? allocatedBytes / (double) dataRows : 0;
+    }
+
+    /** The metrics as one line of JSON, times in milliseconds. */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append('{');
+        json.append("\"source\":");
+        appendString(json, source);
+        json.append(",\"mode\":\"").append(mode.name()).append('"');
+        json.append(",\"dataRows\":").append(dataRows);
+        json.append(",\"skippedRows\":").append(skippedRows);
+        json.append(",\"alreadyInvoicedRows\":").append(alreadyInvoicedRows);
+        json.append(",\"processedRows\":").append(processedRows);
+        json.append(",\"invoiceLines\":").append(invoiceLines);
+        json.append(",\"totalMillis\":").append(millis(totalNanos));
+        json.append(",\"rowsPerSecond\":").append(decimal(getRowsPerSecond()));
+        json.append(",\"allocatedBytes\":").append(allocatedBytes);
+        json.append(",\"allocatedBytesPerRow\":").append(decimal(getAllocatedBytesPerRow()));
+        json.append(",\"stageMillis\":{");
+        for (Stage stage : STAGES) {
+            if (stage.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(stage.getKey()).append("\":").append(millis(getStageNanos(stage)));
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /** Bytes allocated so far by the calling thread, or {@code -1} when the JVM does not count them. */
+    static long currentThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static String millis(long nanos) {
+        return decimal(nanos / 1_000_000.0);
+    }
+
+    private static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                json.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                json.append(String.format(Locale.ROOT, "\\u%04x", (int) ch));
+            } else {
+                json.append(ch);
+            }
+        }
+        json.append('"');
+    }
+}
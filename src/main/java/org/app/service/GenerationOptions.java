@@ -0,0 +1,101 @@
+package org.app.service;
+
+import org.app.csv.CsvShardLimits;
+import org.app.csv.CsvWriterMode;
+
+import java.util.Objects;
+
+/** Switches for {@link InvoiceGenerationService}. */
+public final class GenerationOptions {
+    private static final GenerationOptions DEFAULTS =
+            new GenerationOptions(ExcelReadOptions.defaults(), true, false, CsvWriterMode.STANDARD, false, null);
+
+    private final ExcelReadOptions readOptions;
+    private final boolean mrnLedger;
+    private final boolean repeatedMrnsSkipped;
+    private final CsvWriterMode csvWriterMode;
+    private final boolean consolidatedLines;
+    private final CsvShardLimits csvShardLimits;
+
+    private GenerationOptions(ExcelReadOptions readOptions,
+                              boolean mrnLedger,
+                              boolean repeatedMrnsSkipped,
+                              CsvWriterMode csvWriterMode,
+                              boolean consolidatedLines,
+                              CsvShardLimits csvShardLimits) {
+        this.readOptions = readOptions;
+        this.mrnLedger = mrnLedger;
+        this.repeatedMrnsSkipped = repeatedMrnsSkipped;
+        this.csvWriterMode = csvWriterMode;
+        this.consolidatedLines = consolidatedLines;
+        this.csvShardLimits = csvShardLimits;
+    }
+
+    public static GenerationOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public GenerationOptions withReadOptions(ExcelReadOptions readOptions) {
+        return new GenerationOptions(Objects.requireNonNull(readOptions, "readOptions"), mrnLedger,
+                repeatedMrnsSkipped, csvWriterMode, consolidatedLines, csvShardLimits);
+    }
+
+    /** Keeps a {@code .mrn-index} file next to the CSV and skips rows whose MRN the CSV held before the run. */
+    public GenerationOptions withMrnLedger(boolean enabled) {
+        return new GenerationOptions(readOptions, enabled, repeatedMrnsSkipped, csvWriterMode, consolidatedLines,
+                csvShardLimits);
+    }
+
+    /** With the ledger, also skips rows whose MRN an earlier row of the same run already invoiced. */
+    public GenerationOptions withRepeatedMrnsSkipped(boolean enabled) {
+        return new GenerationOptions(readOptions, mrnLedger, enabled, csvWriterMode, consolidatedLines,
+                csvShardLimits);
+    }
+
+    public GenerationOptions withCsvWriterMode(CsvWriterMode mode) {
+        return new GenerationOptions(readOptions, mrnLedger, repeatedMrnsSkipped, Objects.requireNonNull(mode, "mode"),
+                consolidatedLines, csvShardLimits);
+    }
+
+    /** Writes one line per product, quantities summed and MRNs listed in the note, instead of per-row lines. */
+    public GenerationOptions withConsolidatedLines(boolean enabled) {
+        return new GenerationOptions(readOptions, mrnLedger, repeatedMrnsSkipped, csvWriterMode, enabled,
+                csvShardLimits);
+    }
+
+    /** Writes the output as numbered shards next to the output path, rolling over at {@code limits}. */
+    public GenerationOptions withCsvShards(CsvShardLimits limits) {
+        return new GenerationOptions(readOptions, mrnLedger, repeatedMrnsSkipped, csvWriterMode, consolidatedLines,
+                Objects.requireNonNull(limits, "limits"));
+    }
+
+    public GenerationOptions withoutCsvShards() {
+        return new GenerationOptions(readOptions, mrnLedger, repeatedMrnsSkipped, csvWriterMode, consolidatedLines,
+                null);
+    }
+
+    public ExcelReadOptions getReadOptions() {
+        return readOptions;
+    }
+
+    public boolean isMrnLedgerEnabled() {
+        return mrnLedger;
+    }
+
+    public boolean isSkippingRepeatedMrns() {
+        return mrnLedger && repeatedMrnsSkipped;
+    }
+
+    public CsvWriterMode getCsvWriterMode() {
+        return csvWriterMode;
+    }
+
+    public boolean isConsolidatingLines() {
+        return consolidatedLines;
+    }
+
+    /** The shard limits, or {@code null} when a single CSV is written. */
+    public CsvShardLimits getCsvShardLimits() {
+        return csvShardLimits;
+    }
+}
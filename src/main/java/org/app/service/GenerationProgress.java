@@ -0,0 +1,21 @@
+package org.app.service;
+
+/** Follows a generation as the rows are read, and may stop it. */
+public interface GenerationProgress {
+    /** Follows nothing and never cancels. */
+    GenerationProgress NONE = new GenerationProgress() {
+    };
+
+    /** The data rows the workbook declares, or {@code -1}; called again when it is read a second time. */
+    default void expectedRows(long rows) {
+    }
+
+    /** Called for every valid row before its lines are written, with its Excel row number. */
+    default void rowRead(int excelRowNumber) {
+    }
+
+    /** Asked before every row; {@code true} stops the generation with an {@link java.io.InterruptedIOException}. */
+    default boolean isCancelled() {
+        return false;
+    }
+}
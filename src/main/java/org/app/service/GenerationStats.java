@@ -0,0 +1,136 @@
+package org.app.service;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.function.Consumer;
+
+/** Collects a service's {@link GenerationMetrics} and offers the totals and the last run to JMX tools. */
+public final class GenerationStats implements GenerationStatsMBean, Consumer<GenerationMetrics> {
+    public static final String OBJECT_NAME = "org.app:type=GenerationStats";
+
+    private long runCount;
+    private long totalDataRows;
+    private long totalInvoiceLines;
+    private GenerationMetrics last;
+
+    @Override
+    public synchronized void accept(GenerationMetrics metrics) {
+        runCount++;
+        totalDataRows += metrics.getDataRows();
+        totalInvoiceLines += metrics.getInvoiceLines();
+        last = metrics;
+    }
+
+    /** Registers these stats with the platform MBean server under {@link #OBJECT_NAME}, replacing any before. */
+    public void registerPlatformMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    @Override
+    public synchronized long getRunCount() {
+        return runCount;
+    }
+
+    @Override
+    public synchronized long getTotalDataRows() {
+        return totalDataRows;
+    }
+
+    @Override
+    public synchronized long getTotalInvoiceLines() {
+        return totalInvoiceLines;
+    }
+
+    @Override
+    public synchronized String getLastSource() {
+        return last == null ? "" : last.getSource();
+    }
+
+    @Override
+    public synchronized String getLastMode() {
+        return last == null ? "" : last.getMode().name();
+    }
+
+    @Override
+    public synchronized int getLastDataRows() {
+        return last == null ? 0 : last.getDataRows();
+    }
+
+    @Override
+    public synchronized int getLastInvoiceLines() {
+        return last == null ? 0 : last.getInvoiceLines();
+    }
+
+    @Override
+    public synchronized double getLastTotalMillis() {
+        return last == null ? 0 : millis(last.getTotalNanos());
+    }
+
+    @Override
+    public double getLastOpenMillis() {
+        return stageMillis(GenerationMetrics.Stage.OPEN);
+    }
+
+    @Override
+    public double getLastReadMillis() {
+        return stageMillis(GenerationMetrics.Stage.READ);
+    }
+
+    @Override
+    public double getLastMrnLedgerMillis() {
+        return stageMillis(GenerationMetrics.Stage.MRN_LEDGER);
+    }
+
+    @Override
+    public double getLastStrategyMillis() {
+        return stageMillis(GenerationMetrics.Stage.STRATEGY);
+    }
+
+    @Override
+    public double getLastCsvWriteMillis() {
+        return stageMillis(GenerationMetrics.Stage.CSV_WRITE);
+    }
+
+    @Override
+    public double getLastCommitMillis() {
+        return stageMillis(GenerationMetrics.Stage.COMMIT);
+    }
+
+    @Override
+    public synchronized double getLastRowsPerSecond() {
+        return last == null ? 0 : last.getRowsPerSecond();
+    }
+
+    @Override
+    public synchronized double getLastAllocatedBytesPerRow() {
+        return last == null ? 0 : last.getAllocatedBytesPerRow();
+    }
+
+    @Override
+    public synchronized String getLastReportJson() {
+        return last == null ? "" : last.toJson();
+    }
+
+    @Override
+    public synchronized void reset() {
+        runCount = 0;
+        totalDataRows = 0;
+        totalInvoiceLines = 0;
+        last = null;
+    }
+
+    private synchronized double stageMillis(GenerationMetrics.Stage stage) {
+        return last == null ? 0 : millis(last.getStageNanos(stage));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,41 @@
+package org.app.service;
+
+/** The JMX view of {@link GenerationStats}; times in milliseconds, last-run values {@code 0} until a run ends. */
+public interface GenerationStatsMBean {
+    long getRunCount();
+
+    long getTotalDataRows();
+
+    long getTotalInvoiceLines();
+
+    String getLastSource();
+
+    String getLastMode();
+
+    int getLastDataRows();
+
+    int getLastInvoiceLines();
+
+    double getLastTotalMillis();
+
+    double getLastOpenMillis();
+
+    double getLastReadMillis();
+
+    double getLastMrnLedgerMillis();
+
+    double getLastStrategyMillis();
+
+    double getLastCsvWriteMillis();
+
+    double getLastCommitMillis();
+
+    double getLastRowsPerSecond();
+
+    double getLastAllocatedBytesPerRow();
+
+    /** The last run as {@link GenerationMetrics#toJson()} writes it. */
+    String getLastReportJson();
+
+    void reset();
+}
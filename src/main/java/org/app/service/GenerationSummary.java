@@ -0,0 +1,75 @@
+package org.app.service;
+
+import java.io.File;
+
+/** Outcome of generating invoice lines for one workbook of a batch. */
+public class GenerationSummary {
+    private final File excelFile;
+    private final int totalDataRows;
+    private final int skippedRowCount;
+    private final int processedRowCount;
+    private final int customsRowCount;
+    private final int invoiceLineCount;
+    private final int alreadyInvoicedRowCount;
+    private final String failure;
+
+    GenerationSummary(File excelFile,
+                      int totalDataRows,
+                      int skippedRowCount,
+                      int processedRowCount,
+                      int customsRowCount,
+                      int invoiceLineCount,
+                      int alreadyInvoicedRowCount,
+                      String failure) {
+        this.excelFile = excelFile;
+        this.totalDataRows = totalDataRows;
+        this.skippedRowCount = skippedRowCount;
+        this.processedRowCount = processedRowCount;
+        this.customsRowCount = customsRowCount;
+        this.invoiceLineCount = invoiceLineCount;
+        this.alreadyInvoicedRowCount = alreadyInvoicedRowCount;
+        this.failure = failure;
+    }
+
+    static GenerationSummary failed(File excelFile, String failure) {
+        return new GenerationSummary(excelFile, 0, 0, 0, 0, 0, 0, failure);
+    }
+
+    public File getExcelFile() {
+        return excelFile;
+    }
+
+    public int getTotalDataRows() {
+        return totalDataRows;
+    }
+
+    public int getSkippedRowCount() {
+        return skippedRowCount;
+    }
+
+    public int getProcessedRowCount() {
+        return processedRowCount;
+    }
+
+    public int getCustomsRowCount() {
+        return customsRowCount;
+    }
+
+    public int getInvoiceLineCount() {
+        return invoiceLineCount;
+    }
+
+    /** Valid rows left out because the MRN ledger showed the CSV already invoices their MRN. */
+    public int getAlreadyInvoicedRowCount() {
+        return alreadyInvoicedRowCount;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /** Returns why the workbook was left out of the CSV, or {@code null} when it was processed. */
+    public String getFailure() {
+        return failure;
+    }
+}
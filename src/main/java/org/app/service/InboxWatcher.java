@@ -0,0 +1,271 @@
+package org.app.service;
+
+import org.app.log.LogSink;
+import org.app.model.BusinessMode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** Keeps one warm {@link InvoiceGenerationService} generating every workbook dropped into an inbox. */
+public final class InboxWatcher implements Closeable {
+    public static final long DEFAULT_SETTLE_MILLIS = 300;
+    public static final long OUTPUT_RETRY_MILLIS = 30_000;
+
+    private static final String PROCESSED_DIRECTORY = "processed";
+    private static final String FAILED_DIRECTORY = "failed";
+
+    private final InvoiceGenerationService service;
+    private final BusinessMode mode;
+    private final Path inbox;
+    private final Path outputCsv;
+    private final LogSink logger;
+    private final long settleNanos;
+    private final Map<Path, Observation> arriving = new LinkedHashMap<>();
+    // workbooks whose CSV could not be written, and the System.nanoTime() to try them again at
+    private final Map<Path, Long> retries = new LinkedHashMap<>();
+    private volatile WatchService watchService;
+    private volatile boolean closed;
+
+    public InboxWatcher(InvoiceGenerationService service,
+                        BusinessMode mode,
+                        Path inbox,
+                        Path outputCsv,
+                        LogSink logger,
+                        long settleMillis) {
+        this.service = Objects.requireNonNull(service, "service");
+        this.mode = Objects.requireNonNull(mode, "mode");
+        this.inbox = Objects.requireNonNull(inbox, "inbox").toAbsolutePath().normalize();
+        this.outputCsv = Objects.requireNonNull(outputCsv, "outputCsv");
+        this.logger = Objects.requireNonNull(logger, "logger");
+        if (settleMillis < 0) {
+            throw new IllegalArgumentException("settleMillis must not be negative: " + settleMillis);
+        }
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+    }
+
+    /** Watches the inbox until {@link #close()} is called. */
+    public void run() throws IOException, InterruptedException {
+        Files.createDirectories(inbox.resolve(PROCESSED_DIRECTORY));
+        Files.createDirectories(inbox.resolve(FAILED_DIRECTORY));
+        try (WatchService watcher = inbox.getFileSystem().newWatchService()) {
+            watchService = watcher;
+            if (closed) {
+                return;
+            }
+            inbox.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            logger.summary("Watching %s for %s workbooks, CSV: %s", inbox, mode.getDisplayName(), outputCsv);
+            scanInbox();
+            while (!closed) {
+                // with nothing arriving or to retry there is nothing to re-check, so block until the next event
+                WatchKey key = arriving.isEmpty() && retries.isEmpty()
+                        ? watcher.take()
+                        : watcher.poll(arriving.isEmpty() ? nanosToNextRetry() : settleNanos, TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    drainEvents(key);
+                }
+                processSettled();
+                processRetries();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // close() was called while waiting for events
+        } finally {
+            watchService = null;
+        }
+        logger.summary("Stopped watching %s", inbox);
+    }
+
+    /** Stops {@link #run()}; a workbook that is being processed is finished first. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        WatchService watcher = watchService;
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private void drainEvents(WatchKey key) throws IOException {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, the directory itself is the only reliable source
+                scanInbox();
+            } else {
+                track(inbox.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            throw new NoSuchFileException(inbox.toString(), null, "The inbox directory is no longer accessible");
+        }
+    }
+
+    private void scanInbox() throws IOException {
+        try (Stream<Path> entries = Files.list(inbox)) {
+            entries.sorted().forEach(this::track);
+        }
+    }
+
+    private void track(Path file) {
+        if (!isWorkbook(file)) {
+            return;
+        }
+        Observation observation = Observation.of(file);
+        if (observation == null) {
+            arriving.remove(file);
+        } else {
+            // every change restarts the settle interval; a changed workbook waiting for a retry is tried once settled
+            arriving.put(file, observation);
+            retries.remove(file);
+        }
+    }
+
+    private void processSettled() {
+        Iterator<Map.Entry<Path, Observation>> entries = arriving.entrySet().iterator();
+        while (entries.hasNext() && !closed) {
+            Map.Entry<Path, Observation> entry = entries.next();
+            Observation current = Observation.of(entry.getKey());
+            if (current == null) {
+                entries.remove();
+            } else if (!current.sameFile(entry.getValue())) {
+                entry.setValue(current);
+            } else if (current.seenAt - entry.getValue().seenAt >= settleNanos) {
+                entries.remove();
+                process(entry.getKey());
+            }
+        }
+    }
+
+    private void processRetries() {
+        long now = System.nanoTime();
+        List<Path> due = new ArrayList<>();
+        Iterator<Map.Entry<Path, Long>> entries = retries.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, Long> entry = entries.next();
+            if (now - entry.getValue() >= 0) {
+                entries.remove();
+                due.add(entry.getKey());
+            }
+        }
+        // a workbook that fails again is put back while this goes on
+        for (Path workbook : due) {
+            if (closed) {
+                return;
+            }
+            if (Files.isRegularFile(workbook)) {
+                process(workbook);
+            }
+        }
+    }
+
+    private long nanosToNextRetry() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (long retryAt : retries.values()) {
+            wait = Math.min(wait, retryAt - now);
+        }
+        return Math.max(0, wait);
+    }
+
+    private void process(Path workbook) {
+        long started = System.nanoTime();
+        try {
+            service.generate(workbook.toFile(), mode, outputCsv, logger);
+        } catch (WorkbookReadException e) {
+            logger.warn("ERROR: '%s' left out of the CSV: %s", workbook.getFileName(), e.getMessage());
+            moveTo(workbook, FAILED_DIRECTORY);
+            return;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("ERROR: '%s' could not be added to the CSV, trying again in %d s: %s",
+                    workbook.getFileName(), TimeUnit.MILLISECONDS.toSeconds(OUTPUT_RETRY_MILLIS),
+                    e.getMessage() == null ? e.toString() : e.getMessage());
+            // new entries go last, so retries keep their order
+            retries.remove(workbook);
+            retries.put(workbook, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OUTPUT_RETRY_MILLIS));
+            return;
+        }
+        logger.summary("'%s' processed in %d ms", workbook.getFileName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        moveTo(workbook, PROCESSED_DIRECTORY);
+    }
+
+    private void moveTo(Path workbook, String directoryName) {
+        Path directory = inbox.resolve(directoryName);
+        Path target = directory.resolve(workbook.getFileName());
+        if (Files.exists(target)) {
+            // a workbook of the same name was dropped before; keep both
+            String name = workbook.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(new Date());
+            target = directory.resolve(name.substring(0, dot) + "-" + stamp + name.substring(dot));
+        }
+        try {
+            try {
+                Files.move(workbook, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(workbook, target);
+            }
+        } catch (IOException e) {
+            // left in the inbox it is only picked up again when it changes
+            logger.warn("ERROR: '%s' could not be moved to %s: %s", workbook.getFileName(), directoryName,
+                    e.getMessage());
+        }
+    }
+
+    private static boolean isWorkbook(Path path) {
+        String lowerName = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        // "~$" files are the lock files Excel keeps next to open workbooks
+        return !lowerName.startsWith("~$") && (lowerName.endsWith(".xls") || lowerName.endsWith(".xlsx"));
+    }
+
+    /** Size and modification time of a workbook that is still arriving, and when they were read. */
+    private static final class Observation {
+        private final long size;
+        private final long modified;
+        private final long seenAt;
+
+        private Observation(long size, long modified, long seenAt) {
+            this.size = size;
+            this.modified = modified;
+            this.seenAt = seenAt;
+        }
+
+        /** Returns {@code null} when the path is gone or is not a regular file. */
+        static Observation of(Path file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                return new Observation(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                        System.nanoTime());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        boolean sameFile(Observation other) {
+            return size == other.size && modified == other.modified;
+        }
+    }
+}
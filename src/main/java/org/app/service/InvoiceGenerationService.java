@@ -1,74 +1,677 @@
 package org.app.service;
 
+import org.app.csv.CsvAppendConflictException;
+import org.app.csv.InvoiceCsvAppender;
 import org.app.csv.InvoiceCsvWriter;
+import org.app.csv.MrnLedger;
+import org.app.log.BufferedLogSink;
+import org.app.log.LogLevel;
+import org.app.log.LogSink;
 import org.app.model.BusinessMode;
-import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
 import org.app.model.SourceRow;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Objects;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+/** Turns workbooks into invoice CSVs; one service can be shared between threads. */
 public class InvoiceGenerationService {
-    private final ExcelSourceReader sourceReader = new ExcelSourceReader();
-    private final InvoiceCsvWriter csvWriter = new InvoiceCsvWriter();
+    // one workbook per format, bundled so a warm-up needs nothing from the user
+    private static final String[] WARM_UP_WORKBOOKS = {"/model facturare.xlsx", "/warm-up.xls"};
+    // attempts at one CSV before a run gives up to runs that keep committing the same MRNs first
+    private static final int MAX_CONFLICT_ATTEMPTS = 5;
+
+    private final GenerationOptions options;
+    private final ExcelReadOptions readOptions;
+    private final ExcelSourceReader sourceReader;
+    private final InvoiceCsvWriter csvWriter;
     private final Map<BusinessMode, InvoiceLineStrategy> strategies = new EnumMap<>(BusinessMode.class);
+    private final Map<String, BusinessMode> productModes = new HashMap<>();
+    // runs for the same sharded CSV take turns, each deciding which shard to continue and what the ledger holds
+    // only once the run before it has committed; runs for a single CSV meet in its append coordinator instead
+    private final ConcurrentMap<Path, Lock> outputLocks = new ConcurrentHashMap<>();
+    private volatile Consumer<GenerationMetrics> metricsListener = metrics -> {
+    };
 
     public InvoiceGenerationService() {
+        this(GenerationOptions.defaults());
+    }
+
+    public InvoiceGenerationService(ExcelReadOptions readOptions) {
+        this(GenerationOptions.defaults().withReadOptions(readOptions));
+    }
+
+    public InvoiceGenerationService(GenerationOptions options) {
+        this.options = Objects.requireNonNull(options, "options");
+        this.readOptions = options.getReadOptions();
+        this.sourceReader = new ExcelSourceReader(readOptions);
+        this.csvWriter = new InvoiceCsvWriter(options.getCsvWriterMode(), options.getCsvShardLimits());
         strategies.put(BusinessMode.FAN, new FanInvoiceLineStrategy());
         strategies.put(BusinessMode.ASSET, new AssetInvoiceLineStrategy());
+        strategies.forEach((mode, strategy) ->
+                strategy.getProductDescriptions().forEach(description -> productModes.put(description, mode)));
+    }
+
+    /** Receives the {@link GenerationMetrics} of every completed run, on its thread; the warm-up is not reported. */
+    public void setMetricsListener(Consumer<GenerationMetrics> listener) {
+        this.metricsListener = Objects.requireNonNull(listener, "listener");
+    }
+
+    /** Runs the bundled sample workbooks through {@link #generate} once per mode, to load and compile the paths. */
+    public void warmUp() throws IOException {
+        LogSink silent = LogSink.of(message -> {
+        }, LogLevel.SUMMARY);
+        // the POI readers are what needs warming, so the row cache is left out
+        ExcelSourceReader decodingReader = new ExcelSourceReader(readOptions.withoutRowCache());
+        Path directory = Files.createTempDirectory("facturare-warm-up");
+        try {
+            for (String resource : WARM_UP_WORKBOOKS) {
+                Path workbook = directory.resolve(resource.substring(resource.lastIndexOf('/') + 1));
+                try (InputStream in = InvoiceGenerationService.class.getResourceAsStream(resource)) {
+                    if (in == null) {
+                        throw new IOException("Warm-up workbook missing from the classpath: " + resource);
+                    }
+                    Files.copy(in, workbook, StandardCopyOption.REPLACE_EXISTING);
+                }
+                for (BusinessMode mode : BusinessMode.values()) {
+                    generate(workbook.toFile(), mode, directory.resolve(mode.name() + ".csv"), silent,
+                            GenerationProgress.NONE, decodingReader, metrics -> {
+                            });
+                }
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
     }
 
     public Path generate(File excelFile, BusinessMode mode, Path outputCsv, Consumer<String> logger) throws IOException {
+        Objects.requireNonNull(logger, "logger");
+        return generate(excelFile, mode, outputCsv, LogSink.of(logger));
+    }
+
+    public Path generate(File excelFile, BusinessMode mode, Path outputCsv, LogSink logger) throws IOException {
+        return generate(excelFile, mode, outputCsv, logger, GenerationProgress.NONE, sourceReader, metricsListener);
+    }
+
+    /** Reports every row to {@code progress}, which can cancel the run and so cut its rows back off the CSV. */
+    public Path generate(File excelFile, BusinessMode mode, Path outputCsv, LogSink logger,
+                         GenerationProgress progress) throws IOException {
+        Objects.requireNonNull(progress, "progress");
+        return generate(excelFile, mode, outputCsv, logger, progress, sourceReader, metricsListener);
+    }
+
+    private Path generate(File excelFile,
+                          BusinessMode mode,
+                          Path outputCsv,
+                          LogSink logger,
+                          GenerationProgress progress,
+                          ExcelSourceReader reader,
+                          Consumer<GenerationMetrics> metricsReporter) throws IOException {
         Objects.requireNonNull(excelFile, "excelFile");
         Objects.requireNonNull(mode, "mode");
         Objects.requireNonNull(outputCsv, "outputCsv");
         Objects.requireNonNull(logger, "logger");
 
         ensureSupportedFile(excelFile);
-        logger.accept(String.format("Processing '%s' as %s", excelFile.getName(), mode.getDisplayName()));
+        logger.summary("Processing '%s' as %s", excelFile.getName(), mode.getDisplayName());
+        // only the start of every sheet is read for it, and nobody looks without a progress
+        long expectedRows = progress == GenerationProgress.NONE ? -1 : reader.countDeclaredRows(excelFile);
+
+        Path normalizedOutput = outputCsv.toAbsolutePath().normalize();
+        RunTotals totals;
+        ExcelReadResult readResult;
+        long started = System.nanoTime();
+        long allocatedBefore = GenerationMetrics.currentThreadAllocatedBytes();
+        int conflicts = 0;
+        while (true) {
+            totals = new RunTotals();
+            BufferedLogSink attemptMessages = null;
+            boolean again = false;
+            long opening = System.nanoTime();
+            Lock outputLock = lockOutput(normalizedOutput);
+            // the ledger is opened first so it describes the CSV as it was before this run
+            try (MrnLedger ledger = openLedger(normalizedOutput);
+                 InvoiceCsvAppender appender = csvWriter.open(normalizedOutput, ledger)) {
+                totals.openNanos = System.nanoTime() - opening;
+                attemptMessages = attemptMessages(appender, logger);
+                LogSink attemptLogger = attemptMessages != null ? attemptMessages : logger;
+                attemptLogger.summary("%s CSV file: %s",
+                        appender.isAppending() ? "Appending to" : "Creating",
+                        normalizedOutput);
+                progress.expectedRows(expectedRows);
+                readResult = writeWorkbook(excelFile, mode, appender, ledger, reader, progress, totals,
+                        attemptLogger);
+                break;
+            } catch (CsvAppendConflictException e) {
+                again = retryAfterConflict(e, ++conflicts);
+                logger.warn("WARN: %s; reading '%s' again", e.getMessage(), excelFile.getName());
+            } catch (UncachedFormulaException e) {
+                ExcelSourceReader evaluating = reader.evaluatingFormulas();
+                if (evaluating == null || evaluating == reader) {
+                    throw e;
+                }
+                again = true;
+                reader = evaluating;
+                // an unbuffered attempt has already reported its rows, so the retry says that they come again
+                logger.summary(attemptMessages != null
+                                ? "'%s' has formulas without saved results; loading the whole workbook to evaluate them"
+                                : "'%s' has formulas without saved results; reading it again from the first row, "
+                                + "with the whole workbook loaded to evaluate them",
+                        excelFile.getName());
+            } finally {
+                unlock(outputLock);
+                if (attemptMessages != null && !again) {
+                    attemptMessages.replay();
+                }
+            }
+        }
+        metricsReporter.accept(totals.toMetrics(excelFile.getName(), mode, readResult.getTotalDataRows(),
+                readResult.getSkippedRowCount(), System.nanoTime() - started,
+                allocatedSince(allocatedBefore)));
+
+        logRunTotals(readResult, totals, options.isMrnLedgerEnabled(), logger);
+        logger.summary("CSV updated: %s", normalizedOutput);
+        return normalizedOutput;
+    }
+
+    /** Writes a new CSV for the workbook to {@code csv} while the rows are read. */
+    public GenerationSummary generate(File excelFile, BusinessMode mode, OutputStream csv, LogSink logger)
+            throws IOException {
+        Objects.requireNonNull(excelFile, "excelFile");
+        Objects.requireNonNull(mode, "mode");
+        Objects.requireNonNull(csv, "csv");
+        Objects.requireNonNull(logger, "logger");
+
+        ensureSupportedFile(excelFile);
+        logger.summary("Processing '%s' as %s", excelFile.getName(), mode.getDisplayName());
+
+        RunTotals totals = new RunTotals();
+        ExcelReadResult readResult;
+        long started = System.nanoTime();
+        long allocatedBefore = GenerationMetrics.currentThreadAllocatedBytes();
+        // the ledger of a CSV that is never written, in a directory of its own that is deleted afterwards
+        Path ledgerDirectory = options.isSkippingRepeatedMrns()
+                ? Files.createTempDirectory("facturare-stream")
+                : null;
+        try (MrnLedger ledger = ledgerDirectory == null
+                ? null
+                : MrnLedger.open(ledgerDirectory.resolve("stream.csv"), productModes::get);
+             InvoiceCsvAppender appender = csvWriter.open(csv)) {
+            totals.openNanos = System.nanoTime() - started;
+            readResult = writeWorkbook(excelFile, mode, appender, ledger, sourceReader, GenerationProgress.NONE,
+                    totals, logger);
+        } finally {
+            if (ledgerDirectory != null) {
+                deleteRecursively(ledgerDirectory);
+            }
+        }
+        metricsListener.accept(totals.toMetrics(excelFile.getName(), mode, readResult.getTotalDataRows(),
+                readResult.getSkippedRowCount(), System.nanoTime() - started,
+                allocatedSince(allocatedBefore)));
 
-        ExcelReadResult readResult = sourceReader.read(excelFile, logger);
-        List<SourceRow> rows = readResult.getRows();
-        logger.accept(String.format("Excel data rows detected: %d", readResult.getTotalDataRows()));
-        logger.accept(String.format("Rows skipped due to validation: %d", readResult.getSkippedRowCount()));
+        logRunTotals(readResult, totals, ledgerDirectory != null, logger);
+        return new GenerationSummary(excelFile,
+                readResult.getTotalDataRows(),
+                readResult.getSkippedRowCount(),
+                totals.rows,
+                totals.customsLines,
+                totals.invoiceLines,
+                totals.alreadyInvoiced,
+                null);
+    }
+
+    /** Reads the workbook into the open appender, every row straight from the sheet to the CSV, and commits. */
+    private ExcelReadResult writeWorkbook(File excelFile,
+                                          BusinessMode mode,
+                                          InvoiceCsvAppender appender,
+                                          MrnLedger ledger,
+                                          ExcelSourceReader reader,
+                                          GenerationProgress progress,
+                                          RunTotals totals,
+                                          LogSink logger) throws IOException {
+        InvoiceLineStrategy strategy = strategies.get(mode);
+        long opened = System.nanoTime();
+        ConsolidatedLines consolidated = options.isConsolidatingLines() ? new ConsolidatedLines(strategy) : null;
+        // whether a failure of the read came from writing a row rather than from the workbook
+        boolean[] rowFailed = new boolean[1];
+        ExcelReadResult readResult;
+        try {
+            readResult = reader.read(excelFile, logger, row -> {
+                try {
+                    if (progress.isCancelled()) {
+                        throw new InterruptedIOException("Cancelled at row " + row.getExcelRowNumber()
+                                + " of '" + excelFile.getName() + "'");
+                    }
+                    progress.rowRead(row.getExcelRowNumber());
+                    writeRow(row, mode, strategy, appender, ledger, consolidated, totals, logger);
+                } catch (IOException | RuntimeException e) {
+                    rowFailed[0] = true;
+                    throw e;
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            if (rowFailed[0] || e instanceof WorkbookReadException) {
+                throw e;
+            }
+            throw new WorkbookReadException(e.getMessage() == null ? e.toString() : e.getMessage(), e);
+        }
+        totals.readNanos = System.nanoTime() - opened - totals.rowNanos();
+        if (consolidated != null) {
+            long writing = System.nanoTime();
+            totals.invoiceLines = consolidated.writeTo(appender);
+            totals.csvNanos += System.nanoTime() - writing;
+            consolidated.logTotals(logger);
+        }
+        long committing = System.nanoTime();
+        commit(appender, logger);
+        totals.commitNanos = System.nanoTime() - committing;
+        return readResult;
+    }
+
+    private static void logRunTotals(ExcelReadResult readResult,
+                                     RunTotals totals,
+                                     boolean ledgerUsed,
+                                     LogSink logger) {
+        logSheetTotals(readResult, logger);
+        logger.summary("Excel data rows detected: %d", readResult.getTotalDataRows());
+        logger.summary("Rows skipped due to validation: %d", readResult.getSkippedRowCount());
+        if (ledgerUsed) {
+            logger.summary("Rows skipped as already invoiced: %d", totals.alreadyInvoiced);
+        }
+        logger.summary("Excel rows processed: %d", totals.rows);
+        logger.summary("Rows with customs line: %d", totals.customsLines);
+        logger.summary("Total CSV invoice lines: %d", totals.invoiceLines);
+    }
+
+    /** Generates one CSV from several workbooks, parsed concurrently and written in file name order. */
+    public List<GenerationSummary> generateBatch(List<File> excelFiles,
+                                                 BusinessMode mode,
+                                                 Path outputCsv,
+                                                 int parallelism,
+                                                 Consumer<String> logger) throws IOException {
+        Objects.requireNonNull(logger, "logger");
+        return generateBatch(excelFiles, mode, outputCsv, parallelism, LogSink.of(logger));
+    }
+
+    public List<GenerationSummary> generateBatch(List<File> excelFiles,
+                                                 BusinessMode mode,
+                                                 Path outputCsv,
+                                                 int parallelism,
+                                                 LogSink logger) throws IOException {
+        Objects.requireNonNull(excelFiles, "excelFiles");
+        Objects.requireNonNull(mode, "mode");
+        Objects.requireNonNull(outputCsv, "outputCsv");
+        Objects.requireNonNull(logger, "logger");
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+
+        List<File> ordered = new ArrayList<>(excelFiles);
+        ordered.sort(Comparator.comparing(File::getName).thenComparing(File::getPath));
+        logger.summary("Processing %d workbooks as %s on %d threads",
+                ordered.size(), mode.getDisplayName(), parallelism);
 
         InvoiceLineStrategy strategy = strategies.get(mode);
-        List<InvoiceLine> invoiceLines = new ArrayList<>(rows.size() * 3);
-        int customsLines = 0;
         Path normalizedOutput = outputCsv.toAbsolutePath().normalize();
-        for (SourceRow row : rows) {
-            List<InvoiceLine> linesForRow = strategy.buildLines(row);
-            invoiceLines.addAll(linesForRow);
-            if (row.hasCustomsOutsideWorkingHours()) {
-                customsLines++;
+        List<GenerationSummary> summaries;
+        ConsolidatedLines consolidated;
+        int consolidatedLineCount = 0;
+        RunTotals batchTotals;
+        long started = System.nanoTime();
+        long allocatedBefore = GenerationMetrics.currentThreadAllocatedBytes();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, new WorkbookReaderThreadFactory());
+        try {
+            for (int attempt = 1; ; attempt++) {
+                summaries = new ArrayList<>(ordered.size());
+                consolidated = options.isConsolidatingLines() ? new ConsolidatedLines(strategy) : null;
+                batchTotals = new RunTotals();
+                BufferedLogSink attemptMessages = null;
+                boolean again = false;
+                long opening = System.nanoTime();
+                Lock outputLock = lockOutput(normalizedOutput);
+                try (MrnLedger ledger = openLedger(normalizedOutput);
+                     InvoiceCsvAppender appender = csvWriter.open(normalizedOutput, ledger)) {
+                    batchTotals.openNanos = System.nanoTime() - opening;
+                    attemptMessages = attemptMessages(appender, logger);
+                    LogSink attemptLogger = attemptMessages != null ? attemptMessages : logger;
+                    attemptLogger.summary("%s CSV file: %s",
+                            appender.isAppending() ? "Appending to" : "Creating",
+                            normalizedOutput);
+
+                    // at most two parsed workbooks per worker wait in memory for their turn to be written
+                    Deque<Future<ParsedWorkbook>> pending = new ArrayDeque<>();
+                    int nextFile = 0;
+                    while (nextFile < ordered.size() || !pending.isEmpty()) {
+                        while (nextFile < ordered.size() && pending.size() < parallelism * 2) {
+                            File excelFile = ordered.get(nextFile++);
+                            pending.add(pool.submit(() -> parseWorkbook(excelFile, attemptLogger)));
+                        }
+                        ParsedWorkbook parsed = await(pending.poll());
+                        summaries.add(writeParsedWorkbook(parsed, mode, strategy, appender, ledger, consolidated,
+                                batchTotals, attemptLogger));
+                    }
+                    if (consolidated != null) {
+                        long writing = System.nanoTime();
+                        consolidatedLineCount = consolidated.writeTo(appender);
+                        batchTotals.csvNanos += System.nanoTime() - writing;
+                        consolidated.logTotals(attemptLogger);
+                    }
+                    long committing = System.nanoTime();
+                    commit(appender, attemptLogger);
+                    batchTotals.commitNanos = System.nanoTime() - committing;
+                    break;
+                } catch (CsvAppendConflictException e) {
+                    again = retryAfterConflict(e, attempt);
+                    logger.warn("WARN: %s; reading the workbooks again", e.getMessage());
+                } finally {
+                    unlock(outputLock);
+                    if (attemptMessages != null && !again) {
+                        attemptMessages.replay();
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        reportBatchMetrics(summaries, batchTotals, consolidated != null ? consolidatedLineCount : -1, mode,
+                System.nanoTime() - started, allocatedSince(allocatedBefore));
+
+        logBatchTotals(summaries, consolidated != null ? consolidatedLineCount : -1, logger);
+        logger.summary("CSV updated: %s", normalizedOutput);
+        return summaries;
+    }
+
+    private ParsedWorkbook parseWorkbook(File excelFile, LogSink logger) {
+        BufferedLogSink messages = new BufferedLogSink(logger);
+        List<SourceRow> rows = new ArrayList<>();
+        long started = System.nanoTime();
+        long allocatedBefore = GenerationMetrics.currentThreadAllocatedBytes();
+        ParsedWorkbook parsed;
+        try {
+            ensureSupportedFile(excelFile);
+            ExcelReadResult counts;
+            try {
+                counts = sourceReader.read(excelFile, messages, rows::add);
+            } catch (UncachedFormulaException e) {
+                ExcelSourceReader evaluating = sourceReader.evaluatingFormulas();
+                if (evaluating == null || evaluating == sourceReader) {
+                    throw e;
+                }
+                messages = new BufferedLogSink(logger);
+                rows = new ArrayList<>();
+                messages.summary("'%s' has formulas without saved results; loading the whole workbook to evaluate them",
+                        excelFile.getName());
+                counts = evaluating.read(excelFile, messages, rows::add);
             }
-            logger.accept(String.format("Row %d (MRN %s): customs line %s",
+            parsed = new ParsedWorkbook(excelFile, rows, messages, counts, null);
+        } catch (IOException | RuntimeException e) {
+            parsed = new ParsedWorkbook(excelFile, rows, messages, null,
+                    e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+        parsed.readNanos = System.nanoTime() - started;
+        parsed.allocatedBytes = allocatedSince(allocatedBefore);
+        return parsed;
+    }
+
+    private GenerationSummary writeParsedWorkbook(ParsedWorkbook parsed,
+                                                  BusinessMode mode,
+                                                  InvoiceLineStrategy strategy,
+                                                  InvoiceCsvAppender appender,
+                                                  MrnLedger ledger,
+                                                  ConsolidatedLines consolidated,
+                                                  RunTotals batchTotals,
+                                                  LogSink logger) throws IOException {
+        String fileName = parsed.excelFile.getName();
+        logger.summary("Processing '%s'", fileName);
+        parsed.messages.replay();
+        // the workers' own clocks: READ adds up their time and can exceed the total when they overlap
+        batchTotals.readNanos += parsed.readNanos;
+        batchTotals.addAllocatedBytes(parsed.allocatedBytes);
+        if (parsed.failure != null) {
+            logger.warn("ERROR: '%s' left out of the CSV: %s", fileName, parsed.failure);
+            return GenerationSummary.failed(parsed.excelFile, parsed.failure);
+        }
+
+        RunTotals totals = new RunTotals();
+        for (SourceRow row : parsed.rows) {
+            writeRow(row, mode, strategy, appender, ledger, consolidated, totals, logger);
+        }
+        batchTotals.addRowStages(totals);
+        GenerationSummary summary = new GenerationSummary(parsed.excelFile,
+                parsed.counts.getTotalDataRows(),
+                parsed.counts.getSkippedRowCount(),
+                totals.rows,
+                totals.customsLines,
+                totals.invoiceLines,
+                totals.alreadyInvoiced,
+                null);
+        logger.summary("'%s': %d data rows, %d skipped, %d processed, %d with customs line, %d CSV lines",
+                fileName,
+                summary.getTotalDataRows(),
+                summary.getSkippedRowCount(),
+                summary.getProcessedRowCount(),
+                summary.getCustomsRowCount(),
+                summary.getInvoiceLineCount());
+        logSheetTotals(parsed.counts, logger);
+        return summary;
+    }
+
+    private static void logSheetTotals(ExcelReadResult readResult, LogSink logger) {
+        if (readResult.getSheets().size() < 2) {
+            return;
+        }
+        for (SheetReadResult sheet : readResult.getSheets()) {
+            logger.summary("Sheet '%s': %d data rows, %d skipped",
+                    sheet.getSheetName(), sheet.getTotalDataRows(), sheet.getSkippedRowCount());
+        }
+    }
+
+    private void logBatchTotals(List<GenerationSummary> summaries, int consolidatedLines, LogSink logger) {
+        int failed = 0;
+        int dataRows = 0;
+        int skipped = 0;
+        int processed = 0;
+        int customs = 0;
+        int invoiceLines = 0;
+        int alreadyInvoiced = 0;
+        for (GenerationSummary summary : summaries) {
+            if (summary.isFailed()) {
+                failed++;
+            }
+            dataRows += summary.getTotalDataRows();
+            skipped += summary.getSkippedRowCount();
+            processed += summary.getProcessedRowCount();
+            customs += summary.getCustomsRowCount();
+            invoiceLines += summary.getInvoiceLineCount();
+            alreadyInvoiced += summary.getAlreadyInvoicedRowCount();
+        }
+        logger.summary("Workbooks processed: %d (%d failed)", summaries.size() - failed, failed);
+        logger.summary("Excel data rows detected: %d", dataRows);
+        logger.summary("Rows skipped due to validation: %d", skipped);
+        if (options.isMrnLedgerEnabled()) {
+            logger.summary("Rows skipped as already invoiced: %d", alreadyInvoiced);
+        }
+        logger.summary("Excel rows processed: %d", processed);
+        logger.summary("Rows with customs line: %d", customs);
+        logger.summary("Total CSV invoice lines: %d", consolidatedLines >= 0 ? consolidatedLines : invoiceLines);
+    }
+
+    private void reportBatchMetrics(List<GenerationSummary> summaries,
+                                    RunTotals batchTotals,
+                                    int consolidatedLines,
+                                    BusinessMode mode,
+                                    long totalNanos,
+                                    long mainThreadAllocatedBytes) {
+        int dataRows = 0;
+        int skipped = 0;
+        for (GenerationSummary summary : summaries) {
+            dataRows += summary.getTotalDataRows();
+            skipped += summary.getSkippedRowCount();
+            batchTotals.rows += summary.getProcessedRowCount();
+            batchTotals.invoiceLines += summary.getInvoiceLineCount();
+            batchTotals.alreadyInvoiced += summary.getAlreadyInvoicedRowCount();
+        }
+        if (consolidatedLines >= 0) {
+            batchTotals.invoiceLines = consolidatedLines;
+        }
+        batchTotals.addAllocatedBytes(mainThreadAllocatedBytes);
+        metricsListener.accept(batchTotals.toMetrics(summaries.size() + " workbooks", mode, dataRows, skipped,
+                totalNanos, batchTotals.allocatedBytes));
+    }
+
+    private static long allocatedSince(long allocatedBefore) {
+        long allocatedNow = GenerationMetrics.currentThreadAllocatedBytes();
+        return allocatedBefore < 0 || allocatedNow < 0 ? -1 : allocatedNow - allocatedBefore;
+    }
+
+    /** Takes the turn of a sharded CSV; a single CSV needs none, so there is no lock to release. */
+    private Lock lockOutput(Path csvPath) {
+        if (!csvWriter.isSharded()) {
+            return null;
+        }
+        Lock lock = outputLocks.computeIfAbsent(csvPath, path -> new ReentrantLock());
+        lock.lock();
+        return lock;
+    }
+
+    private static void unlock(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    /** A buffer for the attempt's messages when another run can still turn it away, otherwise {@code null}. */
+    private static BufferedLogSink attemptMessages(InvoiceCsvAppender appender, LogSink logger) {
+        return appender.mayConflict() ? new BufferedLogSink(logger) : null;
+    }
+
+    /** Whether an attempt turned away by {@code conflict} is made again. */
+    private static boolean retryAfterConflict(CsvAppendConflictException conflict, int attempt)
+            throws CsvAppendConflictException {
+        if (attempt >= MAX_CONFLICT_ATTEMPTS) {
+            throw conflict;
+        }
+        return true;
+    }
+
+    private MrnLedger openLedger(Path csvPath) throws IOException {
+        if (!options.isMrnLedgerEnabled()) {
+            return null;
+        }
+        return csvWriter.isSharded()
+                ? MrnLedger.openSharded(csvPath, productModes::get)
+                : MrnLedger.open(csvPath, productModes::get);
+    }
+
+    /** Commits the CSV and then its ledger, so a crash leaves the ledger behind the CSV, never ahead. */
+    private void commit(InvoiceCsvAppender appender, LogSink logger) throws IOException {
+        appender.commit();
+        String warning = appender.getCommitWarning();
+        if (warning != null) {
+            logger.warn("WARN: %s", warning);
+        }
+        if (csvWriter.isSharded()) {
+            for (Path shard : appender.getFiles()) {
+                logger.summary("CSV shard written: %s", shard);
+            }
+        }
+    }
+
+    private void writeRow(SourceRow row,
+                          BusinessMode mode,
+                          InvoiceLineStrategy strategy,
+                          InvoiceCsvAppender appender,
+                          MrnLedger ledger,
+                          ConsolidatedLines consolidated,
+                          RunTotals totals,
+                          LogSink logger) throws IOException {
+        long started = System.nanoTime();
+        if (ledger != null) {
+            boolean invoiced = options.isSkippingRepeatedMrns()
+                    ? ledger.contains(mode, row.getMrn())
+                    : ledger.isCommitted(mode, row.getMrn());
+            if (!invoiced) {
+                ledger.record(mode, row.getMrn());
+            }
+            totals.ledgerNanos += System.nanoTime() - started;
+            if (invoiced) {
+                totals.alreadyInvoiced++;
+                logger.warn("WARN: Row %d skipped: MRN %s is already invoiced in this CSV",
+                        row.getExcelRowNumber(), row.getMrn());
+                return;
+            }
+        }
+        long expanding = System.nanoTime();
+        List<InvoiceLineTemplate> lines = strategy.linesFor(row);
+        if (consolidated != null) {
+            consolidated.add(lines, row);
+            totals.strategyNanos += System.nanoTime() - expanding;
+        } else {
+            long writing = System.nanoTime();
+            totals.strategyNanos += writing - expanding;
+            for (int i = 0; i < lines.size(); i++) {
+                appender.append(lines.get(i), row);
+                totals.invoiceLines++;
+            }
+            totals.csvNanos += System.nanoTime() - writing;
+        }
+        totals.rows++;
+        if (row.hasCustomsOutsideWorkingHours()) {
+            totals.customsLines++;
+        }
+        if (logger.isEnabled(LogLevel.DEBUG)) {
+            logger.debug("Row %d (MRN %s): customs line %s",
                     row.getExcelRowNumber(),
                     row.getMrn(),
-                    row.hasCustomsOutsideWorkingHours() ? "GENERATED (180 flag present)" : "SKIPPED"));
+                    row.hasCustomsOutsideWorkingHours() ? "GENERATED (180 flag present)" : "SKIPPED");
         }
+    }
 
-        logger.accept(String.format("Excel rows processed: %d", rows.size()));
-        logger.accept(String.format("Rows with customs line: %d", customsLines));
-        logger.accept(String.format("Total CSV invoice lines: %d", invoiceLines.size()));
-
-        boolean appendExisting = Files.exists(normalizedOutput) && Files.size(normalizedOutput) > 0;
-        logger.accept(String.format("%s CSV file: %s",
-                appendExisting ? "Appending to" : "Creating",
-                normalizedOutput));
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch generation was interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("Reading a workbook failed unexpectedly: " + e.getCause(), e.getCause());
+        }
+    }
 
-        Path csvPath = csvWriter.write(normalizedOutput, invoiceLines);
-        logger.accept("CSV updated: " + csvPath);
-        return csvPath;
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.walk(directory)) {
+            for (Path entry : (Iterable<Path>) entries.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(entry);
+            }
+        }
     }
 
     private void ensureSupportedFile(File file) throws IOException {
@@ -81,4 +684,82 @@ public class InvoiceGenerationService {
         }
     }
 
+    private static final class ParsedWorkbook {
+        private final File excelFile;
+        private final List<SourceRow> rows;
+        private final BufferedLogSink messages;
+        private final ExcelReadResult counts;
+        private final String failure;
+        private long readNanos;
+        private long allocatedBytes;
+
+        ParsedWorkbook(File excelFile,
+                       List<SourceRow> rows,
+                       BufferedLogSink messages,
+                       ExcelReadResult counts,
+                       String failure) {
+            this.excelFile = excelFile;
+            this.rows = rows;
+            this.messages = messages;
+            this.counts = counts;
+            this.failure = failure;
+        }
+    }
+
+    private static final class WorkbookReaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "workbook-reader-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static final class RunTotals {
+        private int rows;
+        private int customsLines;
+        private int invoiceLines;
+        private int alreadyInvoiced;
+        private long openNanos;
+        private long readNanos;
+        private long ledgerNanos;
+        private long strategyNanos;
+        private long csvNanos;
+        private long commitNanos;
+        private long allocatedBytes;
+
+        /** Time the row stages took, which passes while the reader is waiting for them. */
+        long rowNanos() {
+            return ledgerNanos + strategyNanos + csvNanos;
+        }
+
+        void addAllocatedBytes(long bytes) {
+            allocatedBytes = allocatedBytes < 0 || bytes < 0 ? -1 : allocatedBytes + bytes;
+        }
+
+        void addRowStages(RunTotals workbook) {
+            ledgerNanos += workbook.ledgerNanos;
+            strategyNanos += workbook.strategyNanos;
+            csvNanos += workbook.csvNanos;
+        }
+
+        GenerationMetrics toMetrics(String source,
+                                    BusinessMode mode,
+                                    int dataRows,
+                                    int skippedRows,
+                                    long totalNanos,
+                                    long allocatedBytes) {
+            long[] stageNanos = new long[GenerationMetrics.Stage.values().length];
+            stageNanos[GenerationMetrics.Stage.OPEN.ordinal()] = openNanos;
+            stageNanos[GenerationMetrics.Stage.READ.ordinal()] = readNanos;
+            stageNanos[GenerationMetrics.Stage.MRN_LEDGER.ordinal()] = ledgerNanos;
+            stageNanos[GenerationMetrics.Stage.STRATEGY.ordinal()] = strategyNanos;
+            stageNanos[GenerationMetrics.Stage.CSV_WRITE.ordinal()] = csvNanos;
+            stageNanos[GenerationMetrics.Stage.COMMIT.ordinal()] = commitNanos;
+            return new GenerationMetrics(source, mode, dataRows, skippedRows, alreadyInvoiced, rows, invoiceLines,
+                    totalNanos, stageNanos, allocatedBytes);
+        }
+    }
 }
@@ -0,0 +1,416 @@
+package org.app.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.poi.EmptyFileException;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.app.log.LogSink;
+import org.app.model.BusinessMode;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Generates invoices over HTTP for workbooks uploaded from other machines. */
+public final class InvoiceHttpServer implements Closeable {
+    public static final int DEFAULT_PORT = 8085;
+    public static final long DEFAULT_MAX_UPLOAD_BYTES = 512L << 20;
+
+    private static final String INVOICES_PATH = "/invoices";
+    private static final String STATS_PATH = "/stats";
+    private static final int STOP_DELAY_SECONDS = 2;
+    // exchange threads beyond the admitted requests, to answer /stats and turn requests away while all are taken
+    private static final int SPARE_EXCHANGE_THREADS = 2;
+    private static final String TEXT_TYPE = "text/plain; charset=UTF-8";
+
+    private final InvoiceGenerationService service;
+    private final InetSocketAddress address;
+    private final long maxUploadBytes;
+    private final LogSink logger;
+    private final ExecutorService exchanges;
+    private final RequestLimiter requests;
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private HttpServer server;
+
+    /** Listens on {@code address}; a loopback address keeps the server to this machine, port 0 picks a free one. */
+    public InvoiceHttpServer(InvoiceGenerationService service,
+                             InetSocketAddress address,
+                             int maxConcurrentRequests,
+                             int maxQueuedRequests,
+                             long maxUploadBytes,
+                             LogSink logger) {
+        this.service = Objects.requireNonNull(service, "service");
+        this.address = Objects.requireNonNull(address, "address");
+        this.logger = Objects.requireNonNull(logger, "logger");
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1: " + maxConcurrentRequests);
+        }
+        if (maxQueuedRequests < 0) {
+            throw new IllegalArgumentException("maxQueuedRequests must not be negative: " + maxQueuedRequests);
+        }
+        if (maxUploadBytes < 1) {
+            throw new IllegalArgumentException("maxUploadBytes must be positive: " + maxUploadBytes);
+        }
+        this.maxUploadBytes = maxUploadBytes;
+        this.requests = new RequestLimiter(maxConcurrentRequests, maxQueuedRequests);
+        AtomicInteger counter = new AtomicInteger();
+        this.exchanges = Executors.newFixedThreadPool(maxConcurrentRequests + maxQueuedRequests
+                + SPARE_EXCHANGE_THREADS, task -> {
+            Thread thread = new Thread(task, "http-exchange-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The server is already started.");
+        }
+        HttpServer created = HttpServer.create(address, 0);
+        created.createContext(INVOICES_PATH, this::handleInvoices);
+        created.createContext(STATS_PATH, this::handleStats);
+        created.setExecutor(exchanges);
+        created.start();
+        server = created;
+        logger.summary("Serving invoices on http://%s:%d%s",
+                getAddress().getHostString(), getAddress().getPort(), INVOICES_PATH);
+    }
+
+    /** The address the server listens on, with the actual port once started. */
+    public synchronized InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : address;
+    }
+
+    /** Stops accepting requests, gives the running ones a moment to finish and releases the threads. */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(STOP_DELAY_SECONDS);
+            server = null;
+        }
+        exchanges.shutdown();
+    }
+
+    /** The request counters as one JSON object, as {@code GET /stats} answers. */
+    public String statsJson() {
+        StringBuilder json = new StringBuilder(256);
+        json.append('{');
+        json.append("\"activeRequests\":").append(requests.active());
+        json.append(",\"queuedRequests\":").append(requests.queued());
+        json.append(",\"maxConcurrentRequests\":").append(requests.maxConcurrent);
+        json.append(",\"maxQueuedRequests\":").append(requests.maxQueued);
+        json.append(",\"completedRequests\":").append(completed.get());
+        json.append(",\"failedRequests\":").append(failed.get());
+        json.append(",\"rejectedRequests\":").append(requests.rejected.get());
+        json.append(",\"averageQueueWaitMillis\":").append(requests.averageWaitMillis());
+        json.append(",\"maxQueueWaitMillis\":").append(TimeUnit.NANOSECONDS.toMillis(requests.maxWaitNanos.get()));
+        json.append(",\"uploadedBytes\":").append(uploadedBytes.get());
+        json.append('}');
+        return json.toString();
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = statsJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleInvoices(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "Send the workbook with POST.");
+            return;
+        }
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        BusinessMode mode = parseMode(query.get("mode"));
+        if (mode == null) {
+            respond(exchange, 400, "Add mode=FAN or mode=ASSET to the address.");
+            return;
+        }
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null && parseLength(contentLength) > maxUploadBytes) {
+            respond(exchange, 413, uploadTooLarge());
+            return;
+        }
+        if (!requests.enter()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "The server is busy, try again shortly.");
+            return;
+        }
+        try {
+            serveInvoice(exchange, mode, query.get("name"));
+        } finally {
+            requests.exit();
+        }
+    }
+
+    private void serveInvoice(HttpExchange exchange, BusinessMode mode, String name) throws IOException {
+        LogSink requestLogger = logger.withPrefix("[request " + requestIds.incrementAndGet() + "] ");
+        Path directory = Files.createTempDirectory("facturare-upload");
+        try {
+            File workbook = receiveWorkbook(exchange, directory, name);
+            if (workbook == null) {
+                return;
+            }
+            generate(exchange, workbook, mode, requestLogger);
+        } finally {
+            InvoiceGenerationService.deleteRecursively(directory);
+        }
+    }
+
+    /** Saves the request body under the uploaded name, with the extension its content calls for. */
+    private File receiveWorkbook(HttpExchange exchange, Path directory, String name) throws IOException {
+        Path upload = directory.resolve("upload");
+        long size = 0;
+        FileMagic magic;
+        try (InputStream body = new BufferedInputStream(exchange.getRequestBody());
+             OutputStream out = Files.newOutputStream(upload)) {
+            magic = detectFormat(body);
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                size += read;
+                if (size > maxUploadBytes) {
+                    respond(exchange, 413, uploadTooLarge());
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        uploadedBytes.addAndGet(size);
+        String extension = magic == FileMagic.OOXML ? ".xlsx" : magic == FileMagic.OLE2 ? ".xls" : null;
+        if (extension == null) {
+            respond(exchange, 415, "The request body is not an .xls or .xlsx workbook.");
+            return null;
+        }
+        Path workbook = directory.resolve(workbookName(name, extension));
+        Files.move(upload, workbook);
+        return workbook.toFile();
+    }
+
+    private void generate(HttpExchange exchange, File workbook, BusinessMode mode, LogSink requestLogger)
+            throws IOException {
+        ResponseBody body = new ResponseBody(exchange, workbook.getName());
+        try {
+            GenerationSummary summary = service.generate(workbook, mode, body, requestLogger);
+            body.close();
+            completed.incrementAndGet();
+            requestLogger.summary("Sent %d CSV lines for '%s'", summary.getInvoiceLineCount(), workbook.getName());
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            requestLogger.warn("ERROR: '%s' failed: %s", workbook.getName(), message);
+            if (body.started) {
+                // the status is already sent; dropping the connection leaves the chunked body unterminated,
+                // so the client sees the CSV is incomplete
+                throw e instanceof IOException ? (IOException) e : new IOException(message, e);
+            }
+            // POI reports most damaged workbooks with runtime exceptions, so every failure is the upload's
+            respond(exchange, 422, message);
+        }
+    }
+
+    private static FileMagic detectFormat(InputStream body) throws IOException {
+        try {
+            return FileMagic.valueOf(body);
+        } catch (EmptyFileException e) {
+            return FileMagic.UNKNOWN;
+        }
+    }
+
+    private String uploadTooLarge() {
+        return "The workbook is larger than the " + (maxUploadBytes >> 20) + " MB this server accepts.";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        try {
+            byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", TEXT_TYPE);
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static BusinessMode parseMode(String mode) {
+        if (mode == null) {
+            return null;
+        }
+        try {
+            return BusinessMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static long parseLength(String contentLength) {
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** The uploaded file name without any directories, so the logs name the workbook the user sent. */
+    private static String workbookName(String name, String extension) {
+        String base = name == null
+                ? ""
+                : name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        int dot = base.lastIndexOf('.');
+        base = (dot > 0 ? base.substring(0, dot) : base).replaceAll("[^\\p{L}\\p{N} ._-]", "_");
+        return (base.isEmpty() || base.equals("upload") ? "workbook" : base) + extension;
+    }
+
+    /** Sends the chunked {@code 200} only with the first bytes, so an early failure still gets an error status. */
+    private static final class ResponseBody extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private final String workbookName;
+        private boolean started;
+
+        ResponseBody(HttpExchange exchange, String workbookName) {
+            super(null);
+            this.exchange = exchange;
+            this.workbookName = workbookName;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            start().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            start().flush();
+        }
+
+        /** Ends the chunked body, and with it the exchange. */
+        @Override
+        public void close() throws IOException {
+            start().close();
+        }
+
+        private OutputStream start() throws IOException {
+            if (!started) {
+                started = true;
+                String csvName = workbookName.substring(0, workbookName.lastIndexOf('.')) + ".csv";
+                exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=UTF-8");
+                exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + csvName + "\"");
+                exchange.sendResponseHeaders(200, 0);
+                out = exchange.getResponseBody();
+            }
+            return out;
+        }
+    }
+
+    /** Admits {@code maxConcurrent} invoice requests at once, in order, with {@code maxQueued} more waiting. */
+    private static final class RequestLimiter {
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final Semaphore running;
+        // requests generating or waiting to
+        private final AtomicInteger admitted = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        RequestLimiter(int maxConcurrent, int maxQueued) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.running = new Semaphore(maxConcurrent, true);
+        }
+
+        /** Waits for a turn to generate; {@code false}, at once, when the queue is full. */
+        boolean enter() throws InterruptedIOException {
+            if (admitted.incrementAndGet() > maxConcurrent + maxQueued) {
+                admitted.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            long queuedAt = System.nanoTime();
+            try {
+                running.acquire();
+            } catch (InterruptedException e) {
+                admitted.decrementAndGet();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a turn to generate");
+            }
+            recordWait(System.nanoTime() - queuedAt);
+            return true;
+        }
+
+        void exit() {
+            running.release();
+            admitted.decrementAndGet();
+        }
+
+        int active() {
+            return maxConcurrent - running.availablePermits();
+        }
+
+        int queued() {
+            return Math.max(0, admitted.get() - active());
+        }
+
+        long averageWaitMillis() {
+            long count = started.get();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / count);
+        }
+
+        private void recordWait(long waitNanos) {
+            started.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+    }
+}
@@ -1,10 +1,34 @@
 package org.app.service;
 
 import org.app.model.InvoiceLine;
+import org.app.model.InvoiceLineTemplate;
 import org.app.model.SourceRow;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public interface InvoiceLineStrategy {
-    List<InvoiceLine> buildLines(SourceRow row);
+    /** The lines generated for {@code row}, in CSV order. */
+    List<InvoiceLineTemplate> linesFor(SourceRow row);
+
+    /** Every line template this strategy can produce. */
+    List<InvoiceLineTemplate> getTemplates();
+
+    default List<InvoiceLine> buildLines(SourceRow row) {
+        List<InvoiceLineTemplate> templates = linesFor(row);
+        List<InvoiceLine> result = new ArrayList<>(templates.size());
+        for (InvoiceLineTemplate template : templates) {
+            result.add(template.toInvoiceLine(row));
+        }
+        return result;
+    }
+
+    /** Every product description this strategy writes, so CSV lines can be traced back to their business mode. */
+    default List<String> getProductDescriptions() {
+        List<String> descriptions = new ArrayList<>();
+        for (InvoiceLineTemplate template : getTemplates()) {
+            descriptions.add(template.getProductDescription());
+        }
+        return descriptions;
+    }
 }
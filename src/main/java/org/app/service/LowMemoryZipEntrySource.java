@@ -0,0 +1,39 @@
+package org.app.service;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.poi.openxml4j.util.ZipFileZipEntrySource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** The parts of an .xlsx file for a low-memory read, each allowed to unpack to the read's own limit. */
+final class LowMemoryZipEntrySource extends ZipFileZipEntrySource {
+    private final long maxEntryBytes;
+
+    private LowMemoryZipEntrySource(ZipFile zipFile, long maxEntryBytes) {
+        super(zipFile);
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    static LowMemoryZipEntrySource open(File file, long maxEntryBytes) throws IOException {
+        return new LowMemoryZipEntrySource(new ZipFile(file), maxEntryBytes);
+    }
+
+    @Override
+    public InputStream getInputStream(ZipArchiveEntry entry) throws IOException {
+        return new BoundedEntryInputStream(super.getInputStream(entry), partName(entry.getName()), maxEntryBytes);
+    }
+
+    /** The part as an error names it: the sheets and the shared strings are what grows with the workbook. */
+    private static String partName(String entryName) {
+        if (entryName.endsWith("sharedStrings.xml")) {
+            return "The shared strings table";
+        }
+        if (entryName.startsWith("xl/worksheets/")) {
+            return "The sheet in '" + entryName + "'";
+        }
+        return "The part '" + entryName + "'";
+    }
+}
@@ -0,0 +1,86 @@
+package org.app.service;
+
+/** Parses the plain decimal numbers of the 'linii' and customs columns straight from their characters. */
+final class NumericText {
+    static final long NOT_SIMPLE = Long.MIN_VALUE;
+
+    private static final int MAX_DIGITS = 15;
+
+    private NumericText() {
+    }
+
+    /** Rounds half up like {@link Math#round(double)}, ignoring whitespace, with a comma as decimal point. */
+    static long parseRounded(CharSequence text) {
+        int end = text.length();
+        int pos = 0;
+        while (pos < end && text.charAt(pos) <= ' ') {
+            pos++;
+        }
+        while (end > pos && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (pos == end) {
+            return NOT_SIMPLE;
+        }
+
+        boolean negative = false;
+        char first = text.charAt(pos);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            pos++;
+        }
+
+        long whole = 0;
+        int digits = 0;
+        while (pos < end && isDigit(text.charAt(pos))) {
+            whole = whole * 10 + (text.charAt(pos++) - '0');
+            digits++;
+        }
+        // only the first decimal decides the rounding, the rest only has to be there and above zero or not
+        int firstDecimal = -1;
+        boolean laterDecimalsAboveZero = false;
+        if (pos < end && (text.charAt(pos) == '.' || text.charAt(pos) == ',')) {
+            pos++;
+            while (pos < end && isDigit(text.charAt(pos))) {
+                int digit = text.charAt(pos++) - '0';
+                if (firstDecimal < 0) {
+                    firstDecimal = digit;
+                } else if (digit != 0) {
+                    laterDecimalsAboveZero = true;
+                }
+                digits++;
+            }
+        }
+        if (pos != end || digits == 0 || digits > MAX_DIGITS) {
+            return NOT_SIMPLE;
+        }
+
+        if (!negative) {
+            return firstDecimal >= 5 ? whole + 1 : whole;
+        }
+        // halves round towards positive infinity: -2.5 becomes -2, -2.51 becomes -3
+        boolean aboveHalf = firstDecimal > 5 || (firstDecimal == 5 && laterDecimalsAboveZero);
+        return aboveHalf ? -(whole + 1) : -whole;
+    }
+
+    /** Reads an unsigned whole number such as the stored value of a numeric .xlsx cell. */
+    static long parseWholeNumber(CharSequence text) {
+        int length = text.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return NOT_SIMPLE;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            if (!isDigit(ch)) {
+                return NOT_SIMPLE;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+}
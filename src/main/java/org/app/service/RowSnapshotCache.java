@@ -0,0 +1,310 @@
+package org.app.service;
+
+import org.app.log.LogEvent;
+import org.app.log.LogLevel;
+import org.app.log.LogSink;
+import org.app.model.SourceRow;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/** Keeps a workbook read's rows and messages as snapshot files, so reading it again skips POI. */
+final class RowSnapshotCache {
+    /** Part of every key; raise it whenever the readers decode or report rows differently. */
+    static final int FORMAT_VERSION = 1;
+
+    private static final long MAGIC = 0x524F57534E415031L; // "ROWSNAP1"
+    private static final String SUFFIX = ".rows";
+    private static final byte ROW = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte END = 3;
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private final Path directory;
+    private final long maxBytes;
+
+    RowSnapshotCache(Path directory, long maxBytes) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.maxBytes = maxBytes;
+    }
+
+    String keyFor(File excelFile, String readSettings) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(("v" + FORMAT_VERSION + "|" + readSettings + "|").getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(excelFile.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder key = new StringBuilder(64);
+        for (byte value : digest.digest()) {
+            key.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /** Hands the snapshot's rows and messages on in order and returns its counters, or {@code null} if none. */
+    ExcelReadResult replay(String key, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        Path snapshot = directory.resolve(key + SUFFIX);
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) {
+                return discard(snapshot);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (data.getLong(0) != MAGIC
+                || data.getLong(data.limit() - 8) != MAGIC
+                || data.getInt(8) != FORMAT_VERSION) {
+            return discard(snapshot);
+        }
+        Files.setLastModifiedTime(snapshot, FileTime.fromMillis(System.currentTimeMillis()));
+
+        data.position(12);
+        try {
+            while (true) {
+                byte tag = data.get();
+                if (tag == ROW) {
+                    int excelRowNumber = data.getInt();
+                    int linesCount = data.getInt();
+                    boolean customs = data.get() != 0;
+                    rowHandler.onRow(new SourceRow(excelRowNumber, readText(data, data.getShort() & 0xFFFF),
+                            linesCount, customs));
+                } else if (tag == MESSAGE) {
+                    LogLevel level = LEVELS[data.get()];
+                    String text = readText(data, data.getInt());
+                    // already formatted; a message without arguments is delivered verbatim
+                    logger.log(level, text);
+                } else if (tag == END) {
+                    return readCounters(data);
+                } else {
+                    throw new IOException("Row cache snapshot is damaged: " + snapshot);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Row cache snapshot is damaged: " + snapshot, e);
+        }
+    }
+
+    /** Starts a snapshot of what passes through the returned sink, visible once {@link Recorder#commit}ted. */
+    Recorder record(String key, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        return new Recorder(directory.resolve(key + SUFFIX), temporary, logger, rowHandler);
+    }
+
+    private ExcelReadResult discard(Path snapshot) throws IOException {
+        Files.deleteIfExists(snapshot);
+        return null;
+    }
+
+    private static String readText(MappedByteBuffer data, int length) {
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ExcelReadResult readCounters(MappedByteBuffer data) {
+        int totalDataRows = data.getInt();
+        int skippedRowCount = data.getInt();
+        int sheetCount = data.getInt();
+        if (sheetCount == 0) {
+            return new ExcelReadResult(totalDataRows, skippedRowCount);
+        }
+        List<SheetReadResult> sheets = new ArrayList<>(sheetCount);
+        for (int i = 0; i < sheetCount; i++) {
+            String name = readText(data, data.getShort() & 0xFFFF);
+            sheets.add(new SheetReadResult(name, data.getInt(), data.getInt()));
+        }
+        return new ExcelReadResult(sheets);
+    }
+
+    /** Deletes the least recently used snapshots until the directory fits its size limit again. */
+    private void evict() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            entries.forEach(snapshots::add);
+        }
+        List<Snapshot> byAge = new ArrayList<>(snapshots.size());
+        long total = 0;
+        for (Path path : snapshots) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                byAge.add(new Snapshot(path, attributes.lastModifiedTime().toMillis(), attributes.size()));
+                total += attributes.size();
+            } catch (NoSuchFileException e) {
+                // evicted by another reader in the meantime
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Collections.sort(byAge, (left, right) -> Long.compare(left.lastUsed, right.lastUsed));
+        for (Snapshot snapshot : byAge) {
+            if (total <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(snapshot.path);
+                total -= snapshot.size;
+            } catch (IOException e) {
+                // still mapped somewhere, e.g. on Windows; it goes with a later eviction
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        private final Path path;
+        private final long lastUsed;
+        private final long size;
+
+        Snapshot(Path path, long lastUsed, long size) {
+            this.path = path;
+            this.lastUsed = lastUsed;
+            this.size = size;
+        }
+    }
+
+    /** Writes every row and message to the snapshot as it passes; the real sinks get them regardless. */
+    final class Recorder implements LogSink, SourceRowHandler, Closeable {
+        private final Path target;
+        private final Path temporary;
+        private final LogSink logger;
+        private final SourceRowHandler rowHandler;
+        private final DataOutputStream out;
+        // a full disk or similar stops the recording, not the read
+        private boolean failed;
+        private boolean committed;
+
+        private Recorder(Path target, Path temporary, LogSink logger, SourceRowHandler rowHandler)
+                throws IOException {
+            this.target = target;
+            this.temporary = temporary;
+            this.logger = logger;
+            this.rowHandler = rowHandler;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16));
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+
+        @Override
+        public boolean isEnabled(LogLevel level) {
+            return true;
+        }
+
+        @Override
+        public void log(LogLevel level, String pattern, Object... args) {
+            String text = new LogEvent(level, pattern, args).format();
+            if (!failed) {
+                try {
+                    out.writeByte(MESSAGE);
+                    out.writeByte(level.ordinal());
+                    writeText(text, false);
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+            logger.log(level, text);
+        }
+
+        @Override
+        public void onRow(SourceRow row) throws IOException {
+            if (!failed) {
+                try {
+                    out.writeByte(ROW);
+                    out.writeInt(row.getExcelRowNumber());
+                    out.writeInt(row.getLinesCount());
+                    out.writeByte(row.hasCustomsOutsideWorkingHours() ? 1 : 0);
+                    writeText(row.getMrn(), true);
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+            rowHandler.onRow(row);
+        }
+
+        /** Completes the snapshot with the read's counters and moves it into place. */
+        boolean commit(ExcelReadResult result) throws IOException {
+            if (failed) {
+                return false;
+            }
+            out.writeByte(END);
+            out.writeInt(result.getTotalDataRows());
+            out.writeInt(result.getSkippedRowCount());
+            out.writeInt(result.getSheets().size());
+            for (SheetReadResult sheet : result.getSheets()) {
+                writeText(sheet.getSheetName(), true);
+                out.writeInt(sheet.getTotalDataRows());
+                out.writeInt(sheet.getSkippedRowCount());
+            }
+            out.writeLong(MAGIC);
+            out.close();
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+            evict();
+            return true;
+        }
+
+        /** Drops the snapshot unless it was committed. */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                try {
+                    out.close();
+                } finally {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+        }
+
+        private void writeText(String text, boolean shortLength) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (shortLength) {
+                if (bytes.length > 0xFFFF) {
+                    throw new IOException("Value too long for the row cache: " + bytes.length + " bytes");
+                }
+                out.writeShort(bytes.length);
+            } else {
+                out.writeInt(bytes.length);
+            }
+            out.write(bytes);
+        }
+    }
+}
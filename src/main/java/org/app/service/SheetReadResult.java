@@ -0,0 +1,28 @@
+package org.app.service;
+
+import java.util.Objects;
+
+/** Row counters of one worksheet, part of an {@link ExcelReadResult} that covered several sheets. */
+public final class SheetReadResult {
+    private final String sheetName;
+    private final int totalDataRows;
+    private final int skippedRowCount;
+
+    public SheetReadResult(String sheetName, int totalDataRows, int skippedRowCount) {
+        this.sheetName = Objects.requireNonNull(sheetName, "sheetName");
+        this.totalDataRows = totalDataRows;
+        this.skippedRowCount = skippedRowCount;
+    }
+
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    public int getTotalDataRows() {
+        return totalDataRows;
+    }
+
+    public int getSkippedRowCount() {
+        return skippedRowCount;
+    }
+}
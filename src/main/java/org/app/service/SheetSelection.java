@@ -0,0 +1,84 @@
+package org.app.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/** Which worksheets are read: the first one (the default), all of them, or the named ones. */
+public final class SheetSelection {
+    private static final SheetSelection FIRST_SHEET = new SheetSelection(false, Collections.emptyMap());
+    private static final SheetSelection ALL_SHEETS = new SheetSelection(true, Collections.emptyMap());
+
+    private final boolean allSheets;
+    // lower-cased key to the name as the user wrote it
+    private final Map<String, String> names;
+
+    private SheetSelection(boolean allSheets, Map<String, String> names) {
+        this.allSheets = allSheets;
+        this.names = names;
+    }
+
+    public static SheetSelection firstSheet() {
+        return FIRST_SHEET;
+    }
+
+    public static SheetSelection allSheets() {
+        return ALL_SHEETS;
+    }
+
+    public static SheetSelection named(Collection<String> sheetNames) {
+        Objects.requireNonNull(sheetNames, "sheetNames");
+        Map<String, String> names = new LinkedHashMap<>();
+        for (String name : sheetNames) {
+            String trimmed = name.trim();
+            if (!trimmed.isEmpty()) {
+                names.put(key(trimmed), trimmed);
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("At least one sheet name is required.");
+        }
+        return new SheetSelection(false, Collections.unmodifiableMap(names));
+    }
+
+    public boolean isFirstSheetOnly() {
+        return !allSheets && names.isEmpty();
+    }
+
+    /** Whether the worksheet at {@code index}, counted from 0, is read. */
+    public boolean includes(int index, String sheetName) {
+        if (allSheets) {
+            return true;
+        }
+        if (names.isEmpty()) {
+            return index == 0;
+        }
+        return sheetName != null && names.containsKey(key(sheetName.trim()));
+    }
+
+    /** The requested names that none of {@code sheetNames} matches. */
+    public List<String> missingFrom(Collection<String> sheetNames) {
+        Map<String, String> missing = new LinkedHashMap<>(names);
+        for (String sheetName : sheetNames) {
+            missing.remove(key(sheetName.trim()));
+        }
+        return new ArrayList<>(missing.values());
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        if (allSheets) {
+            return "all sheets";
+        }
+        return names.isEmpty() ? "first sheet" : "sheets " + names.values();
+    }
+}
@@ -0,0 +1,106 @@
+package org.app.service;
+
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.app.log.LogSink;
+import org.app.model.SourceRow;
+
+import java.io.IOException;
+
+/** Applies the row validation rules to decoded cells, independently of how the workbook is parsed. */
+final class SourceRowAssembler {
+    // outside the int range, so it never collides with a rounded value
+    private static final long NO_NUMBER = Long.MIN_VALUE;
+    private static final int CUSTOMS_MARKER = 180;
+
+    private final DataFormatter dataFormatter;
+    private final LogSink logger;
+    private final SourceRowHandler rowHandler;
+    private int totalDataRows;
+    private int skippedRows;
+
+    SourceRowAssembler(DataFormatter dataFormatter, LogSink logger, SourceRowHandler rowHandler) {
+        this.dataFormatter = dataFormatter;
+        this.logger = logger;
+        this.rowHandler = rowHandler;
+    }
+
+    void emptyRow(int excelRowNumber) {
+        logger.warn("WARN: Row %d skipped: empty row", excelRowNumber);
+    }
+
+    void accept(int excelRowNumber, CellSnapshot mrnCell, CellSnapshot linesCell, CellSnapshot customsCell)
+            throws IOException {
+        if (isBlank(mrnCell) && isBlank(linesCell) && isBlank(customsCell)) {
+            emptyRow(excelRowNumber);
+            return;
+        }
+
+        totalDataRows++;
+
+        String mrn = mrnCell.format(dataFormatter).trim();
+        if (mrn.isEmpty()) {
+            skippedRows++;
+            logger.warn("ERROR: Row %d ignored: missing MRN", excelRowNumber);
+            return;
+        }
+
+        long linesCount = readInteger(linesCell);
+        if (linesCount == NO_NUMBER) {
+            skippedRows++;
+            logger.warn("ERROR: Row %d ignored: invalid 'linii' value", excelRowNumber);
+            return;
+        }
+
+        boolean hasCustomsLine = readInteger(customsCell) == CUSTOMS_MARKER;
+        rowHandler.onRow(new SourceRow(excelRowNumber, mrn, (int) linesCount, hasCustomsLine));
+    }
+
+    ExcelReadResult toResult() {
+        return new ExcelReadResult(totalDataRows, skippedRows);
+    }
+
+    private boolean isBlank(CellSnapshot cell) {
+        switch (cell.getKind()) {
+            case BLANK:
+                return true;
+            case NUMERIC:
+                return false;
+            default:
+                return cell.format(dataFormatter).trim().isEmpty();
+        }
+    }
+
+    /** Returns the cell as a rounded {@code int}, or {@link #NO_NUMBER}. */
+    private long readInteger(CellSnapshot cell) {
+        switch (cell.getKind()) {
+            case NUMERIC:
+                if (!cell.isFormulaResult()) {
+                    return (int) Math.round(cell.getNumericValue());
+                }
+                if (cell.isWholeNumberShownAsIs()) {
+                    return (int) cell.getNumericValue();
+                }
+                return parseDisplayed(cell.format(dataFormatter));
+            case TEXT: {
+                long value = NumericText.parseRounded(cell.getText());
+                return value != NumericText.NOT_SIMPLE ? (int) value : parseDisplayed(cell.getText());
+            }
+            default:
+                // blanks, booleans ("TRUE") and errors ("#N/A") are never numbers
+                return NO_NUMBER;
+        }
+    }
+
+    private static long parseDisplayed(String text) {
+        String value = text.trim();
+        if (value.isEmpty()) {
+            return NO_NUMBER;
+        }
+        try {
+            double parsed = Double.parseDouble(value.replace(',', '.'));
+            return (int) Math.round(parsed);
+        } catch (NumberFormatException ex) {
+            return NO_NUMBER;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.app.service;
+
+import org.app.model.SourceRow;
+
+import java.io.IOException;
+
+/** Receives validated rows one at a time, in sheet order, while a workbook is being read. */
+@FunctionalInterface
+public interface SourceRowHandler {
+    void onRow(SourceRow row) throws IOException;
+}
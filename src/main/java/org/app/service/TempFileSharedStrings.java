@@ -0,0 +1,223 @@
+package org.app.service;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/** The shared strings of an .xlsx workbook in temporary files instead of on the heap. */
+final class TempFileSharedStrings implements SharedStrings, Closeable {
+    private static final int OFFSET_BYTES = Long.BYTES;
+
+    private final FileChannel text;
+    private final FileChannel offsets;
+    private final int uniqueCount;
+    private final int count;
+
+    private TempFileSharedStrings(FileChannel text, FileChannel offsets, int uniqueCount, int count) {
+        this.text = text;
+        this.offsets = offsets;
+        this.uniqueCount = uniqueCount;
+        this.count = count;
+    }
+
+    /** Copies the shared strings part of {@code pkg}, if it has one, into temporary files. */
+    static TempFileSharedStrings read(OPCPackage pkg) throws IOException, SAXException {
+        FileChannel text = openTemporary("strings");
+        FileChannel offsets = null;
+        try {
+            offsets = openTemporary("offsets");
+            List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+            StringsHandler handler = new StringsHandler(text, offsets);
+            if (!parts.isEmpty()) {
+                try (InputStream part = parts.get(0).getInputStream()) {
+                    XMLReader parser = XMLHelper.newXMLReader();
+                    parser.setContentHandler(handler);
+                    parser.parse(new InputSource(part));
+                } catch (ParserConfigurationException e) {
+                    throw new IOException("The shared strings could not be parsed: " + e.getMessage(), e);
+                }
+            }
+            handler.finish();
+            return new TempFileSharedStrings(text, offsets, handler.strings,
+                    handler.count >= 0 ? handler.count : handler.strings);
+        } catch (IOException | SAXException | RuntimeException e) {
+            closeQuietly(text);
+            closeQuietly(offsets);
+            throw e;
+        }
+    }
+
+    @Override
+    public RichTextString getItemAt(int idx) {
+        if (idx < 0 || idx >= uniqueCount) {
+            throw new IndexOutOfBoundsException("No shared string " + idx + ", the workbook has " + uniqueCount);
+        }
+        try {
+            ByteBuffer range = ByteBuffer.allocate(2 * OFFSET_BYTES);
+            readFully(offsets, range, (long) idx * OFFSET_BYTES);
+            long start = range.getLong(0);
+            ByteBuffer bytes = ByteBuffer.allocate((int) (range.getLong(OFFSET_BYTES) - start));
+            readFully(text, bytes, start);
+            return new XSSFRichTextString(new String(bytes.array(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Shared string " + idx + " could not be read back", e);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getUniqueCount() {
+        return uniqueCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            text.close();
+        } finally {
+            offsets.close();
+        }
+    }
+
+    private static FileChannel openTemporary(String kind) throws IOException {
+        Path file = Files.createTempFile("facturare-sst-", "." + kind);
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Shared strings file ends early");
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // already failing, the original error is the one to report
+            }
+        }
+    }
+
+    /** Writes the text of every {@code <si>} outside its phonetic runs, and where it starts. */
+    private static final class StringsHandler extends DefaultHandler {
+        private final DataOutputStream text;
+        private final DataOutputStream offsets;
+        private final StringBuilder value = new StringBuilder(64);
+        private long written;
+        private int strings;
+        private int count = -1;
+        private boolean inString;
+        private boolean inPhoneticRun;
+        private boolean capturing;
+
+        StringsHandler(FileChannel text, FileChannel offsets) {
+            this.text = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(text), 1 << 16));
+            this.offsets = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(offsets), 1 << 16));
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "sst":
+                    String total = attributes.getValue("count");
+                    if (total != null) {
+                        count = Integer.parseInt(total);
+                    }
+                    break;
+                case "si":
+                    value.setLength(0);
+                    inString = true;
+                    break;
+                case "rPh":
+                    inPhoneticRun = true;
+                    break;
+                case "t":
+                    capturing = inString && !inPhoneticRun;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "si":
+                    inString = false;
+                    try {
+                        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                        offsets.writeLong(written);
+                        text.write(bytes);
+                        written += bytes.length;
+                        strings++;
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                    break;
+                case "rPh":
+                    inPhoneticRun = false;
+                    break;
+                case "t":
+                    capturing = false;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (capturing) {
+                value.append(ch, start, length);
+            }
+        }
+
+        /** Ends the index with the end of the last string, so every string is read as start to next start. */
+        void finish() throws IOException {
+            offsets.writeLong(written);
+            offsets.flush();
+            text.flush();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.app.service;
+
+import org.apache.poi.ss.util.CellReference;
+
+/** Thrown by the streaming .xlsx reader at a formula whose result was never saved in the file. */
+final class UncachedFormulaException extends WorkbookReadException {
+    UncachedFormulaException(int excelRowNumber, int columnIndex) {
+        super(String.format("Row %d: the formula in column %s has no saved result; it is only evaluated when the "
+                        + "whole workbook is loaded, which low-memory mode and CSV streams do not do",
+                excelRowNumber, CellReference.convertNumToColString(columnIndex)));
+    }
+}
@@ -0,0 +1,14 @@
+package org.app.service;
+
+import java.io.IOException;
+
+/** Thrown when the workbook itself cannot be read, as opposed to the CSV or its ledger not being written. */
+public class WorkbookReadException extends IOException {
+    public WorkbookReadException(String message) {
+        super(message);
+    }
+
+    public WorkbookReadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
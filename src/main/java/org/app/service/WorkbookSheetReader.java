@@ -0,0 +1,318 @@
+package org.app.service;
+
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.app.log.LogSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Reads the first or the selected sheets from the full POI workbook model. */
+final class WorkbookSheetReader {
+    private static final int CHUNK_ROWS = 4096;
+
+    private final DataFormatter dataFormatter;
+    private final int parallelism;
+    private final boolean cachedFormulaResults;
+
+    WorkbookSheetReader(DataFormatter dataFormatter, int parallelism, boolean cachedFormulaResults) {
+        this.dataFormatter = dataFormatter;
+        this.parallelism = parallelism;
+        this.cachedFormulaResults = cachedFormulaResults;
+    }
+
+    ExcelReadResult read(File excelFile, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        try (Workbook workbook = open(excelFile)) {
+            if (workbook.getNumberOfSheets() == 0) {
+                logger.warn("The Excel file does not contain any sheets.");
+                return new ExcelReadResult(0, 0);
+            }
+            return readSheet(excelFile, workbook, workbook.getSheetAt(0), logger, rowHandler);
+        } catch (EncryptedDocumentException e) {
+            throw new IOException("The Excel file appears to be encrypted and cannot be read.", e);
+        }
+    }
+
+    /** Reads the selected sheets, each on its own worker, handing rows on sheet by sheet in workbook order. */
+    ExcelReadResult read(File excelFile, SheetSelection selection, LogSink logger, SourceRowHandler rowHandler)
+            throws IOException {
+        try (Workbook workbook = open(excelFile)) {
+            List<String> sheetNames = new ArrayList<>();
+            ConcurrentSheetDecoder decoder = new ConcurrentSheetDecoder();
+            int selected = 0;
+            for (int index = 0; index < workbook.getNumberOfSheets(); index++) {
+                Sheet sheet = workbook.getSheetAt(index);
+                sheetNames.add(sheet.getSheetName());
+                if (selection.includes(index, sheet.getSheetName())) {
+                    selected++;
+                    // DataFormatter and FormulaEvaluator are not thread-safe, every sheet gets its own pair; the
+                    // evaluators leave the cells as they are, so the sheets only ever read the shared workbook
+                    decoder.add(sheet.getSheetName(), (sheetLogger, sheetRows) -> readSheet(workbook, sheet,
+                            new DataFormatter(Locale.US, true), sheetLogger, sheetRows));
+                }
+            }
+            if (sheetNames.isEmpty()) {
+                logger.warn("The Excel file does not contain any sheets.");
+            }
+            for (String missing : selection.missingFrom(sheetNames)) {
+                logger.warn("WARN: Sheet '%s' is not in the Excel file", missing);
+            }
+            if (selected == 0 && !sheetNames.isEmpty()) {
+                logger.warn("The Excel file does not contain any of the selected sheets.");
+            }
+            return decoder.decode(logger, rowHandler);
+        } catch (EncryptedDocumentException e) {
+            throw new IOException("The Excel file appears to be encrypted and cannot be read.", e);
+        }
+    }
+
+    /** Opens the file read-only, as closing a writable workbook saves it back over the user's file. */
+    private static Workbook open(File excelFile) throws IOException {
+        return WorkbookFactory.create(excelFile, null, true);
+    }
+
+    private ExcelReadResult readSheet(File excelFile,
+                                      Workbook workbook,
+                                      Sheet sheet,
+                                      LogSink logger,
+                                      SourceRowHandler rowHandler) throws IOException {
+        int lastRowIndex = sheet.getLastRowNum();
+        if (parallelism > 1 && lastRowIndex > CHUNK_ROWS) {
+            return readInChunks(excelFile, workbook, sheet, lastRowIndex, logger, rowHandler);
+        }
+        return readSheet(workbook, sheet, dataFormatter, logger, rowHandler);
+    }
+
+    private ExcelReadResult readSheet(Workbook workbook,
+                                      Sheet sheet,
+                                      DataFormatter formatter,
+                                      LogSink logger,
+                                      SourceRowHandler rowHandler) throws IOException {
+        SourceRowAssembler assembler = new SourceRowAssembler(formatter, logger, rowHandler);
+        new RowDecoder(formatter, createEvaluator(workbook)).decode(sheet, 1, sheet.getLastRowNum() + 1, assembler);
+        return assembler.toResult();
+    }
+
+    /** Decodes row chunks on a fork-join pool and replays them in sheet order, like the sequential loop. */
+    private ExcelReadResult readInChunks(File excelFile,
+                                         Workbook workbook,
+                                         Sheet sheet,
+                                         int lastRowIndex,
+                                         LogSink logger,
+                                         SourceRowHandler rowHandler) throws IOException {
+        int sheetIndex = workbook.getSheetIndex(sheet);
+        List<Workbook> copies = Collections.synchronizedList(new ArrayList<>());
+        // DataFormatter and FormulaEvaluator are not thread-safe, every worker gets its own; a worker that evaluates
+        // formulas also reads its own copy of the workbook, so no workbook is ever used from two threads
+        ThreadLocal<ChunkDecoder> decoders = ThreadLocal.withInitial(() -> cachedFormulaResults
+                ? new ChunkDecoder(sheet, new RowDecoder(new DataFormatter(Locale.US, true), null))
+                : evaluatingDecoder(excelFile, sheetIndex, copies));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Future<DecodedRows>> chunks = new ArrayList<>();
+            int totalDataRows = 0;
+            int skippedRows = 0;
+            for (int from = 1; from <= lastRowIndex; from += CHUNK_ROWS) {
+                int chunkFrom = from;
+                int chunkTo = Math.min(from + CHUNK_ROWS, lastRowIndex + 1);
+                chunks.add(pool.submit(() -> decoders.get().decode(chunkFrom, chunkTo, logger)));
+            }
+            for (Future<DecodedRows> chunk : chunks) {
+                DecodedRows decoded = await(chunk);
+                decoded.replay(rowHandler);
+                totalDataRows += decoded.getResult().getTotalDataRows();
+                skippedRows += decoded.getResult().getSkippedRowCount();
+            }
+            return new ExcelReadResult(totalDataRows, skippedRows);
+        } finally {
+            pool.shutdownNow();
+            closeCopies(pool, copies);
+        }
+    }
+
+    private ChunkDecoder evaluatingDecoder(File excelFile, int sheetIndex, List<Workbook> copies) {
+        try {
+            Workbook copy = open(excelFile);
+            copies.add(copy);
+            return new ChunkDecoder(copy.getSheetAt(sheetIndex),
+                    new RowDecoder(new DataFormatter(Locale.US, true), createEvaluator(copy)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Closes the workers' workbooks once no worker reads them any more. */
+    private static void closeCopies(ForkJoinPool pool, List<Workbook> copies) throws IOException {
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading the Excel file was interrupted.");
+        } finally {
+            for (Workbook copy : copies) {
+                copy.close();
+            }
+        }
+    }
+
+    private FormulaEvaluator createEvaluator(Workbook workbook) {
+        return cachedFormulaResults ? null : workbook.getCreationHelper().createFormulaEvaluator();
+    }
+
+    private static DecodedRows await(Future<DecodedRows> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading the Excel file was interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("The Excel file could not be decoded: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** A chunk worker's sheet and decoder. */
+    private static final class ChunkDecoder {
+        private final Sheet sheet;
+        private final RowDecoder decoder;
+
+        ChunkDecoder(Sheet sheet, RowDecoder decoder) {
+            this.sheet = sheet;
+            this.decoder = decoder;
+        }
+
+        DecodedRows decode(int fromRowIndex, int toRowIndex, LogSink target) throws IOException {
+            return decoder.decodeChunk(sheet, fromRowIndex, toRowIndex, target);
+        }
+    }
+
+    /** Decodes rows with one formatter and evaluator, reading each of the three cells exactly once per row. */
+    private static final class RowDecoder {
+        private final DataFormatter dataFormatter;
+        private final FormulaEvaluator evaluator;
+        private final CellSnapshot mrnCell = new CellSnapshot();
+        private final CellSnapshot linesCell = new CellSnapshot();
+        private final CellSnapshot customsCell = new CellSnapshot();
+
+        /** With a {@code null} evaluator, formula cells give the results cached in the file. */
+        RowDecoder(DataFormatter dataFormatter, FormulaEvaluator evaluator) {
+            this.dataFormatter = dataFormatter;
+            this.evaluator = evaluator;
+        }
+
+        DecodedRows decodeChunk(Sheet sheet, int fromRowIndex, int toRowIndex, LogSink target) throws IOException {
+            DecodedRows chunk = new DecodedRows(target);
+            SourceRowAssembler assembler = new SourceRowAssembler(dataFormatter, chunk, chunk);
+            decode(sheet, fromRowIndex, toRowIndex, assembler);
+            chunk.setResult(assembler.toResult());
+            return chunk;
+        }
+
+        void decode(Sheet sheet, int fromRowIndex, int toRowIndex, SourceRowAssembler assembler) throws IOException {
+            for (int rowIndex = fromRowIndex; rowIndex < toRowIndex; rowIndex++) {
+                Row row = sheet.getRow(rowIndex);
+                int excelRowNumber = rowIndex + 1; // Excel rows are 1-based
+                if (row == null) {
+                    assembler.emptyRow(excelRowNumber);
+                    continue;
+                }
+                load(row.getCell(ExcelSourceReader.MRN_COLUMN_INDEX), mrnCell);
+                load(row.getCell(ExcelSourceReader.LINES_COLUMN_INDEX), linesCell);
+                load(row.getCell(ExcelSourceReader.CUSTOMS_COLUMN_INDEX), customsCell);
+                assembler.accept(excelRowNumber, mrnCell, linesCell, customsCell);
+            }
+        }
+
+        private void load(Cell cell, CellSnapshot snapshot) {
+            snapshot.clear();
+            if (cell == null) {
+                return;
+            }
+            CellType type = cell.getCellType();
+            boolean formula = type == CellType.FORMULA;
+            if (formula) {
+                if (evaluator != null) {
+                    // evaluate() leaves the cell as it is, so the workbook is only ever read
+                    loadEvaluated(cell, evaluator.evaluate(cell), snapshot);
+                    return;
+                }
+                type = cell.getCachedFormulaResultType();
+            }
+            switch (type) {
+                case NUMERIC: {
+                    CellStyle style = cell.getCellStyle();
+                    if (style == null) {
+                        snapshot.setNumeric(cell.getNumericCellValue(), 0, null);
+                    } else {
+                        snapshot.setNumeric(cell.getNumericCellValue(), style.getDataFormat(),
+                                style.getDataFormatString());
+                    }
+                    if (formula) {
+                        snapshot.markFormulaResult();
+                    }
+                    break;
+                }
+                case STRING:
+                    snapshot.setText(cell.getRichStringCellValue().getString());
+                    break;
+                case BOOLEAN:
+                    snapshot.setBoolean(cell.getBooleanCellValue());
+                    break;
+                case ERROR:
+                    snapshot.setError(FormulaError.forInt(cell.getErrorCellValue()).getString());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private static void loadEvaluated(Cell cell, CellValue value, CellSnapshot snapshot) {
+            if (value == null) {
+                return;
+            }
+            switch (value.getCellType()) {
+                case NUMERIC: {
+                    CellStyle style = cell.getCellStyle();
+                    if (style == null) {
+                        snapshot.setNumeric(value.getNumberValue(), 0, null);
+                    } else {
+                        snapshot.setNumeric(value.getNumberValue(), style.getDataFormat(),
+                                style.getDataFormatString());
+                    }
+                    snapshot.markFormulaResult();
+                    break;
+                }
+                case STRING:
+                    snapshot.setText(value.getStringValue());
+                    break;
+                case BOOLEAN:
+                    snapshot.setBoolean(value.getBooleanValue());
+                    break;
+                case ERROR:
+                    snapshot.setError(FormulaError.forInt(value.getErrorValue()).getString());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
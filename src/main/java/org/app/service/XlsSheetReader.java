@@ -0,0 +1,397 @@
+package org.app.service;
+
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.DimensionsRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RecordFactoryInputStream;
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.util.IOUtils;
+import org.app.log.LogSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** Streams the first or the selected sheets of a legacy .xls (BIFF8) workbook through the HSSF record event model. */
+final class XlsSheetReader {
+    private static final short CONTINUE = 0;
+    private static final short STOP = 1;
+
+    private final DataFormatter dataFormatter;
+
+    XlsSheetReader(DataFormatter dataFormatter) {
+        this.dataFormatter = dataFormatter;
+    }
+
+    ExcelReadResult read(File excelFile, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        return read(excelFile, SheetSelection.firstSheet(), logger, rowHandler);
+    }
+
+    /** Reads the selected worksheets in one pass, one after the other, as BIFF records come in order. */
+    ExcelReadResult read(File excelFile, SheetSelection selection, LogSink logger, SourceRowHandler rowHandler)
+            throws IOException {
+        RecordHandler handler = new RecordHandler(dataFormatter, selection, logger, rowHandler);
+        try (POIFSFileSystem fileSystem = new POIFSFileSystem(excelFile, true)) {
+            if (fileSystem.getRoot().hasEntry(Decryptor.DEFAULT_POIFS_ENTRY)) {
+                throw new IOException("The Excel file appears to be encrypted and cannot be read.");
+            }
+
+            HSSFRequest request = new HSSFRequest();
+            request.addListenerForAllRecords(handler);
+            new HSSFEventFactory().abortableProcessWorkbookEvents(request, fileSystem);
+        } catch (EncryptedDocumentException e) {
+            throw new IOException("The Excel file appears to be encrypted and cannot be read.", e);
+        } catch (HSSFUserException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("The Excel file could not be parsed: " + e.getMessage(), e);
+        }
+        if (!handler.sawSheet) {
+            logger.warn("The Excel file does not contain any sheets.");
+        } else if (handler.sheetResults.isEmpty()) {
+            logger.warn("The Excel file does not contain any of the selected sheets.");
+        }
+        if (selection.isFirstSheetOnly()) {
+            return handler.sheetResults.isEmpty()
+                    ? new ExcelReadResult(0, 0)
+                    : new ExcelReadResult(handler.sheetResults.get(0).getTotalDataRows(),
+                            handler.sheetResults.get(0).getSkippedRowCount());
+        }
+        return new ExcelReadResult(handler.sheetResults);
+    }
+
+    /** The data rows the selected worksheets declare in their DIMENSIONS record. */
+    static long countDeclaredRows(File excelFile, SheetSelection selection) throws IOException {
+        try (POIFSFileSystem fileSystem = new POIFSFileSystem(excelFile, true)) {
+            if (fileSystem.getRoot().hasEntry(Decryptor.DEFAULT_POIFS_ENTRY)) {
+                return -1;
+            }
+            String workbook = HSSFWorkbook.getWorkbookDirEntryName(fileSystem.getRoot());
+            List<BoundSheetRecord> boundSheets = new ArrayList<>();
+            try (InputStream globals = fileSystem.createDocumentInputStream(workbook)) {
+                RecordFactoryInputStream records = new RecordFactoryInputStream(globals, false);
+                Record record = records.nextRecord();
+                while (record != null && record.getSid() != EOFRecord.sid) {
+                    if (record.getSid() == BoundSheetRecord.sid) {
+                        boundSheets.add((BoundSheetRecord) record);
+                    }
+                    record = records.nextRecord();
+                }
+            }
+
+            long rows = 0;
+            int worksheetIndex = 0;
+            for (BoundSheetRecord boundSheet : boundSheets) {
+                try (InputStream substream = fileSystem.createDocumentInputStream(workbook)) {
+                    IOUtils.skipFully(substream, boundSheet.getPositionOfBof());
+                    RecordFactoryInputStream records = new RecordFactoryInputStream(substream, false);
+                    Record bof = records.nextRecord();
+                    if (!(bof instanceof BOFRecord) || ((BOFRecord) bof).getType() != BOFRecord.TYPE_WORKSHEET) {
+                        continue;
+                    }
+                    if (!selection.includes(worksheetIndex++, boundSheet.getSheetname())) {
+                        continue;
+                    }
+                    long declared = declaredRows(records);
+                    if (declared < 0) {
+                        return -1;
+                    }
+                    rows += declared;
+                }
+                if (selection.isFirstSheetOnly()) {
+                    break;
+                }
+            }
+            return rows;
+        }
+    }
+
+    private static long declaredRows(RecordFactoryInputStream records) {
+        Record record = records.nextRecord();
+        // DIMENSIONS comes before the first ROW or cell record
+        while (record != null && record.getSid() != EOFRecord.sid && record.getSid() != RowRecord.sid
+                && !(record instanceof CellValueRecordInterface)) {
+            if (record.getSid() == DimensionsRecord.sid) {
+                // the last row is stored as one past the last used row index
+                return Math.max(0, ((DimensionsRecord) record).getLastRow() - 1);
+            }
+            record = records.nextRecord();
+        }
+        return -1;
+    }
+
+    /** Collects the cells of the selected worksheets row by row. */
+    private static final class RecordHandler extends AbortableHSSFListener {
+        private final DataFormatter dataFormatter;
+        private final SheetSelection selection;
+        private final LogSink logger;
+        private final SourceRowHandler rowHandler;
+        private final FormatTrackingHSSFListener formats = new FormatTrackingHSSFListener(null, Locale.US);
+        // every sheet, chart sheets included, in the order of their substreams
+        private final List<String> boundSheetNames = new ArrayList<>();
+        private final List<SheetReadResult> sheetResults = new ArrayList<>();
+
+        private final CellSnapshot mrnCell = new CellSnapshot();
+        private final CellSnapshot linesCell = new CellSnapshot();
+        private final CellSnapshot customsCell = new CellSnapshot();
+
+        private SSTRecord sharedStrings;
+        private boolean sawSheet;
+        private int depth;
+        private int substreamIndex = -1;
+        private int worksheetIndex = -1;
+        private String sheetName;
+        // set while inside a selected worksheet
+        private SourceRowAssembler assembler;
+        private int currentRowIndex;
+        private int nextRowIndex;
+        private int lastRowIndex;
+        private CellSnapshot pendingStringResult;
+
+        RecordHandler(DataFormatter dataFormatter,
+                      SheetSelection selection,
+                      LogSink logger,
+                      SourceRowHandler rowHandler) {
+            this.dataFormatter = dataFormatter;
+            this.selection = selection;
+            this.logger = logger;
+            this.rowHandler = rowHandler;
+        }
+
+        @Override
+        public short abortableProcessRecord(Record record) throws HSSFUserException {
+            try {
+                return handleRecord(record);
+            } catch (IOException e) {
+                throw new HSSFUserException(e.getMessage(), e);
+            }
+        }
+
+        private short handleRecord(Record record) throws IOException {
+            formats.processRecordInternally(record);
+            switch (record.getSid()) {
+                case SSTRecord.sid:
+                    sharedStrings = (SSTRecord) record;
+                    return CONTINUE;
+                case BoundSheetRecord.sid:
+                    boundSheetNames.add(((BoundSheetRecord) record).getSheetname());
+                    return CONTINUE;
+                case BOFRecord.sid:
+                    startSubstream((BOFRecord) record);
+                    return CONTINUE;
+                case EOFRecord.sid:
+                    depth--;
+                    if (depth == 0 && assembler != null) {
+                        finishSheet();
+                        if (selection.isFirstSheetOnly()) {
+                            return STOP;
+                        }
+                    }
+                    return CONTINUE;
+                default:
+                    if (assembler != null && depth == 1) {
+                        processSheetRecord(record);
+                    }
+                    return CONTINUE;
+            }
+        }
+
+        private void startSubstream(BOFRecord bof) {
+            depth++;
+            if (depth != 1 || bof.getType() == BOFRecord.TYPE_WORKBOOK) {
+                return;
+            }
+            substreamIndex++;
+            if (substreamIndex == 0) {
+                // the sheet names are all known once the workbook globals are done
+                for (String missing : selection.missingFrom(boundSheetNames)) {
+                    logger.warn("WARN: Sheet '%s' is not in the Excel file", missing);
+                }
+            }
+            if (bof.getType() != BOFRecord.TYPE_WORKSHEET) {
+                return;
+            }
+            sawSheet = true;
+            worksheetIndex++;
+            String name = substreamIndex < boundSheetNames.size()
+                    ? boundSheetNames.get(substreamIndex)
+                    : "Sheet" + (worksheetIndex + 1);
+            if (selection.includes(worksheetIndex, name)) {
+                startSheet(name);
+            }
+        }
+
+        private void startSheet(String name) {
+            sheetName = name;
+            LogSink sheetLogger = selection.isFirstSheetOnly()
+                    ? logger
+                    : logger.withPrefix(ConcurrentSheetDecoder.sheetPrefix(name));
+            assembler = new SourceRowAssembler(dataFormatter, sheetLogger, rowHandler);
+            currentRowIndex = -1;
+            nextRowIndex = 1;
+            lastRowIndex = -1;
+            pendingStringResult = null;
+            mrnCell.clear();
+            linesCell.clear();
+            customsCell.clear();
+        }
+
+        private void processSheetRecord(Record record) throws IOException {
+            switch (record.getSid()) {
+                case RowRecord.sid:
+                    lastRowIndex = Math.max(lastRowIndex, ((RowRecord) record).getRowNumber());
+                    break;
+                case NumberRecord.sid: {
+                    NumberRecord number = (NumberRecord) record;
+                    CellSnapshot cell = cellFor(number);
+                    if (cell != null) {
+                        cell.setNumeric(number.getValue(), formats.getFormatIndex(number), formats.getFormatString(number));
+                    }
+                    break;
+                }
+                case LabelSSTRecord.sid: {
+                    LabelSSTRecord label = (LabelSSTRecord) record;
+                    CellSnapshot cell = cellFor(label);
+                    if (cell != null) {
+                        cell.setText(sharedStrings.getString(label.getSSTIndex()).getString());
+                    }
+                    break;
+                }
+                case LabelRecord.sid: {
+                    LabelRecord label = (LabelRecord) record;
+                    CellSnapshot cell = cellFor(label);
+                    if (cell != null) {
+                        cell.setText(label.getValue());
+                    }
+                    break;
+                }
+                case BoolErrRecord.sid: {
+                    BoolErrRecord boolErr = (BoolErrRecord) record;
+                    CellSnapshot cell = cellFor(boolErr);
+                    if (cell != null) {
+                        if (boolErr.isBoolean()) {
+                            cell.setBoolean(boolErr.getBooleanValue());
+                        } else {
+                            cell.setError(FormulaError.forInt(boolErr.getErrorValue()).getString());
+                        }
+                    }
+                    break;
+                }
+                case FormulaRecord.sid:
+                    storeFormulaResult((FormulaRecord) record);
+                    break;
+                case StringRecord.sid:
+                    // cached text result of the formula record that precedes it
+                    if (pendingStringResult != null) {
+                        pendingStringResult.setText(((StringRecord) record).getString());
+                        pendingStringResult = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void storeFormulaResult(FormulaRecord formula) throws IOException {
+            CellSnapshot cell = cellFor(formula);
+            if (cell == null) {
+                return;
+            }
+            CellType resultType = formula.getCachedResultTypeEnum();
+            switch (resultType) {
+                case NUMERIC:
+                    cell.setNumeric(formula.getValue(), formats.getFormatIndex(formula), formats.getFormatString(formula));
+                    cell.markFormulaResult();
+                    break;
+                case STRING:
+                    pendingStringResult = cell;
+                    break;
+                case BOOLEAN:
+                    cell.setBoolean(formula.getCachedBooleanValue());
+                    break;
+                case ERROR:
+                    cell.setError(FormulaError.forInt(formula.getCachedErrorValue()).getString());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private CellSnapshot cellFor(CellValueRecordInterface record) throws IOException {
+            int rowIndex = record.getRow();
+            lastRowIndex = Math.max(lastRowIndex, rowIndex);
+            if (rowIndex != currentRowIndex) {
+                flushRow();
+                currentRowIndex = rowIndex;
+            }
+            if (rowIndex < 1) {
+                // the first row holds the column headers
+                return null;
+            }
+            switch (record.getColumn()) {
+                case ExcelSourceReader.MRN_COLUMN_INDEX:
+                    return mrnCell;
+                case ExcelSourceReader.LINES_COLUMN_INDEX:
+                    return linesCell;
+                case ExcelSourceReader.CUSTOMS_COLUMN_INDEX:
+                    return customsCell;
+                default:
+                    return null;
+            }
+        }
+
+        private void flushRow() throws IOException {
+            pendingStringResult = null;
+            if (currentRowIndex >= 1) {
+                emitEmptyRowsBefore(currentRowIndex);
+                assembler.accept(currentRowIndex + 1, mrnCell, linesCell, customsCell);
+                nextRowIndex = currentRowIndex + 1;
+            }
+            mrnCell.clear();
+            linesCell.clear();
+            customsCell.clear();
+        }
+
+        private void finishSheet() throws IOException {
+            flushRow();
+            currentRowIndex = -1;
+            emitEmptyRowsBefore(lastRowIndex + 1);
+            ExcelReadResult result = assembler.toResult();
+            sheetResults.add(new SheetReadResult(sheetName, result.getTotalDataRows(), result.getSkippedRowCount()));
+            assembler = null;
+        }
+
+        private void emitEmptyRowsBefore(int rowIndex) {
+            for (int missing = nextRowIndex; missing < rowIndex; missing++) {
+                assembler.emptyRow(missing + 1);
+            }
+            nextRowIndex = Math.max(nextRowIndex, rowIndex);
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package org.app.service;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.app.log.LogSink;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Streams the first or the selected sheets of an .xlsx workbook with SAX, keeping only the columns read. */
+final class XlsxSheetReader {
+    private final DataFormatter dataFormatter;
+    private final long lowMemoryMaxEntryBytes;
+
+    XlsxSheetReader(DataFormatter dataFormatter) {
+        this(dataFormatter, 0);
+    }
+
+    /** Above {@code 0}, {@code lowMemoryMaxEntryBytes} reads in low-memory mode with that limit per part. */
+    XlsxSheetReader(DataFormatter dataFormatter, long lowMemoryMaxEntryBytes) {
+        this.dataFormatter = dataFormatter;
+        this.lowMemoryMaxEntryBytes = lowMemoryMaxEntryBytes;
+    }
+
+    ExcelReadResult read(File excelFile, LogSink logger, SourceRowHandler rowHandler) throws IOException {
+        SourceRowAssembler assembler = new SourceRowAssembler(dataFormatter, logger, rowHandler);
+        try (OPCPackage pkg = openPackage(excelFile, lowMemoryMaxEntryBytes)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                logger.warn("The Excel file does not contain any sheets.");
+                return assembler.toResult();
+            }
+
+            SharedStrings sharedStrings = openSharedStrings(pkg);
+            try (InputStream sheet = sheets.next()) {
+                parse(sheet, sharedStrings, reader.getStylesTable(), assembler);
+            } finally {
+                closeSharedStrings(sharedStrings);
+            }
+        } catch (OpenXML4JException | SAXException e) {
+            throw new IOException("The Excel file could not be parsed: " + e.getMessage(), e);
+        }
+        return assembler.toResult();
+    }
+
+    /** Reads the selected sheets. */
+    ExcelReadResult read(File excelFile, SheetSelection selection, LogSink logger, SourceRowHandler rowHandler)
+            throws IOException {
+        try (OPCPackage pkg = openPackage(excelFile, lowMemoryMaxEntryBytes)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            StylesTable styles = reader.getStylesTable();
+            SharedStrings sharedStrings = openSharedStrings(pkg);
+
+            List<String> sheetNames = new ArrayList<>();
+            Map<String, InputStream> selected = new LinkedHashMap<>();
+            try {
+                XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+                while (sheets.hasNext()) {
+                    InputStream sheet = sheets.next();
+                    String sheetName = sheets.getSheetName();
+                    if (selection.includes(sheetNames.size(), sheetName)) {
+                        selected.put(sheetName, sheet);
+                    } else {
+                        sheet.close();
+                    }
+                    sheetNames.add(sheetName);
+                }
+                for (String missing : selection.missingFrom(sheetNames)) {
+                    logger.warn("WARN: Sheet '%s' is not in the Excel file", missing);
+                }
+                if (selected.isEmpty()) {
+                    logger.warn("The Excel file does not contain any of the selected sheets.");
+                    return new ExcelReadResult(Collections.emptyList());
+                }
+
+                // in low-memory mode later sheets are not held back while an earlier one is written
+                ConcurrentSheetDecoder decoder = new ConcurrentSheetDecoder(lowMemoryMaxEntryBytes == 0);
+                for (Map.Entry<String, InputStream> sheet : selected.entrySet()) {
+                    decoder.add(sheet.getKey(), (sheetLogger, sheetRows) -> {
+                        // DataFormatter is not thread-safe, every sheet gets its own
+                        SourceRowAssembler assembler = new SourceRowAssembler(
+                                new DataFormatter(Locale.US, true), sheetLogger, sheetRows);
+                        parse(sheet.getValue(), sharedStrings, styles, assembler);
+                        return assembler.toResult();
+                    });
+                }
+                return decoder.decode(logger, rowHandler);
+            } finally {
+                for (InputStream sheet : selected.values()) {
+                    sheet.close();
+                }
+                closeSharedStrings(sharedStrings);
+            }
+        } catch (OpenXML4JException | SAXException e) {
+            throw new IOException("The Excel file could not be parsed: " + e.getMessage(), e);
+        }
+    }
+
+    /** The data rows the selected sheets declare in their {@code <dimension>}, or {@code -1} if one has none. */
+    static long countDeclaredRows(File excelFile, SheetSelection selection, long lowMemoryMaxEntryBytes)
+            throws IOException {
+        try (OPCPackage pkg = openPackage(excelFile, lowMemoryMaxEntryBytes)) {
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+            long rows = 0;
+            for (int index = 0; sheets.hasNext(); index++) {
+                try (InputStream sheet = sheets.next()) {
+                    if (!selection.includes(index, sheets.getSheetName())) {
+                        continue;
+                    }
+                    long declared = declaredRows(sheet);
+                    if (declared < 0) {
+                        return -1;
+                    }
+                    rows += declared;
+                }
+                if (selection.isFirstSheetOnly()) {
+                    break;
+                }
+            }
+            return rows;
+        } catch (OpenXML4JException | XMLStreamException e) {
+            throw new IOException("The Excel file could not be parsed: " + e.getMessage(), e);
+        }
+    }
+
+    private static long declaredRows(InputStream sheet) throws XMLStreamException {
+        XMLStreamReader xml = XMLHelper.newXMLInputFactory().createXMLStreamReader(sheet);
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                if ("dimension".equals(xml.getLocalName())) {
+                    return rowsBelowHeader(xml.getAttributeValue(null, "ref"));
+                }
+                if ("sheetData".equals(xml.getLocalName())) {
+                    return -1;
+                }
+            }
+            return -1;
+        } finally {
+            xml.close();
+        }
+    }
+
+    /** The rows below row 1 that a range such as {@code A1:L5001} covers. */
+    private static long rowsBelowHeader(String ref) {
+        if (ref == null) {
+            return -1;
+        }
+        String lastCell = ref.substring(ref.indexOf(':') + 1);
+        int rowStart = lastCell.length();
+        while (rowStart > 0 && Character.isDigit(lastCell.charAt(rowStart - 1))) {
+            rowStart--;
+        }
+        if (rowStart == lastCell.length()) {
+            return -1;
+        }
+        return Math.max(0, Long.parseLong(lastCell.substring(rowStart)) - 1);
+    }
+
+    private SharedStrings openSharedStrings(OPCPackage pkg) throws IOException, SAXException {
+        if (lowMemoryMaxEntryBytes > 0) {
+            return TempFileSharedStrings.read(pkg);
+        }
+        return new ReadOnlySharedStringsTable(pkg, false);
+    }
+
+    private static void closeSharedStrings(SharedStrings sharedStrings) throws IOException {
+        if (sharedStrings instanceof Closeable) {
+            ((Closeable) sharedStrings).close();
+        }
+    }
+
+    /** Opens the workbook, in low-memory mode with the read's own part size limit instead of POI's. */
+    private static OPCPackage openPackage(File excelFile, long lowMemoryMaxEntryBytes)
+            throws IOException, InvalidFormatException {
+        if (lowMemoryMaxEntryBytes == 0) {
+            return OPCPackage.open(excelFile, PackageAccess.READ);
+        }
+        LowMemoryZipEntrySource parts = LowMemoryZipEntrySource.open(excelFile, lowMemoryMaxEntryBytes);
+        try {
+            return OPCPackage.open(parts);
+        } catch (InvalidFormatException | RuntimeException e) {
+            parts.close();
+            throw e;
+        }
+    }
+
+    private static void parse(InputStream sheet,
+                              SharedStrings sharedStrings,
+                              StylesTable styles,
+                              SourceRowAssembler assembler) throws IOException {
+        try {
+            XMLReader parser = XMLHelper.newXMLReader();
+            SheetHandler handler = new SheetHandler(sharedStrings, styles, assembler);
+            parser.setContentHandler(handler);
+            parser.setErrorHandler(handler);
+            parser.parse(new InputSource(sheet));
+        } catch (SAXException e) {
+            if (e.getException() instanceof IOException) {
+                throw (IOException) e.getException();
+            }
+            throw new IOException("The Excel file could not be parsed: " + e.getMessage(), e);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("The Excel file could not be parsed: " + e.getMessage(), e);
+        }
+    }
+
+    /** Receives the sheet XML events and hands every data row to the assembler as soon as it ends. */
+    private static final class SheetHandler extends DefaultHandler {
+        private final SharedStrings sharedStrings;
+        private final StylesTable styles;
+        private final SourceRowAssembler assembler;
+
+        private final CellSnapshot mrnCell = new CellSnapshot();
+        private final CellSnapshot linesCell = new CellSnapshot();
+        private final CellSnapshot customsCell = new CellSnapshot();
+        private final StringBuilder value = new StringBuilder(64);
+
+        private int nextRowIndex = 1;
+        private int rowIndex = -1;
+        private int columnIndex = -1;
+        private CellSnapshot currentCell;
+        private String cellType;
+        private String cellStyle;
+        private boolean capturing;
+        private boolean inInlineString;
+        private boolean inPhoneticRun;
+        private boolean formulaCell;
+        private boolean cellHasValue;
+
+        SheetHandler(SharedStrings sharedStrings, StylesTable styles, SourceRowAssembler assembler) {
+            this.sharedStrings = sharedStrings;
+            this.styles = styles;
+            this.assembler = assembler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    startRow(attributes.getValue("r"));
+                    break;
+                case "c":
+                    startCell(attributes);
+                    break;
+                case "v":
+                    if (currentCell != null && !inInlineString) {
+                        value.setLength(0);
+                        capturing = true;
+                    }
+                    break;
+                case "is":
+                    if (currentCell != null) {
+                        value.setLength(0);
+                        inInlineString = true;
+                    }
+                    break;
+                case "rPh":
+                    inPhoneticRun = true;
+                    break;
+                case "f":
+                    formulaCell = true;
+                    break;
+                case "t":
+                    capturing = inInlineString && !inPhoneticRun;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "row":
+                    endRow();
+                    break;
+                case "c":
+                    if (formulaCell && currentCell != null && !cellHasValue && rowIndex >= 1) {
+                        // the result was never saved; only evaluating the formula gives it
+                        throw new SAXException(new UncachedFormulaException(rowIndex + 1, columnIndex));
+                    }
+                    currentCell = null;
+                    break;
+                case "v":
+                    if (capturing) {
+                        capturing = false;
+                        cellHasValue = true;
+                        storeValue();
+                    }
+                    break;
+                case "t":
+                    capturing = false;
+                    break;
+                case "rPh":
+                    inPhoneticRun = false;
+                    break;
+                case "is":
+                    if (inInlineString) {
+                        inInlineString = false;
+                        cellHasValue = true;
+                        currentCell.setText(value.toString());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (capturing) {
+                value.append(ch, start, length);
+            }
+        }
+
+        private void startRow(String reference) {
+            rowIndex = reference != null ? Integer.parseInt(reference) - 1 : rowIndex + 1;
+            columnIndex = -1;
+            mrnCell.clear();
+            linesCell.clear();
+            customsCell.clear();
+        }
+
+        private void startCell(Attributes attributes) {
+            String reference = attributes.getValue("r");
+            columnIndex = reference != null ? columnIndex(reference) : columnIndex + 1;
+            currentCell = cellFor(columnIndex);
+            cellType = attributes.getValue("t");
+            cellStyle = attributes.getValue("s");
+            capturing = false;
+            inInlineString = false;
+            formulaCell = false;
+            cellHasValue = false;
+        }
+
+        private void endRow() throws SAXException {
+            if (rowIndex < 1) {
+                // the first row holds the column headers
+                nextRowIndex = Math.max(nextRowIndex, rowIndex + 1);
+                return;
+            }
+            for (int missing = nextRowIndex; missing < rowIndex; missing++) {
+                assembler.emptyRow(missing + 1);
+            }
+            nextRowIndex = rowIndex + 1;
+            try {
+                assembler.accept(rowIndex + 1, mrnCell, linesCell, customsCell);
+            } catch (IOException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        private CellSnapshot cellFor(int column) {
+            switch (column) {
+                case ExcelSourceReader.MRN_COLUMN_INDEX:
+                    return mrnCell;
+                case ExcelSourceReader.LINES_COLUMN_INDEX:
+                    return linesCell;
+                case ExcelSourceReader.CUSTOMS_COLUMN_INDEX:
+                    return customsCell;
+                default:
+                    return null;
+            }
+        }
+
+        private void storeValue() {
+            if (cellType == null || "n".equals(cellType)) {
+                storeNumeric();
+                return;
+            }
+            String raw = value.toString();
+            switch (cellType) {
+                case "s":
+                    currentCell.setText(sharedStrings.getItemAt(Integer.parseInt(raw.trim())).getString());
+                    break;
+                case "b":
+                    currentCell.setBoolean("1".equals(raw.trim()));
+                    break;
+                case "e":
+                    currentCell.setError(raw);
+                    break;
+                default:
+                    // "str" (formula text result), "inlineStr" without <is> and ISO dates ("d")
+                    currentCell.setText(raw);
+                    break;
+            }
+        }
+
+        private void storeNumeric() {
+            if (value.length() == 0) {
+                return;
+            }
+            // whole numbers, by far the most common values here, are read without a String in between
+            double number;
+            long wholeNumber = NumericText.parseWholeNumber(value);
+            if (wholeNumber != NumericText.NOT_SIMPLE) {
+                number = wholeNumber;
+            } else {
+                String raw = value.toString();
+                try {
+                    number = Double.parseDouble(raw);
+                } catch (NumberFormatException ex) {
+                    currentCell.setText(raw);
+                    return;
+                }
+            }
+            XSSFCellStyle style = cellStyle != null && styles != null
+                    ? styles.getStyleAt(Integer.parseInt(cellStyle))
+                    : null;
+            if (style == null) {
+                currentCell.setNumeric(number, 0, null);
+            } else {
+                currentCell.setNumeric(number, style.getDataFormat(), style.getDataFormatString());
+            }
+            if (formulaCell) {
+                currentCell.markFormulaResult();
+            }
+        }
+
+        private static int columnIndex(String reference) {
+            int column = 0;
+            for (int i = 0; i < reference.length(); i++) {
+                char ch = reference.charAt(i);
+                if (ch < 'A' || ch > 'Z') {
+                    break;
+                }
+                column = column * 26 + (ch - 'A' + 1);
+            }
+            return column - 1;
+        }
+    }
+}
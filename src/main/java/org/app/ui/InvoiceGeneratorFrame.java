@@ -1,46 +1,102 @@
 package org.app.ui;
 
+import org.app.log.AsyncLogSink;
+import org.app.log.LogLevel;
 import org.app.model.BusinessMode;
+import org.app.service.ExcelReadOptions;
+import org.app.service.GenerationStats;
 import org.app.service.InvoiceGenerationService;
 
+import javax.management.JMException;
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.FontMetrics;
+import java.awt.Rectangle;
 import java.io.File;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Collections;
+import java.util.concurrent.FutureTask;
 
 public class InvoiceGeneratorFrame extends JFrame {
+    private static final int LOG_BUFFER_SIZE = 8192;
+    // the console keeps the latest lines only, so logging every row of a large workbook stays cheap
+    private static final int CONSOLE_LINES = 10_000;
+    private static final int CONSOLE_COLUMNS = 160;
+    // while a file is processed, new console lines and the progress are shown at most 25 times a second
+    private static final int FRAME_MILLIS = 40;
+    private static final int PROGRESS_STEPS = 1000;
+
     private final JRadioButton fanRadio = new JRadioButton("FAN", true);
     private final JRadioButton assetRadio = new JRadioButton("ASSET");
     private final JButton browseButton = new JButton("Browse Excel...");
     private final JButton changeOutputButton = new JButton("Change CSV...");
-    private final JTextArea consoleArea = new JTextArea(12, 80);
+    private final JCheckBox verboseLogCheck = new JCheckBox("Log every row");
+    private final JButton cancelButton = new JButton("Cancel");
+    private final LogListModel consoleLines = new LogListModel(CONSOLE_LINES);
+    private final JList<String> consoleList = new JList<>(consoleLines);
+    private final JProgressBar progressBar = new JProgressBar(0, PROGRESS_STEPS);
+    private final Timer frameTimer = new Timer(FRAME_MILLIS, e -> refresh());
     private final JTextField outputPathField = new JTextField();
     private Path outputCsvPath;
+    // the run being processed, on the EDT
+    private RowProgress progress;
 
-    private final InvoiceGenerationService generationService = new InvoiceGenerationService();
+    // created off the EDT so the window does not wait for POI to load
+    private final FutureTask<InvoiceGenerationService> generationService =
+            new FutureTask<>(InvoiceGeneratorFrame::createWarmService);
 
     public InvoiceGeneratorFrame() {
         super("Program Facturare - Trendyol");
         initUi();
     }
 
+    /** Creates and warms up the generation service on a background thread; call it once the window is showing. */
+    public void warmUpInBackground() {
+        Thread warmUp = new Thread(generationService, "generation-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.setPriority(Thread.MIN_PRIORITY);
+        warmUp.start();
+    }
+
+    private static InvoiceGenerationService createWarmService() {
+        // picking the same workbook again, e.g. for the other mode, is served from the row cache
+        InvoiceGenerationService service = new InvoiceGenerationService(ExcelReadOptions.defaults().withRowCache(
+                ExcelReadOptions.defaultRowCacheDirectory(), ExcelReadOptions.DEFAULT_ROW_CACHE_MAX_BYTES));
+        GenerationStats stats = new GenerationStats();
+        try {
+            stats.registerPlatformMBean();
+            service.setMetricsListener(stats);
+        } catch (JMException | SecurityException ignored) {
+            // no JMX in this JVM; the stages are only timed for tools that can read them
+        }
+        try {
+            service.warmUp();
+        } catch (Exception ignored) {
+            // only a head start; a real problem shows up again with the user's own file
+        }
+        return service;
+    }
+
     private void initUi() {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout(8, 8));
@@ -53,6 +109,7 @@ public class InvoiceGeneratorFrame extends JFrame {
         controlsPanel.add(fanRadio);
         controlsPanel.add(assetRadio);
         controlsPanel.add(browseButton);
+        controlsPanel.add(verboseLogCheck);
         add(controlsPanel, BorderLayout.NORTH);
 
         outputPathField.setEditable(false);
@@ -63,18 +120,31 @@ public class InvoiceGeneratorFrame extends JFrame {
         outputPanel.add(changeOutputButton, BorderLayout.EAST);
         add(outputPanel, BorderLayout.CENTER);
 
-        consoleArea.setEditable(false);
-        consoleArea.setLineWrap(true);
-        consoleArea.setWrapStyleWord(true);
-        JScrollPane consoleScrollPane = new JScrollPane(consoleArea);
+        // fixed cell sizes spare the list from measuring every line it holds
+        FontMetrics consoleMetrics = consoleList.getFontMetrics(consoleList.getFont());
+        consoleList.setFixedCellHeight(consoleMetrics.getHeight());
+        consoleList.setFixedCellWidth(consoleMetrics.charWidth('0') * CONSOLE_COLUMNS);
+        JScrollPane consoleScrollPane = new JScrollPane(consoleList);
         consoleScrollPane.setPreferredSize(new Dimension(700, 250));
         consoleScrollPane.setBorder(BorderFactory.createTitledBorder("Console"));
-        add(consoleScrollPane, BorderLayout.SOUTH);
+
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        cancelButton.setEnabled(false);
+        JPanel progressPanel = new JPanel(new BorderLayout(6, 6));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+
+        JPanel runPanel = new JPanel(new BorderLayout(6, 6));
+        runPanel.add(progressPanel, BorderLayout.NORTH);
+        runPanel.add(consoleScrollPane, BorderLayout.CENTER);
+        add(runPanel, BorderLayout.SOUTH);
 
         browseButton.addActionListener(e -> onBrowse());
         changeOutputButton.addActionListener(e -> onChangeOutput());
+        cancelButton.addActionListener(e -> onCancel());
 
-        setSize(720, 420);
+        setSize(720, 450);
         setLocationRelativeTo(null);
     }
 
@@ -93,59 +163,134 @@ public class InvoiceGeneratorFrame extends JFrame {
 
     private void startProcessing(File file) {
         BusinessMode mode = fanRadio.isSelected() ? BusinessMode.FAN : BusinessMode.ASSET;
+        LogLevel logLevel = verboseLogCheck.isSelected() ? LogLevel.DEBUG : LogLevel.WARN;
         appendLog(String.format("Selected mode: %s", mode.getDisplayName()));
         appendLog("Reading file: " + file.getAbsolutePath());
         appendLog("Target CSV: " + outputCsvPath.toAbsolutePath());
         setControlsEnabled(false);
+        RowProgress runProgress = new RowProgress();
+        progress = runProgress;
+        frameTimer.start();
 
-        SwingWorker<Path, String> worker = new SwingWorker<Path, String>() {
+        SwingWorker<Path, Void> worker = new SwingWorker<Path, Void>() {
             @Override
             protected Path doInBackground() {
-                try {
-                    return generationService.generate(file, mode, outputCsvPath, this::publish);
-                } catch (Exception ex) {
-                    publish("ERROR: " + ex.getMessage());
-                    return null;
+                // messages are queued in batches and reach the console at the next frame
+                try (AsyncLogSink logger = new AsyncLogSink(consoleLines::offer, logLevel, LOG_BUFFER_SIZE)) {
+                    try {
+                        // runs the creation here unless the warm-up thread already started it
+                        generationService.run();
+                        return generationService.get().generate(file, mode, outputCsvPath, logger, runProgress);
+                    } catch (InterruptedIOException ex) {
+                        if (runProgress.isCancelled()) {
+                            logger.summary("%s", ex.getMessage());
+                        } else {
+                            logger.warn("ERROR: %s", ex.getMessage());
+                        }
+                        return null;
+                    } catch (Exception ex) {
+                        logger.warn("ERROR: %s", ex.getMessage());
+                        return null;
+                    }
                 }
             }
 
-            @Override
-            protected void process(List<String> chunks) {
-                chunks.forEach(InvoiceGeneratorFrame.this::appendLog);
-            }
-
             @Override
             protected void done() {
+                frameTimer.stop();
                 setControlsEnabled(true);
+                Path csvPath = null;
                 try {
-                    Path csvPath = get();
+                    csvPath = get();
                     if (csvPath != null) {
                         appendLog("Completed. Output file: " + csvPath.toAbsolutePath());
+                    } else if (runProgress.isCancelled()) {
+                        appendLog("Cancelled. The CSV was left as it was.");
                     } else {
                         appendLog("Processing finished with errors.");
                     }
                 } catch (Exception e) {
                     appendLog("ERROR: " + e.getMessage());
                 }
+                showOutcome(csvPath != null, runProgress.isCancelled());
+                progress = null;
             }
         };
         worker.execute();
     }
 
+    private void onCancel() {
+        if (progress != null && !progress.isCancelled()) {
+            progress.cancel();
+            cancelButton.setEnabled(false);
+            appendLog("Cancelling...");
+        }
+    }
+
+    /** Shows the console lines queued since the last frame and the progress of the run; on the EDT. */
+    private void refresh() {
+        boolean following = isConsoleAtEnd();
+        if (consoleLines.flush() && following) {
+            consoleList.ensureIndexIsVisible(consoleLines.getSize() - 1);
+        }
+        if (progress != null) {
+            showProgress();
+        }
+    }
+
+    private boolean isConsoleAtEnd() {
+        Rectangle visible = consoleList.getVisibleRect();
+        return visible.y + visible.height >= consoleList.getHeight() - consoleList.getFixedCellHeight();
+    }
+
+    private void showProgress() {
+        long rows = progress.getPosition();
+        long expected = progress.getExpectedRows();
+        double rowsPerSecond = progress.sampleRowsPerSecond(System.nanoTime());
+        String rate = rowsPerSecond < 0 ? "" : String.format(", %,.0f rows/s", rowsPerSecond);
+        if (expected > 0) {
+            long done = Math.min(rows, expected);
+            progressBar.setIndeterminate(false);
+            progressBar.setValue((int) (done * PROGRESS_STEPS / expected));
+            String left = "";
+            if (rowsPerSecond > 0) {
+                long seconds = (long) Math.ceil((expected - done) / rowsPerSecond);
+                left = String.format(", about %d:%02d left", seconds / 60, seconds % 60);
+            }
+            progressBar.setString(String.format("%,d of %,d rows%s%s", rows, expected, rate, left));
+        } else {
+            // the sheets do not say how many rows they have
+            progressBar.setIndeterminate(true);
+            progressBar.setString(rows == 0 ? "Reading workbook..." : String.format("%,d rows%s", rows, rate));
+        }
+    }
+
+    private void showOutcome(boolean completed, boolean cancelled) {
+        progressBar.setIndeterminate(false);
+        if (completed) {
+            progressBar.setValue(PROGRESS_STEPS);
+            progressBar.setString("Done");
+        } else {
+            progressBar.setString(cancelled ? "Cancelled" : "Stopped with errors");
+        }
+    }
+
     private void setControlsEnabled(boolean enabled) {
         SwingUtilities.invokeLater(() -> {
             fanRadio.setEnabled(enabled);
             assetRadio.setEnabled(enabled);
             browseButton.setEnabled(enabled);
+            verboseLogCheck.setEnabled(enabled);
             changeOutputButton.setEnabled(enabled);
+            cancelButton.setEnabled(!enabled);
         });
     }
 
     private void appendLog(String message) {
-        SwingUtilities.invokeLater(() -> {
-            consoleArea.append(message + System.lineSeparator());
-            consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
-        });
+        consoleLines.offer(Collections.singletonList(message));
+        if (!frameTimer.isRunning()) {
+            SwingUtilities.invokeLater(this::refresh);
+        }
     }
 
     private void onChangeOutput() {
@@ -0,0 +1,67 @@
+package org.app.ui;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+/** The console lines as a list model that keeps only the latest {@code capacity} lines, in a ring. */
+final class LogListModel extends AbstractListModel<String> {
+    private final String[] ring;
+    // guarded by itself; written by any thread, drained on the EDT
+    private final Deque<String> pending = new ArrayDeque<>();
+    // EDT only
+    private int head;
+    private int size;
+
+    LogListModel(int capacity) {
+        this.ring = new String[capacity];
+    }
+
+    /** Queues lines for the next {@link #flush()}; when more than the ring holds are waiting, the oldest go. */
+    void offer(Collection<String> lines) {
+        synchronized (pending) {
+            for (String line : lines) {
+                if (pending.size() == ring.length) {
+                    pending.removeFirst();
+                }
+                pending.addLast(line);
+            }
+        }
+    }
+
+    /** Moves the queued lines into the ring; call it on the EDT. */
+    boolean flush() {
+        String[] lines;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return false;
+            }
+            lines = pending.toArray(new String[0]);
+            pending.clear();
+        }
+        // at most a ring's worth is ever pending, so only lines already in the ring are evicted
+        int evicted = Math.max(0, size + lines.length - ring.length);
+        if (evicted > 0) {
+            head = (head + evicted) % ring.length;
+            size -= evicted;
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+        for (String line : lines) {
+            ring[(head + size) % ring.length] = line;
+            size++;
+        }
+        fireIntervalAdded(this, size - lines.length, size - 1);
+        return true;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return ring[(head + index) % ring.length];
+    }
+}
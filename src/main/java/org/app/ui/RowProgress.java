@@ -0,0 +1,74 @@
+package org.app.ui;
+
+import org.app.service.GenerationProgress;
+
+/** Records how far a generation has read, for the progress bar to poll, and carries the cancel request to it. */
+final class RowProgress implements GenerationProgress {
+    // weight of the latest sample in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final long MIN_SAMPLE_NANOS = 250_000_000L;
+
+    private volatile long expectedRows = -1;
+    private volatile long position;
+    private volatile boolean cancelled;
+    // generating thread only
+    private long earlierSheetRows;
+    private int lastRowNumber;
+    // EDT only
+    private long sampledAt;
+    private long sampledPosition;
+    private double rowsPerSecond = -1;
+
+    @Override
+    public void expectedRows(long rows) {
+        // the workbook is read again from the start
+        earlierSheetRows = 0;
+        lastRowNumber = 0;
+        position = 0;
+        expectedRows = rows;
+    }
+
+    @Override
+    public void rowRead(int excelRowNumber) {
+        if (excelRowNumber < lastRowNumber) {
+            earlierSheetRows += lastRowNumber - 1;
+        }
+        lastRowNumber = excelRowNumber;
+        // rows below the header
+        position = earlierSheetRows + excelRowNumber - 1;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    /** The declared data rows, {@code -1} when unknown or not counted yet. */
+    long getExpectedRows() {
+        return expectedRows;
+    }
+
+    /** The reading rate, smoothed over the samples of these calls; {@code -1} until there are two. */
+    double sampleRowsPerSecond(long nowNanos) {
+        long current = position;
+        if (sampledAt == 0 || current < sampledPosition) {
+            sampledAt = nowNanos;
+            sampledPosition = current;
+            rowsPerSecond = -1;
+        } else if (nowNanos - sampledAt >= MIN_SAMPLE_NANOS) {
+            double rate = (current - sampledPosition) * 1e9 / (nowNanos - sampledAt);
+            rowsPerSecond = rowsPerSecond < 0 ? rate : rowsPerSecond + RATE_SMOOTHING * (rate - rowsPerSecond);
+            sampledAt = nowNanos;
+            sampledPosition = current;
+        }
+        return rowsPerSecond;
+    }
+}